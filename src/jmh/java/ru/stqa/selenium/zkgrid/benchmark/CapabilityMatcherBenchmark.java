@@ -0,0 +1,103 @@
+package ru.stqa.selenium.zkgrid.benchmark;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.Platform;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import ru.stqa.selenium.zkgrid.hub.CapabilityPredicate;
+import ru.stqa.selenium.zkgrid.hub.DefaultCapabilityMatcher;
+import ru.stqa.selenium.zkgrid.hub.SlotCapabilities;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching a session request against the slot buckets of a grid, the slot capabilities are parsed
+ * once as the registry does: the request compiled once into a predicate vs the request parsed
+ * again for every bucket, as a matcher that does not compile requests does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CapabilityMatcherBenchmark {
+
+  // distinct capability sets (browser, platform, version) in the grid
+  @Param({"10", "100"})
+  public int buckets;
+
+  @Param({"53", "53+"})
+  public String requiredVersion;
+
+  private final DefaultCapabilityMatcher matcher = new DefaultCapabilityMatcher();
+
+  private List<SlotCapabilities> parsedSlots;
+  private Capabilities required;
+  private CapabilityPredicate predicate;
+
+  @Setup
+  public void setUp() {
+    String[] browsers = { "firefox", "chrome", "internet explorer", "opera" };
+    Platform[] platforms = { Platform.LINUX, Platform.WINDOWS, Platform.MAC };
+    parsedSlots = Lists.newArrayList();
+    for (int i = 0; i < buckets; i++) {
+      DesiredCapabilities slot = new DesiredCapabilities();
+      slot.setBrowserName(browsers[i % browsers.length]);
+      slot.setPlatform(platforms[i % platforms.length]);
+      slot.setVersion((40 + i % 30) + "." + (i % 3) + ".0");
+      parsedSlots.add(new SlotCapabilities(slot));
+    }
+    DesiredCapabilities request = DesiredCapabilities.firefox();
+    request.setPlatform(Platform.LINUX);
+    request.setVersion(requiredVersion);
+    required = request;
+    predicate = matcher.compile(required);
+  }
+
+  @Benchmark
+  public int compilePerBucket() {
+    int matched = 0;
+    for (SlotCapabilities slot : parsedSlots) {
+      if (matcher.compile(required).matches(slot)) {
+        matched++;
+      }
+    }
+    return matched;
+  }
+
+  @Benchmark
+  public int compiledPredicate() {
+    int matched = 0;
+    for (SlotCapabilities slot : parsedSlots) {
+      if (predicate.matches(slot)) {
+        matched++;
+      }
+    }
+    return matched;
+  }
+
+  @Benchmark
+  public int compileAndMatch() {
+    CapabilityPredicate compiled = matcher.compile(required);
+    int matched = 0;
+    for (SlotCapabilities slot : parsedSlots) {
+      if (compiled.matches(slot)) {
+        matched++;
+      }
+    }
+    return matched;
+  }
+}
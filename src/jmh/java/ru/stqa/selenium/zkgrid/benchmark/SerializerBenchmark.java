@@ -0,0 +1,121 @@
+package ru.stqa.selenium.zkgrid.benchmark;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.remote.BeanToJsonConverter;
+import org.openqa.selenium.remote.Command;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.openqa.selenium.remote.DriverCommand;
+import org.openqa.selenium.remote.Response;
+import org.openqa.selenium.remote.SessionId;
+import ru.stqa.selenium.zkgrid.common.WireFormat;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON and binary encoding of the payloads the clients and the nodes exchange through ZooKeeper.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+  @Param({"json", "binary"})
+  public String format;
+
+  // size of the response value, e.g. a page source or a base64 screenshot
+  @Param({"100", "100000"})
+  public int valueSize;
+
+  private boolean binary;
+  private Command command;
+  private Response response;
+  private Capabilities capabilities;
+
+  private byte[] encodedCommand;
+  private byte[] encodedResponse;
+  private byte[] encodedCapabilities;
+
+  @Setup
+  public void setUp() {
+    binary = "binary".equals(format);
+
+    Map<String, Object> parameters = Maps.newHashMap();
+    parameters.put("id", "0.123456789-1");
+    parameters.put("value", Arrays.asList("some text to type"));
+    command = new Command(new SessionId("2b3d5f7a-1c4e-4a8b-9d0f-6e2a4c8b1d3f"), DriverCommand.SEND_KEYS_TO_ELEMENT,
+        parameters);
+
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < valueSize; i++) {
+      value.append((char) ('A' + i % 26));
+    }
+    response = new Response();
+    response.setStatus(0);
+    response.setSessionId("2b3d5f7a-1c4e-4a8b-9d0f-6e2a4c8b1d3f");
+    response.setState("success");
+    response.setValue(value.toString());
+
+    DesiredCapabilities desired = DesiredCapabilities.firefox();
+    desired.setCapability("zk-grid.clientId", "5e1a7c3b-9f2d-4b6e-8a0c-3d5f7b9e1a2c");
+    desired.setCapability("zk-grid.deadline", System.currentTimeMillis());
+    desired.setCapability("zk-grid.tenant", "team-a");
+    desired.setCapability("proxy", ImmutableMap.of("proxyType", "manual", "httpProxy", "proxy:3128"));
+    capabilities = desired;
+
+    encodedCommand = WireFormat.encode(command, binary);
+    encodedResponse = WireFormat.encode(response, binary);
+    encodedCapabilities = encodeCapabilities();
+  }
+
+  private byte[] encodeCapabilities() {
+    return binary ? WireFormat.encode(capabilities) : new BeanToJsonConverter().convert(capabilities).getBytes();
+  }
+
+  @Benchmark
+  public byte[] encodeCommand() {
+    return WireFormat.encode(command, binary);
+  }
+
+  @Benchmark
+  public Command decodeCommand() {
+    return WireFormat.decodeCommand(encodedCommand);
+  }
+
+  @Benchmark
+  public byte[] encodeResponse() {
+    return WireFormat.encode(response, binary);
+  }
+
+  @Benchmark
+  public Response decodeResponse() {
+    return WireFormat.decodeResponse(encodedResponse);
+  }
+
+  @Benchmark
+  public byte[] encodeCapabilitiesPayload() {
+    return encodeCapabilities();
+  }
+
+  @Benchmark
+  public Capabilities decodeCapabilities() {
+    return WireFormat.decodeCapabilities(encodedCapabilities);
+  }
+}
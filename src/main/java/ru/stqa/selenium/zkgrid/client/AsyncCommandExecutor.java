@@ -0,0 +1,239 @@
+package ru.stqa.selenium.zkgrid.client;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.remote.Command;
+import org.openqa.selenium.remote.DriverCommand;
+import org.openqa.selenium.remote.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.stqa.selenium.zkgrid.common.ChunkedPayload;
+import ru.stqa.selenium.zkgrid.common.Curator;
+import ru.stqa.selenium.zkgrid.common.PayloadCompression;
+import ru.stqa.selenium.zkgrid.common.SlotInfo;
+import ru.stqa.selenium.zkgrid.common.WireFormat;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static ru.stqa.selenium.zkgrid.common.PathUtils.*;
+
+/**
+ * Sends commands to allocated slots without blocking the caller, one executor serves any number of sessions.
+ *
+ * Commands are created and responses are awaited with background ZooKeeper operations and watches,
+ * no thread waits for a response. Commands sent to a slot before the previous ones complete
+ * are executed in the order they were sent: a command is created after the previous command to the slot
+ * has got its sequence number, chunked ones (e.g. file uploads) included. Slots are allocated in advance,
+ * e.g. by {@link GangSlotAllocator}, the caller keeps the session ids.
+ */
+public class AsyncCommandExecutor {
+
+  private static Logger log = LoggerFactory.getLogger(AsyncCommandExecutor.class);
+
+  private static final long COMMAND_TIMEOUT = TimeUnit.SECONDS.toMillis(120);
+
+  private final Curator curator;
+  private int payloadChunkSize = ChunkedPayload.DEFAULT_CHUNK_SIZE;
+  private int compressionThreshold = PayloadCompression.DEFAULT_THRESHOLD;
+
+  // parses the responses and completes the futures off the ZooKeeper event thread
+  private final ExecutorService responseExecutor;
+  private final ScheduledExecutorService timeoutExecutor = Executors.newSingleThreadScheduledExecutor();
+  // the creation of the last command sent to each slot, by the command prefix of the slot
+  private final ConcurrentMap<String, ListenableFuture<?>> lastCreated = new ConcurrentHashMap<String, ListenableFuture<?>>();
+
+  public AsyncCommandExecutor(String connectionString) {
+    this(connectionString, 2);
+  }
+
+  /**
+   * @param threads the number of threads that process the responses
+   */
+  public AsyncCommandExecutor(String connectionString, int threads) {
+    curator = CuratorPool.acquire(connectionString);
+    responseExecutor = Executors.newFixedThreadPool(threads);
+  }
+
+  /**
+   * @param payloadChunkSize commands larger than this (e.g. file uploads) are sent in chunks
+   */
+  public void setPayloadChunkSize(int payloadChunkSize) {
+    this.payloadChunkSize = payloadChunkSize;
+  }
+
+  /**
+   * @param compressionThreshold commands larger than this are deflated, negative disables the compression
+   */
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  /**
+   * @param slot a slot allocated in advance, a new session is started on it only if the slot has its owner set
+   */
+  public ListenableFuture<Response> execute(final SlotInfo slot, Command command) {
+    final SettableFuture<Response> response = SettableFuture.create();
+    final ScheduledFuture<?> timeout = timeoutExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        response.setException(new TimeoutException("Command execution timeout"));
+      }
+    }, COMMAND_TIMEOUT, TimeUnit.MILLISECONDS);
+    response.addListener(new Runnable() {
+      @Override
+      public void run() {
+        timeout.cancel(false);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+
+    if (DriverCommand.NEW_SESSION.equals(command.getName())) {
+      command = CuratorCommandExecutor.withClientId(command, slot.getOwner());
+    }
+    log.info("Sending command " + command);
+    final byte[] payload = PayloadCompression.compress(
+        WireFormat.encode(command, WireFormat.supportsBinary(slot)), compressionThreshold);
+
+    final String commandPrefix = nodeSlotCommandPrefix(slot);
+    final SettableFuture<Void> created = SettableFuture.create();
+    created.addListener(new Runnable() {
+      @Override
+      public void run() {
+        lastCreated.remove(commandPrefix, created);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    ListenableFuture<?> previous = lastCreated.put(commandPrefix, created);
+    if (previous == null) {
+      previous = Futures.immediateFuture(null);
+    }
+    final boolean chunked = payload.length > payloadChunkSize;
+    // large commands are rare, their chunks are written one after another off the ZooKeeper event thread
+    previous.addListener(new Runnable() {
+      @Override
+      public void run() {
+        if (chunked) {
+          createChunked(slot, payload, created, response);
+        } else {
+          create(slot, payload, created, response);
+        }
+      }
+    }, chunked ? responseExecutor : MoreExecutors.sameThreadExecutor());
+    return response;
+  }
+
+  private void createChunked(SlotInfo slot, byte[] payload, SettableFuture<Void> created,
+                             SettableFuture<Response> response) {
+    String commandPath;
+    try {
+      commandPath = ChunkedPayload.createSequential(curator, nodeSlotCommandPrefix(slot), payload, payloadChunkSize);
+    } catch (Exception ex) {
+      response.setException(ex);
+      return;
+    } finally {
+      created.set(null);
+    }
+    try {
+      awaitResponse(nodeSlotResponsePath(slot, commandPath), response);
+    } catch (Exception ex) {
+      response.setException(ex);
+    }
+  }
+
+  private void create(final SlotInfo slot, byte[] payload, final SettableFuture<Void> created,
+                      final SettableFuture<Response> response) {
+    try {
+      curator.getClient().create().creatingParentsIfNeeded().withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+          .inBackground(new BackgroundCallback() {
+            @Override
+            public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+              created.set(null);
+              if (event.getResultCode() != KeeperException.Code.OK.intValue()) {
+                response.setException(KeeperException.create(KeeperException.Code.get(event.getResultCode()),
+                    event.getPath()));
+                return;
+              }
+              awaitResponse(nodeSlotResponsePath(slot, event.getName()), response);
+            }
+          })
+          .forPath(nodeSlotCommandPrefix(slot), payload);
+    } catch (Exception ex) {
+      created.set(null);
+      response.setException(ex);
+    }
+  }
+
+  /**
+   * Watches the response znode until it appears with data, a chunked response gets data when it is complete.
+   */
+  private void awaitResponse(final String responsePath, final SettableFuture<Response> response) throws Exception {
+    if (response.isDone()) {
+      return;
+    }
+    final CuratorWatcher watcher = new CuratorWatcher() {
+      @Override
+      public void process(WatchedEvent event) throws Exception {
+        awaitResponse(responsePath, response);
+      }
+    };
+    curator.getClient().getData().usingWatcher(watcher).inBackground(new BackgroundCallback() {
+      @Override
+      public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+        if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+          // not written yet, the existence watch fires when it is
+          client.checkExists().usingWatcher(watcher).inBackground(new BackgroundCallback() {
+            @Override
+            public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+              // created between the two calls, the watch won't fire again
+              if (event.getStat() != null) {
+                awaitResponse(responsePath, response);
+              }
+            }
+          }).forPath(responsePath);
+        } else if (event.getResultCode() != KeeperException.Code.OK.intValue()) {
+          response.setException(new WebDriverException("Can't read the response " + responsePath + ": "
+              + KeeperException.Code.get(event.getResultCode())));
+        } else if (event.getData().length > 0) {
+          complete(responsePath, event.getData(), response);
+        }
+      }
+    }).forPath(responsePath);
+  }
+
+  private void complete(final String responsePath, final byte[] data, final SettableFuture<Response> response) {
+    responseExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Response res = WireFormat.decodeResponse(ChunkedPayload.read(curator, responsePath, data));
+          log.info("Response is " + res);
+          response.set(res);
+          curator.getClient().delete().deletingChildrenIfNeeded().inBackground().forPath(responsePath);
+        } catch (Exception ex) {
+          response.setException(ex);
+        }
+      }
+    });
+  }
+
+  public void close() {
+    timeoutExecutor.shutdownNow();
+    responseExecutor.shutdown();
+    CuratorPool.release(curator);
+  }
+}
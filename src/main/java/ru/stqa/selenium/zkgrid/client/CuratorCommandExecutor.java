@@ -1,43 +1,105 @@
 package ru.stqa.selenium.zkgrid.client;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.curator.framework.api.CuratorWatcher;
 import org.apache.curator.framework.recipes.barriers.DistributedBarrier;
 import org.apache.curator.framework.recipes.queue.DistributedQueue;
-import org.apache.curator.framework.recipes.queue.QueueBuilder;
+import org.apache.zookeeper.WatchedEvent;
 import org.openqa.selenium.Capabilities;
 import org.openqa.selenium.SessionNotCreatedException;
+import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.remote.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import ru.stqa.selenium.zkgrid.common.CapabilitiesSerializer;
+import ru.stqa.selenium.zkgrid.common.ChunkedPayload;
 import ru.stqa.selenium.zkgrid.common.Curator;
+import ru.stqa.selenium.zkgrid.common.Frames;
+import ru.stqa.selenium.zkgrid.common.PayloadCompression;
+import ru.stqa.selenium.zkgrid.common.RequestCapabilities;
+import ru.stqa.selenium.zkgrid.common.SessionRequestPartition;
 import ru.stqa.selenium.zkgrid.common.SlotAllocationResponse;
 import ru.stqa.selenium.zkgrid.common.SlotInfo;
+import ru.stqa.selenium.zkgrid.common.WireFormat;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import static org.openqa.selenium.remote.DriverCommand.GET_ALL_SESSIONS;
 import static org.openqa.selenium.remote.DriverCommand.NEW_SESSION;
 import static org.openqa.selenium.remote.DriverCommand.QUIT;
 import static ru.stqa.selenium.zkgrid.common.PathUtils.*;
-import static ru.stqa.selenium.zkgrid.common.PathUtils.nodeSlotResponsePath;
 
 public class CuratorCommandExecutor implements CommandExecutor {
 
   private static Logger log = LoggerFactory.getLogger(CuratorCommandExecutor.class);
 
+  // time the hub has to respond in addition to the slot wait timeout
+  static final long ALLOCATION_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+  private static final long COMMAND_TIMEOUT = TimeUnit.SECONDS.toMillis(120);
+
+
   private String clientId = UUID.randomUUID().toString();
 
-  private final Curator curator;
+  private final String connectionString;
+  // shared with the other clients of the process, held while there is a session
+  private Curator curator;
   private SlotInfo slot;
   private String sessionId;
+  private boolean slotPreallocated;
+  private final long slotWaitTimeout;
+  private int payloadChunkSize = ChunkedPayload.DEFAULT_CHUNK_SIZE;
+  private int compressionThreshold = PayloadCompression.DEFAULT_THRESHOLD;
+  private DirectConnection connection;
+  // not tried again for the same slot
+  private Object unreachableEndpoint;
 
   public CuratorCommandExecutor(String connectionString) throws InterruptedException {
-    curator = Curator.createCurator(connectionString, log);
-    curator.start();
+    this(connectionString, 0, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @param slotWaitTimeout how long the hub should keep the request waiting
+   *                        if all the matching slots are busy
+   */
+  public CuratorCommandExecutor(String connectionString, long slotWaitTimeout, TimeUnit timeUnit)
+      throws InterruptedException {
+    this.slotWaitTimeout = timeUnit.toMillis(slotWaitTimeout);
+    this.connectionString = connectionString;
+    curator = CuratorPool.acquire(connectionString);
+  }
+
+  /**
+   * @param slot a slot allocated in advance, e.g. by {@link GangSlotAllocator}
+   */
+  public CuratorCommandExecutor(String connectionString, SlotInfo slot) throws InterruptedException {
+    this(connectionString);
+    this.slot = slot;
+    this.slotPreallocated = true;
+    if (slot.getOwner() != null) {
+      clientId = slot.getOwner();
+    }
+  }
+
+  /**
+   * @param payloadChunkSize commands larger than this (e.g. file uploads) are sent in chunks
+   */
+  public void setPayloadChunkSize(int payloadChunkSize) {
+    this.payloadChunkSize = payloadChunkSize;
+  }
+
+  /**
+   * @param compressionThreshold commands larger than this are deflated, negative disables the compression
+   */
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
   }
 
   @Override
@@ -53,16 +115,27 @@ public class CuratorCommandExecutor implements CommandExecutor {
     }
 
     if (NEW_SESSION.equals(command.getName())) {
-      try {
-        slot = allocateSlot((Capabilities) command.getParameters().get("desiredCapabilities"));
-      } catch (Exception ex) {
-        throw Throwables.propagate(ex);
+      if (curator == null) {
+        curator = CuratorPool.acquire(connectionString);
       }
+      if (slotPreallocated) {
+        slotPreallocated = false;
+      } else {
+        try {
+          slot = allocateSlot((Capabilities) command.getParameters().get("desiredCapabilities"));
+        } catch (Exception ex) {
+          throw Throwables.propagate(ex);
+        }
+      }
+    }
+
+    if (NEW_SESSION.equals(command.getName())) {
+      command = withClientId(command, clientId);
     }
 
     Response res;
     try {
-      res = sendCommand(command);
+      res = sendCommands(Collections.singletonList(command)).get(0);
     } catch (Exception ex) {
       throw Throwables.propagate(ex);
     }
@@ -73,32 +146,107 @@ public class CuratorCommandExecutor implements CommandExecutor {
       }
     } else if (QUIT.equals(command.getName())) {
       if (res.getStatus() == ErrorCodes.SUCCESS) {
-        sessionId = null;
+        sessionClosed();
       }
     }
 
     return res;
   }
 
-  private SlotInfo allocateSlot(final Capabilities capabilities) throws Exception {
-    DistributedBarrier barrier = curator.createBarrier(clientPath(clientId));
+  /**
+   * Sends several commands of the current session at once, without waiting a round trip for each.
+   * The node executes them in order, the responses are in the order of the commands.
+   */
+  public List<Response> pipeline(List<Command> commands) throws IOException {
+    if (sessionId == null) {
+      throw new SessionNotFoundException("Session ID is null. Using WebDriver after calling quit()?");
+    }
+    for (Command command : commands) {
+      if (NEW_SESSION.equals(command.getName())) {
+        throw new IllegalArgumentException("A new session can't be pipelined");
+      }
+    }
+    List<Response> responses;
+    try {
+      responses = sendCommands(commands);
+    } catch (Exception ex) {
+      throw Throwables.propagate(ex);
+    }
+    for (int i = 0; i < commands.size(); i++) {
+      if (QUIT.equals(commands.get(i).getName()) && responses.get(i).getStatus() == ErrorCodes.SUCCESS) {
+        sessionClosed();
+      }
+    }
+    return responses;
+  }
 
-    DistributedQueue<Capabilities> queue = QueueBuilder.builder(
-        curator.getClient(), null, new CapabilitiesSerializer(), "/newSessionRequests").buildQueue();
-    queue.start();
-    DesiredCapabilities capabilitiesCopy = new DesiredCapabilities(capabilities);
-    capabilitiesCopy.setCapability("zk-grid.clientId", clientId);
-    queue.put(capabilitiesCopy);
+  /**
+   * Adds the client id to the desired capabilities, so the node can check the slot is reserved for the client.
+   */
+  @SuppressWarnings("unchecked")
+  static Command withClientId(Command command, String clientId) {
+    Object desired = command.getParameters().get("desiredCapabilities");
+    DesiredCapabilities capabilities = new DesiredCapabilities();
+    if (desired instanceof Capabilities) {
+      capabilities = new DesiredCapabilities((Capabilities) desired);
+    } else if (desired instanceof Map) {
+      capabilities = new DesiredCapabilities((Map<String, ?>) desired);
+    }
+    capabilities.setCapability(RequestCapabilities.CLIENT_ID, clientId);
+    Map<String, Object> parameters = Maps.newHashMap(command.getParameters());
+    parameters.put("desiredCapabilities", capabilities);
+    return new Command(command.getSessionId(), command.getName(), parameters);
+  }
 
-    if (! barrier.waitOnBarrier(10, TimeUnit.SECONDS)) {
-      throw new Error("Slot allocation timeout");
+  private void sessionClosed() {
+    sessionId = null;
+    close();
+  }
+
+  /**
+   * Releases the connections of the executor, a new session acquires them again.
+   */
+  public void close() {
+    if (connection != null) {
+      connection.close();
+      connection = null;
+    }
+    if (curator != null) {
+      CuratorPool.release(curator);
+      curator = null;
     }
+  }
+
+  private SlotInfo allocateSlot(final Capabilities capabilities) throws Exception {
+    SlotAllocationResponse response;
+    try {
+      DistributedBarrier barrier = curator.createBarrier(clientPath(clientId));
+      curator.create(clientAllocatedSlotPath(clientId));
+      curator.createEphemeral(clientOwnerPath(clientId));
 
-    SlotAllocationResponse response = new JsonToBeanConverter().convert(
-        SlotAllocationResponse.class, curator.getDataForPath(clientAllocatedSlotPath(clientId)));
+      DistributedQueue<Capabilities> queue = CuratorPool.queue(
+          curator, newSessionRequestsPath(SessionRequestPartition.of(capabilities)));
+      DesiredCapabilities capabilitiesCopy = new DesiredCapabilities(capabilities);
+      capabilitiesCopy.setCapability(RequestCapabilities.CLIENT_ID, clientId);
+      // the hub drops the request if it reaches the request after the client has given up
+      long timeout = slotWaitTimeout + ALLOCATION_TIMEOUT;
+      capabilitiesCopy.setCapability(RequestCapabilities.DEADLINE, System.currentTimeMillis() + timeout);
+      queue.put(capabilitiesCopy);
+
+      if (! barrier.waitOnBarrier(timeout, TimeUnit.MILLISECONDS)) {
+        throw new Error("Slot allocation timeout");
+      }
+
+      response = WireFormat.decodeAllocationResponse(
+          curator.getClient().getData().forPath(clientAllocatedSlotPath(clientId)));
+    } finally {
+      // the pooled session outlives the executor, the owner znode would keep the abandoned request alive
+      curator.deleteQuietly(clientPath(clientId));
+    }
 
     if (response.getStatus() == SlotAllocationResponse.Status.OK) {
       slot = response.getSlotInfo();
+      slot.setOwner(clientId);
       log.info("Slot allocated " + response.getSlotInfo());
       return slot;
     } else {
@@ -106,19 +254,107 @@ public class CuratorCommandExecutor implements CommandExecutor {
     }
   }
 
-  private Response sendCommand(Command command) throws Exception {
-    log.info("Sending command " + command);
-    DistributedBarrier barrier = curator.createBarrier(nodeSlotPath(slot));
+  /**
+   * Sends the commands one after another without waiting for the responses, the node executes them in order.
+   */
+  private List<Response> sendCommands(List<Command> commands) throws Exception {
+    for (Command command : commands) {
+      log.info("Sending command " + command);
+    }
+
+    List<byte[]> responses = Lists.newArrayList();
+    DirectConnection direct = connect();
+    // the frames carry JSON text
+    List<String> requests = Lists.newArrayList();
+    if (direct != null) {
+      int maxFrameSize = Frames.getMaxFrameSize(slot);
+      for (Command command : commands) {
+        byte[] request = WireFormat.encode(command, false);
+        if (request.length > maxFrameSize) {
+          // the node does not take it directly, e.g. a file upload
+          direct = null;
+          break;
+        }
+        requests.add(new String(request, Charsets.UTF_8));
+      }
+    }
+    if (direct != null) {
+      try {
+        for (String response : direct.send(slot.getSlotId(), clientId, requests)) {
+          responses.add(response.getBytes(Charsets.UTF_8));
+        }
+      } catch (IOException ex) {
+        // the commands may have been executed, they can't be safely sent again
+        direct.close();
+        connection = null;
+        throw new WebDriverException("Connection to the node " + direct.getEndpoint() + " is broken", ex);
+      }
+    } else {
+      boolean binary = WireFormat.supportsBinary(slot);
+      List<String> commandPaths = Lists.newArrayList();
+      for (Command command : commands) {
+        byte[] payload = PayloadCompression.compress(WireFormat.encode(command, binary), compressionThreshold);
+        commandPaths.add(ChunkedPayload.createSequential(
+            curator, nodeSlotCommandPrefix(slot), payload, payloadChunkSize));
+      }
+      for (String commandPath : commandPaths) {
+        responses.add(awaitResponse(nodeSlotResponsePath(slot, commandPath)));
+      }
+    }
 
-    curator.setData(nodeSlotCommandPath(slot), new BeanToJsonConverter().convert(command));
+    List<Response> result = Lists.newArrayList();
+    for (byte[] response : responses) {
+      Response res = WireFormat.decodeResponse(response);
+      log.info("Response is " + res);
+      result.add(res);
+    }
+    return result;
+  }
 
-    if (! barrier.waitOnBarrier(120, TimeUnit.SECONDS)) {
-      throw new Error("Command execution timeout");
+  private byte[] awaitResponse(String responsePath) throws Exception {
+    long deadline = System.currentTimeMillis() + COMMAND_TIMEOUT;
+    while (true) {
+      final CountDownLatch changed = new CountDownLatch(1);
+      CuratorWatcher watcher = new CuratorWatcher() {
+        @Override
+        public void process(WatchedEvent event) {
+          changed.countDown();
+        }
+      };
+      if (curator.getClient().checkExists().usingWatcher(watcher).forPath(responsePath) != null) {
+        byte[] data = curator.getClient().getData().usingWatcher(watcher).forPath(responsePath);
+        // a chunked response is complete when it gets its header
+        if (data.length > 0) {
+          byte[] response = ChunkedPayload.read(curator, responsePath, data);
+          curator.delete(responsePath);
+          return response;
+        }
+      }
+      long timeout = deadline - System.currentTimeMillis();
+      if (timeout <= 0 || !changed.await(timeout, TimeUnit.MILLISECONDS)) {
+        throw new Error("Command execution timeout");
+      }
     }
+  }
 
-    Response res = new JsonToBeanConverter().convert(Response.class, curator.getDataForPath(nodeSlotResponsePath(slot)));
-    log.info("Response is " + res);
-    return res;
+  /**
+   * @return the connection to the node of the slot, null if the node has no endpoint or can't be reached
+   */
+  private DirectConnection connect() {
+    Object endpoint = slot.getCapabilities() != null ? slot.getCapabilities().getCapability(Frames.ENDPOINT) : null;
+    if (connection != null && !connection.getEndpoint().equals(endpoint)) {
+      connection.close();
+      connection = null;
+    }
+    if (connection == null && endpoint != null && !endpoint.equals(unreachableEndpoint)) {
+      try {
+        connection = new DirectConnection(endpoint.toString(), (int) COMMAND_TIMEOUT);
+      } catch (IOException ex) {
+        unreachableEndpoint = endpoint;
+        log.warn("Can't connect to the node at {}, sending commands through ZooKeeper: {}", endpoint, ex.getMessage());
+      }
+    }
+    return connection;
   }
 
 }
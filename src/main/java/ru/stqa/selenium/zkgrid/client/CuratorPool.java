@@ -0,0 +1,105 @@
+package ru.stqa.selenium.zkgrid.client;
+
+import com.google.common.collect.Maps;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.queue.DistributedQueue;
+import org.apache.curator.framework.recipes.queue.QueueBuilder;
+import org.openqa.selenium.Capabilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.stqa.selenium.zkgrid.common.CapabilitiesSerializer;
+import ru.stqa.selenium.zkgrid.common.Curator;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Connections to the grid shared by all the clients of the process, one ZooKeeper session
+ * per connection string however many executors use it. The connection is closed
+ * when the last client releases it.
+ */
+class CuratorPool {
+
+  private static Logger log = LoggerFactory.getLogger(CuratorPool.class);
+
+  private static final Map<String, Entry> entries = Maps.newHashMap();
+
+  private static class Entry {
+    private final String connectionString;
+    private final Curator curator;
+    private int references;
+    // producers of the new session request queues, valid for the client they were built with
+    private final Map<String, DistributedQueue<Capabilities>> queues = Maps.newHashMap();
+    private CuratorFramework queuesClient;
+
+    private Entry(String connectionString, Curator curator) {
+      this.connectionString = connectionString;
+      this.curator = curator;
+    }
+
+    private void closeQueues() {
+      for (DistributedQueue<Capabilities> queue : queues.values()) {
+        try {
+          queue.close();
+        } catch (IOException ex) {
+          log.warn("Can't close queue producer", ex);
+        }
+      }
+      queues.clear();
+    }
+  }
+
+  static synchronized Curator acquire(String connectionString) {
+    Entry entry = entries.get(connectionString);
+    if (entry == null) {
+      Curator curator = Curator.createCurator(connectionString, log);
+      curator.start();
+      entry = new Entry(connectionString, curator);
+      entries.put(connectionString, entry);
+    }
+    entry.references++;
+    return entry.curator;
+  }
+
+  static synchronized void release(Curator curator) {
+    Entry entry = find(curator);
+    if (entry == null || --entry.references > 0) {
+      return;
+    }
+    entries.remove(entry.connectionString);
+    entry.closeQueues();
+    entry.curator.getClient().close();
+    log.info("Connection to {} closed", entry.connectionString);
+  }
+
+  /**
+   * @return a started producer of the queue, shared by the clients of the connection
+   */
+  static synchronized DistributedQueue<Capabilities> queue(Curator curator, String path) throws Exception {
+    Entry entry = find(curator);
+    if (entry == null) {
+      throw new IllegalStateException("The connection is not acquired from the pool");
+    }
+    // the client is replaced when the session is lost
+    if (entry.queuesClient != curator.getClient()) {
+      entry.closeQueues();
+      entry.queuesClient = curator.getClient();
+    }
+    DistributedQueue<Capabilities> queue = entry.queues.get(path);
+    if (queue == null) {
+      queue = QueueBuilder.builder(curator.getClient(), null, new CapabilitiesSerializer(), path).buildQueue();
+      queue.start();
+      entry.queues.put(path, queue);
+    }
+    return queue;
+  }
+
+  private static Entry find(Curator curator) {
+    for (Entry entry : entries.values()) {
+      if (entry.curator == curator) {
+        return entry;
+      }
+    }
+    return null;
+  }
+}
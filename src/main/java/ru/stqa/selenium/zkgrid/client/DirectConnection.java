@@ -0,0 +1,74 @@
+package ru.stqa.selenium.zkgrid.client;
+
+import com.google.common.collect.Lists;
+import com.google.common.net.HostAndPort;
+import ru.stqa.selenium.zkgrid.common.Frames;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * Persistent connection to the endpoint of a node, commands and responses go as frames.
+ */
+class DirectConnection {
+
+  private static final int CONNECT_TIMEOUT = 5000;
+  // the node is trusted with large responses, e.g. screenshots, only a broken length prefix is guarded against
+  private static final int MAX_RESPONSE_SIZE = 256 * 1024 * 1024;
+
+  private final String endpoint;
+  private final Socket socket;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+
+  /**
+   * @param readTimeout how long to wait for a response, in milliseconds
+   * @throws IOException if the node can't be reached, the command should go through ZooKeeper then
+   */
+  DirectConnection(String endpoint, int readTimeout) throws IOException {
+    this.endpoint = endpoint;
+    HostAndPort address = HostAndPort.fromString(endpoint);
+    socket = new Socket();
+    socket.connect(new InetSocketAddress(address.getHostText(), address.getPort()), CONNECT_TIMEOUT);
+    socket.setTcpNoDelay(true);
+    socket.setSoTimeout(readTimeout);
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+  }
+
+  String getEndpoint() {
+    return endpoint;
+  }
+
+  /**
+   * Writes all the commands before reading the responses, the node answers in the order of the commands.
+   *
+   * @throws java.net.SocketTimeoutException if a response does not come in time
+   */
+  synchronized List<String> send(String slotId, String clientId, List<String> commands) throws IOException {
+    for (String command : commands) {
+      Frames.write(out, slotId + "\n" + clientId);
+      Frames.write(out, command);
+    }
+    out.flush();
+    List<String> responses = Lists.newArrayList();
+    for (int i = 0; i < commands.size(); i++) {
+      responses.add(Frames.read(in, MAX_RESPONSE_SIZE));
+    }
+    return responses;
+  }
+
+  void close() {
+    try {
+      socket.close();
+    } catch (IOException ex) {
+      // nothing to do
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package ru.stqa.selenium.zkgrid.client;
+
+import com.google.common.collect.Lists;
+import org.apache.curator.framework.recipes.barriers.DistributedBarrier;
+import org.apache.curator.framework.recipes.queue.DistributedQueue;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.SessionNotCreatedException;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.stqa.selenium.zkgrid.common.Curator;
+import ru.stqa.selenium.zkgrid.common.RequestCapabilities;
+import ru.stqa.selenium.zkgrid.common.SessionRequestPartition;
+import ru.stqa.selenium.zkgrid.common.SlotAllocationResponse;
+import ru.stqa.selenium.zkgrid.common.SlotInfo;
+import ru.stqa.selenium.zkgrid.common.WireFormat;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static ru.stqa.selenium.zkgrid.common.PathUtils.*;
+
+/**
+ * Allocates slots for a group of sessions (e.g. the shards of a test suite) with a single request.
+ * The allocated slots are used with {@link CuratorCommandExecutor#CuratorCommandExecutor(String, SlotInfo)}.
+ */
+public class GangSlotAllocator {
+
+  private static Logger log = LoggerFactory.getLogger(GangSlotAllocator.class);
+
+  private final Curator curator;
+
+  public GangSlotAllocator(String connectionString) {
+    curator = CuratorPool.acquire(connectionString);
+  }
+
+  /**
+   * Allocates slots for all the members or none of them.
+   */
+  public List<SlotInfo> allocate(List<Capabilities> members, long slotWaitTimeout, TimeUnit timeUnit) throws Exception {
+    return allocate(members, members.size(), slotWaitTimeout, timeUnit);
+  }
+
+  /**
+   * Allocates slots if at least the minimum number of members can be placed.
+   *
+   * @param slotWaitTimeout how long the hub should keep the request waiting
+   *                        if there are not enough free slots
+   * @return the slots in the order of the members, null for the members that got no slot
+   */
+  public List<SlotInfo> allocate(List<Capabilities> members, int minimum, long slotWaitTimeout, TimeUnit timeUnit)
+      throws Exception {
+    String clientId = UUID.randomUUID().toString();
+    SlotAllocationResponse response;
+    try {
+      DistributedBarrier barrier = curator.createBarrier(clientPath(clientId));
+      curator.create(clientAllocatedSlotPath(clientId));
+      curator.createEphemeral(clientOwnerPath(clientId));
+
+      List<Object> memberCapabilities = Lists.newArrayList();
+      for (Capabilities member : members) {
+        memberCapabilities.add(member.asMap());
+      }
+      DesiredCapabilities request = new DesiredCapabilities();
+      request.setCapability(RequestCapabilities.CLIENT_ID, clientId);
+      request.setCapability(RequestCapabilities.GANG_MEMBERS, memberCapabilities);
+      request.setCapability(RequestCapabilities.GANG_MINIMUM, minimum);
+      if (!members.isEmpty() && members.get(0).getCapability(RequestCapabilities.TENANT) != null) {
+        request.setCapability(RequestCapabilities.TENANT, members.get(0).getCapability(RequestCapabilities.TENANT));
+      }
+      long timeout = timeUnit.toMillis(slotWaitTimeout) + CuratorCommandExecutor.ALLOCATION_TIMEOUT;
+      request.setCapability(RequestCapabilities.DEADLINE, System.currentTimeMillis() + timeout);
+
+      DistributedQueue<Capabilities> queue = CuratorPool.queue(
+          curator, newSessionRequestsPath(SessionRequestPartition.of(request)));
+      queue.put(request);
+
+      if (! barrier.waitOnBarrier(timeout, TimeUnit.MILLISECONDS)) {
+        throw new Error("Slot allocation timeout");
+      }
+
+      response = WireFormat.decodeAllocationResponse(
+          curator.getClient().getData().forPath(clientAllocatedSlotPath(clientId)));
+    } finally {
+      // the pooled session outlives the allocator, the owner znode would keep the abandoned request alive
+      curator.deleteQuietly(clientPath(clientId));
+    }
+
+    if (response.getStatus() != SlotAllocationResponse.Status.OK) {
+      throw new SessionNotCreatedException(response.getMessage());
+    }
+
+    List<SlotInfo> slots = response.getSlots();
+    for (SlotInfo slot : slots) {
+      if (slot != null) {
+        // the node lets only the owner of the reservation start a session
+        slot.setOwner(clientId);
+      }
+    }
+    log.info("Slots allocated " + slots);
+    return slots;
+  }
+
+  public void close() {
+    CuratorPool.release(curator);
+  }
+}
@@ -2,18 +2,16 @@ package ru.stqa.selenium.zkgrid.common;
 
 import org.apache.curator.framework.recipes.queue.QueueSerializer;
 import org.openqa.selenium.Capabilities;
-import org.openqa.selenium.remote.BeanToJsonConverter;
-import org.openqa.selenium.remote.JsonToBeanConverter;
 
 public class CapabilitiesSerializer implements QueueSerializer<Capabilities> {
 
   @Override
   public byte[] serialize(Capabilities capabilities) {
-    return new BeanToJsonConverter().convert(capabilities).getBytes();
+    return PayloadCompression.compress(WireFormat.encode(capabilities), PayloadCompression.DEFAULT_THRESHOLD);
   }
 
   @Override
   public Capabilities deserialize(byte[] bytes) {
-    return new JsonToBeanConverter().convert(Capabilities.class, new String(bytes));
+    return WireFormat.decodeCapabilities(PayloadCompression.decompress(bytes));
   }
 }
@@ -0,0 +1,140 @@
+package ru.stqa.selenium.zkgrid.common;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Transfers payloads larger than a znode can hold (jute.maxbuffer, 1 MB by default).
+ *
+ * A payload above the chunk size is written as sequential chunk znodes under the payload znode,
+ * then the payload znode gets a short header, so the watchers of the payload znode are notified
+ * when all the chunks are in place. The payload znode stays empty until then, readers wait for non-empty data.
+ * Smaller payloads are written to the payload znode as is.
+ */
+public class ChunkedPayload {
+
+  private static Logger log = LoggerFactory.getLogger(ChunkedPayload.class);
+
+  public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+
+  private static final String HEADER = "zk-grid.chunks ";
+  private static final String CHUNK = "chunk-";
+
+  public static void write(Curator curator, String path, byte[] data, int chunkSize) throws Exception {
+    CuratorFramework client = curator.getClient();
+    deleteChunks(client, path);
+    if (data.length <= chunkSize) {
+      if (curator.checkExists(path)) {
+        client.setData().forPath(path, data);
+      } else {
+        client.create().creatingParentsIfNeeded().forPath(path, data);
+      }
+      return;
+    }
+    long start = System.currentTimeMillis();
+    // empty until the header is written, curator would put the local address into a new znode
+    if (curator.checkExists(path)) {
+      client.setData().forPath(path, new byte[0]);
+    } else {
+      client.create().creatingParentsIfNeeded().forPath(path, new byte[0]);
+    }
+    writeChunks(client, path, data, chunkSize, start);
+  }
+
+  /**
+   * Writes the payload to a new sequential znode. A chunked payload znode is created empty
+   * and gets its header when all the chunks are written, readers wait for non-empty data.
+   *
+   * @return the path of the created znode
+   */
+  public static String createSequential(Curator curator, String pathPrefix, byte[] data, int chunkSize)
+      throws Exception {
+    CuratorFramework client = curator.getClient();
+    if (data.length <= chunkSize) {
+      return client.create().creatingParentsIfNeeded().withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+          .forPath(pathPrefix, data);
+    }
+    long start = System.currentTimeMillis();
+    String path = client.create().creatingParentsIfNeeded().withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+        .forPath(pathPrefix, new byte[0]);
+    writeChunks(client, path, data, chunkSize, start);
+    return path;
+  }
+
+  private static void writeChunks(CuratorFramework client, String path, byte[] data, int chunkSize, long start)
+      throws Exception {
+    int chunks = 0;
+    for (int offset = 0; offset < data.length; offset += chunkSize) {
+      client.create().withMode(CreateMode.PERSISTENT_SEQUENTIAL).forPath(path + "/" + CHUNK,
+          Arrays.copyOfRange(data, offset, Math.min(offset + chunkSize, data.length)));
+      chunks++;
+    }
+    client.setData().forPath(path, (HEADER + chunks + " " + data.length).getBytes());
+    log.info("{} bytes written to {} in {} chunks in {} ms",
+        data.length, path, chunks, System.currentTimeMillis() - start);
+  }
+
+  public static byte[] read(Curator curator, String path) throws Exception {
+    return read(curator, path, curator.getClient().getData().forPath(path));
+  }
+
+  /**
+   * @param data the data of the payload znode, e.g. from a cache
+   * @return the payload, inflated if it was written compressed
+   */
+  public static byte[] read(Curator curator, String path, byte[] data) throws Exception {
+    String header = new String(data, 0, Math.min(data.length, HEADER.length()));
+    if (!HEADER.equals(header)) {
+      return PayloadCompression.decompress(data);
+    }
+    long start = System.currentTimeMillis();
+    String[] counts = new String(data, HEADER.length(), data.length - HEADER.length()).trim().split(" ");
+    int expectedChunks = Integer.parseInt(counts[0]);
+    int length = Integer.parseInt(counts[1]);
+
+    CuratorFramework client = curator.getClient();
+    List<String> chunks = client.getChildren().forPath(path);
+    Collections.sort(chunks);
+    ByteArrayOutputStream payload = new ByteArrayOutputStream(length);
+    int read = 0;
+    for (String chunk : chunks) {
+      if (chunk.startsWith(CHUNK)) {
+        payload.write(client.getData().forPath(path + "/" + chunk));
+        read++;
+      }
+    }
+    if (read != expectedChunks || payload.size() != length) {
+      throw new IllegalStateException("Incomplete payload at " + path + ": " + read + " of " + expectedChunks
+          + " chunks, " + payload.size() + " of " + length + " bytes");
+    }
+    log.info("{} bytes read from {} in {} chunks in {} ms",
+        length, path, read, System.currentTimeMillis() - start);
+    return PayloadCompression.decompress(payload.toByteArray());
+  }
+
+  public static void deleteChunks(CuratorFramework client, String path) throws Exception {
+    List<String> children;
+    try {
+      children = client.getChildren().forPath(path);
+    } catch (KeeperException.NoNodeException ex) {
+      return;
+    }
+    for (String chunk : children) {
+      if (chunk.startsWith(CHUNK)) {
+        try {
+          client.delete().forPath(path + "/" + chunk);
+        } catch (KeeperException.NoNodeException ex) {
+          // deleted concurrently
+        }
+      }
+    }
+  }
+}
@@ -1,40 +1,73 @@
 package ru.stqa.selenium.zkgrid.common;
 
 import com.google.common.collect.Lists;
-import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.recipes.barriers.DistributedBarrier;
 import org.apache.curator.framework.state.ConnectionState;
 import org.apache.curator.framework.state.ConnectionStateListener;
 import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.slf4j.Logger;
 
 import java.util.List;
 
 public class Curator {
 
+  private static final int CONNECTION_TIMEOUT = 15000;
+
   public static Curator createCurator(String connectionString, Logger log) {
     Curator curator = new Curator(connectionString, log);
     return curator;
   }
 
+  /**
+   * @param sessionTimeout ZooKeeper session timeout in milliseconds, ephemeral znodes of the client
+   *                       disappear this long after the client stops responding
+   */
+  public static Curator createCurator(String connectionString, int sessionTimeout, Logger log) {
+    Curator curator = new Curator(connectionString, log);
+    curator.sessionTimeout = sessionTimeout;
+    return curator;
+  }
+
   private Logger log;
   private String connectionString;
+  private String namespace;
+  private int sessionTimeout;
   private CuratorFramework client;
   private List<CuratorStateListener> listeners = Lists.newArrayList();
 
+  /**
+   * @param connectionString host:port list of the ZooKeeper ensemble, optionally followed by /namespace
+   *                         to share the ensemble between several grids, e.g. zk1:2181,zk2:2181/grid1
+   */
   public Curator(String connectionString, Logger log) {
-    this.connectionString = connectionString;
+    int namespaceStart = connectionString.indexOf('/');
+    if (namespaceStart >= 0) {
+      this.connectionString = connectionString.substring(0, namespaceStart);
+      this.namespace = connectionString.substring(namespaceStart + 1);
+    } else {
+      this.connectionString = connectionString;
+    }
     this.log = log;
   }
 
   public void start() {
-    RetryPolicy retryPolicy = new ExponentialBackoffRetry(1000, 3);
-    client = CuratorFrameworkFactory.newClient(connectionString, retryPolicy);
+    CuratorFrameworkFactory.Builder builder = CuratorFrameworkFactory.builder()
+        .connectString(connectionString)
+        .retryPolicy(new ExponentialBackoffRetry(1000, 3));
+    if (sessionTimeout > 0) {
+      builder.sessionTimeoutMs(sessionTimeout).connectionTimeoutMs(CONNECTION_TIMEOUT);
+    }
+    if (namespace != null && !namespace.isEmpty()) {
+      builder.namespace(namespace);
+    }
+    client = builder.build();
     client.getConnectionStateListenable().addListener(new CuratorConnectionListener());
     client.start();
-    log.info("Curator started");
+    log.info("Curator started, namespace {}", namespace);
   }
 
   public CuratorFramework getClient() {
@@ -55,20 +88,41 @@ public class Curator {
     }
   }
 
+  public void createEphemeral(String path) throws Exception {
+    client.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(path);
+  }
+
   public void delete(String path) throws Exception {
     client.delete().deletingChildrenIfNeeded().forPath(path);
   }
 
+  /**
+   * Deletes the path if it is still there, to be called from the finally blocks, a failure is only logged.
+   */
+  public void deleteQuietly(String path) {
+    try {
+      client.delete().deletingChildrenIfNeeded().forPath(path);
+    } catch (KeeperException.NoNodeException ex) {
+      // already deleted
+    } catch (Exception ex) {
+      log.warn("Can't delete " + path, ex);
+    }
+  }
+
   public void setData(String path, String data) throws Exception {
+    setData(path, data.getBytes());
+  }
+
+  public void setData(String path, byte[] data) throws Exception {
     if (checkExists(path)) {
-      client.setData().forPath(path, data.getBytes());
+      client.setData().forPath(path, data);
     } else {
-      client.create().creatingParentsIfNeeded().forPath(path, data.getBytes());
+      client.create().creatingParentsIfNeeded().forPath(path, data);
     }
   }
 
   public DistributedBarrier createBarrier(String parent) throws Exception {
-    String barrierPath = parent + "/barrier";
+    String barrierPath = PathUtils.barrierPath(parent);
     client.create().creatingParentsIfNeeded().forPath(barrierPath);
     DistributedBarrier barrier = new DistributedBarrier(client, barrierPath);
     barrier.setBarrier();
@@ -76,7 +130,7 @@ public class Curator {
   }
 
   public void clearBarrier(String parent) throws Exception {
-    String barrierPath = parent + "/barrier";
+    String barrierPath = PathUtils.barrierPath(parent);
     new DistributedBarrier(client, barrierPath).removeBarrier();
   }
 
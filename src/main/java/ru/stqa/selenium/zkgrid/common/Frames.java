@@ -0,0 +1,69 @@
+package ru.stqa.selenium.zkgrid.common;
+
+import com.google.common.base.Charsets;
+import org.openqa.selenium.Capabilities;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Framing of the direct client to node connections: every message is a 4 byte length followed by UTF-8 text.
+ * A request is two frames: the header with the slot id and the client id separated by a line break,
+ * then the command JSON. A response is a single frame with the response JSON.
+ * The node checks the header before it takes the command, and takes no command larger than its limit.
+ */
+public class Frames {
+
+  public static final int MAX_HEADER_SIZE = 1024;
+  public static final int DEFAULT_MAX_FRAME_SIZE = 4 * 1024 * 1024;
+
+  /**
+   * Slot capability with the host:port the node accepts direct connections at.
+   */
+  public static final String ENDPOINT = "zk-grid.endpoint";
+
+  /**
+   * Slot capability with the largest command frame the node accepts, larger commands go through ZooKeeper.
+   */
+  public static final String MAX_FRAME_SIZE = "zk-grid.endpointMaxFrame";
+
+  public static int getMaxFrameSize(SlotInfo slot) {
+    Capabilities capabilities = slot.getCapabilities();
+    Object maxFrameSize = capabilities != null ? capabilities.getCapability(MAX_FRAME_SIZE) : null;
+    return maxFrameSize instanceof Number ? ((Number) maxFrameSize).intValue() : DEFAULT_MAX_FRAME_SIZE;
+  }
+
+  public static ByteBuffer encode(byte[] data) {
+    ByteBuffer frame = ByteBuffer.allocate(4 + data.length);
+    frame.putInt(data.length).put(data);
+    frame.flip();
+    return frame;
+  }
+
+  public static int checkLength(int length, int maxLength) throws IOException {
+    if (length < 0 || length > maxLength) {
+      throw new IOException("Bad frame length " + length + ", the limit is " + maxLength);
+    }
+    return length;
+  }
+
+  /**
+   * Writes a frame to a blocking stream, the caller flushes it.
+   */
+  public static void write(DataOutputStream out, String message) throws IOException {
+    byte[] data = message.getBytes(Charsets.UTF_8);
+    out.writeInt(data.length);
+    out.write(data);
+  }
+
+  /**
+   * Reads a frame from a blocking stream, the read timeout of the socket applies.
+   */
+  public static String read(DataInputStream in, int maxLength) throws IOException {
+    byte[] data = new byte[checkLength(in.readInt(), maxLength)];
+    in.readFully(data);
+    return new String(data, Charsets.UTF_8);
+  }
+}
@@ -0,0 +1,97 @@
+package ru.stqa.selenium.zkgrid.common;
+
+import com.google.gson.Gson;
+
+/**
+ * Load record a node publishes in its liveness znode.
+ */
+public class NodeLoad {
+
+  private long timestamp;
+  // system load average per processor, negative if the platform does not provide it
+  private double cpuLoad = -1;
+  // free physical memory in bytes, negative if unknown
+  private long freeMemory = -1;
+  private int activeSessions;
+  // average time to start a browser in milliseconds
+  private long browserLaunchTime;
+
+  public NodeLoad() {
+  }
+
+  public NodeLoad(long timestamp) {
+    this.timestamp = timestamp;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public void setTimestamp(long timestamp) {
+    this.timestamp = timestamp;
+  }
+
+  public double getCpuLoad() {
+    return cpuLoad;
+  }
+
+  public void setCpuLoad(double cpuLoad) {
+    this.cpuLoad = cpuLoad;
+  }
+
+  public long getFreeMemory() {
+    return freeMemory;
+  }
+
+  public void setFreeMemory(long freeMemory) {
+    this.freeMemory = freeMemory;
+  }
+
+  public int getActiveSessions() {
+    return activeSessions;
+  }
+
+  public void setActiveSessions(int activeSessions) {
+    this.activeSessions = activeSessions;
+  }
+
+  public long getBrowserLaunchTime() {
+    return browserLaunchTime;
+  }
+
+  public void setBrowserLaunchTime(long browserLaunchTime) {
+    this.browserLaunchTime = browserLaunchTime;
+  }
+
+  /**
+   * @return true if the load has changed enough to be worth publishing
+   */
+  public boolean differsSignificantly(NodeLoad other) {
+    return other == null
+        || activeSessions != other.activeSessions
+        || Math.abs(cpuLoad - other.cpuLoad) > 0.1
+        || Math.abs(freeMemory - other.freeMemory) > Math.abs(other.freeMemory) / 10
+        || Math.abs(browserLaunchTime - other.browserLaunchTime) > other.browserLaunchTime / 5;
+  }
+
+  public String toJson() {
+    return new Gson().toJson(this);
+  }
+
+  /**
+   * Parses the load, nodes of older versions send a bare timestamp.
+   */
+  public static NodeLoad fromJson(String data) {
+    String trimmed = data.trim();
+    if (!trimmed.startsWith("{")) {
+      return new NodeLoad(Long.parseLong(trimmed));
+    }
+    return new Gson().fromJson(trimmed, NodeLoad.class);
+  }
+
+  @Override
+  public String toString() {
+    return "{cpuLoad=" + cpuLoad + ", freeMemory=" + freeMemory + ", activeSessions=" + activeSessions
+        + ", browserLaunchTime=" + browserLaunchTime + "}";
+  }
+}
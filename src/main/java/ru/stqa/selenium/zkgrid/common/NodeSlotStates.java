@@ -0,0 +1,130 @@
+package ru.stqa.selenium.zkgrid.common;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * States of all the slots of a node, published by the node in one znode.
+ *
+ * Encoded as the format byte, the number of slots, the slot ids in their natural order,
+ * a bitmap of the busy slots and the slot state znode version of every slot,
+ * so the hub keeps one watch per node and applies only the slots whose version has moved forward.
+ */
+public class NodeSlotStates {
+
+  private static final byte FORMAT = 1;
+
+  private final SortedMap<String, Entry> slots = Maps.newTreeMap();
+
+  private static class Entry {
+    private final boolean busy;
+    private final int version;
+
+    private Entry(boolean busy, int version) {
+      this.busy = busy;
+      this.version = version;
+    }
+  }
+
+  /**
+   * @return false if a newer version of the slot state is known already
+   */
+  public boolean set(String slotId, boolean busy, int version) {
+    Entry current = slots.get(slotId);
+    if (current != null && current.version > version) {
+      return false;
+    }
+    slots.put(slotId, new Entry(busy, version));
+    return true;
+  }
+
+  public Set<String> getSlotIds() {
+    return slots.keySet();
+  }
+
+  public boolean isBusy(String slotId) {
+    Entry entry = slots.get(slotId);
+    return entry != null && entry.busy;
+  }
+
+  /**
+   * @return the slot state znode version, -1 if the slot is unknown
+   */
+  public int getVersion(String slotId) {
+    Entry entry = slots.get(slotId);
+    return entry != null ? entry.version : -1;
+  }
+
+  public byte[] toBytes() {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(FORMAT);
+      out.writeShort(slots.size());
+      for (String slotId : slots.keySet()) {
+        out.writeUTF(slotId);
+      }
+      byte[] bitmap = new byte[(slots.size() + 7) / 8];
+      int i = 0;
+      for (Entry entry : slots.values()) {
+        if (entry.busy) {
+          bitmap[i / 8] |= 1 << (i % 8);
+        }
+        i++;
+      }
+      out.write(bitmap);
+      for (Entry entry : slots.values()) {
+        out.writeInt(entry.version);
+      }
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException ex) {
+      throw Throwables.propagate(ex);
+    }
+  }
+
+  public static NodeSlotStates fromBytes(byte[] data) {
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+      byte format = in.readByte();
+      if (format != FORMAT) {
+        throw new IllegalArgumentException("Unknown slot states format " + format);
+      }
+      String[] slotIds = new String[in.readUnsignedShort()];
+      for (int i = 0; i < slotIds.length; i++) {
+        slotIds[i] = in.readUTF();
+      }
+      byte[] bitmap = new byte[(slotIds.length + 7) / 8];
+      in.readFully(bitmap);
+      NodeSlotStates states = new NodeSlotStates();
+      for (int i = 0; i < slotIds.length; i++) {
+        states.set(slotIds[i], (bitmap[i / 8] & (1 << (i % 8))) != 0, in.readInt());
+      }
+      return states;
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Malformed slot states", ex);
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder("{");
+    for (Map.Entry<String, Entry> slot : slots.entrySet()) {
+      if (result.length() > 1) {
+        result.append(", ");
+      }
+      result.append(slot.getKey()).append('=').append(slot.getValue().busy ? SlotState.BUSY : SlotState.FREE)
+          .append('@').append(slot.getValue().version);
+    }
+    return result.append('}').toString();
+  }
+}
@@ -6,18 +6,42 @@ public class PathUtils {
     return "/hub";
   }
 
-  public static String nodePath(String nodeId) {
-    return nodePath(nodeId, "");
+  public static String hubLeaderPath() {
+    return hubPath() + "/leader";
+  }
+
+  public static String nodesPath() {
+    return "/nodes";
+  }
+
+  public static String aliveNodesPath() {
+    return "/alive";
+  }
+
+  public static String nodeAlivePath(String nodeId) {
+    return aliveNodesPath() + "/" + nodeId;
   }
 
-  public static String nodeHeartBeatPath(String nodeId) {
-    return nodePath(nodeId, "/heartbeat");
+  public static String newSessionRequestsPath() {
+    return "/newSessionRequests";
+  }
+
+  public static String newSessionRequestsPath(String partition) {
+    return newSessionRequestsPath() + "/" + partition;
+  }
+
+  public static String nodePath(String nodeId) {
+    return nodePath(nodeId, "");
   }
 
   public static String nodeSlotsPath(String nodeId) {
     return nodePath(nodeId, "/slots");
   }
 
+  public static String nodeSlotStatesPath(String nodeId) {
+    return nodePath(nodeId, "/slotStates");
+  }
+
   public static String nodeSlotPath(SlotInfo slot) {
     return nodeSlotPath(slot, "");
   }
@@ -34,32 +58,69 @@ public class PathUtils {
     return nodePath(nodeId, "/slots/" + slotId + subPath);
   }
 
-  public static String nodeSlotCommandPath(SlotInfo slot) {
-    return nodeSlotPath(slot, "/command");
+  public static String nodeSlotCommandsPath(SlotInfo slot) {
+    return nodeSlotPath(slot, "/commands");
+  }
+
+  /**
+   * Prefix of the sequential command znodes.
+   */
+  public static String nodeSlotCommandPrefix(SlotInfo slot) {
+    return nodeSlotCommandsPath(slot) + "/cmd-";
+  }
+
+  public static String nodeSlotResponsesPath(SlotInfo slot) {
+    return nodeSlotPath(slot, "/responses");
   }
 
-  public static String nodeSlotResponsePath(SlotInfo slot) {
-    return nodeSlotPath(slot, "/response");
+  /**
+   * @param commandPath the path of the command the response is for
+   */
+  public static String nodeSlotResponsePath(SlotInfo slot, String commandPath) {
+    return nodeSlotResponsesPath(slot) + "/rsp-" + commandPath.substring(commandPath.lastIndexOf('-') + 1);
   }
 
   public static String nodeSlotStatePath(SlotInfo slot) {
     return nodeSlotPath(slot, "/state");
   }
 
+  public static String nodeSlotStatePath(String nodeId, String slotId) {
+    return nodeSlotPath(nodeId, slotId, "/state");
+  }
+
   public static String nodePath(String nodeId, String subPath) {
-    return "/nodes/" + nodeId + subPath;
+    return nodesPath() + "/" + nodeId + subPath;
   }
 
   public static String clientPath(String clientId) {
     return clientPath(clientId, "");
   }
 
+  public static String clientsPath() {
+    return "/client";
+  }
+
+  /**
+   * Ephemeral znode the client keeps while it waits for the response, the hub removes the client data without it.
+   */
+  public static String clientOwnerPath(String clientId) {
+    return clientPath(clientId, "/owner");
+  }
+
   public static String clientAllocatedSlotPath(String clientId) {
     return clientPath(clientId, "/slot");
   }
 
+  public static String clientBarrierPath(String clientId) {
+    return barrierPath(clientPath(clientId));
+  }
+
+  public static String barrierPath(String parent) {
+    return parent + "/barrier";
+  }
+
   public static String clientPath(String clientId, String subPath) {
-    return "/client/" + clientId + subPath;
+    return clientsPath() + "/" + clientId + subPath;
   }
 
 }
@@ -0,0 +1,168 @@
+package ru.stqa.selenium.zkgrid.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of the payloads above a size threshold, e.g. screenshots and page sources.
+ *
+ * A compressed payload starts with the format byte 2 and the original length, the readers
+ * ({@link ChunkedPayload#read}) inflate it transparently. Payloads that don't get smaller are written as is.
+ * The metrics are published over JMX as ru.stqa.selenium.zkgrid:type=PayloadCompression.
+ */
+public class PayloadCompression {
+
+  private static Logger log = LoggerFactory.getLogger(PayloadCompression.class);
+
+  public static final int DEFAULT_THRESHOLD = 16 * 1024;
+
+  private static final byte DEFLATED = 2;
+  private static final int HEADER_SIZE = 5;
+
+  private static final Metrics metrics = new Metrics();
+
+  static {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          metrics, new ObjectName("ru.stqa.selenium.zkgrid:type=PayloadCompression"));
+    } catch (Exception ex) {
+      log.warn("Can't register payload compression metrics: {}", ex.getMessage());
+    }
+  }
+
+  public static PayloadCompressionMXBean getMetrics() {
+    return metrics;
+  }
+
+  public static boolean isCompressed(byte[] data) {
+    return data.length >= HEADER_SIZE && data[0] == DEFLATED;
+  }
+
+  /**
+   * @param threshold payloads up to this size are not compressed, negative disables the compression
+   */
+  public static byte[] compress(byte[] data, int threshold) {
+    if (threshold < 0 || data.length <= threshold) {
+      return data;
+    }
+    long start = System.nanoTime();
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+    out.write(DEFLATED);
+    out.write(ByteBuffer.allocate(4).putInt(data.length).array(), 0, 4);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      byte[] buffer = new byte[64 * 1024];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+    } finally {
+      deflater.end();
+    }
+    long time = System.nanoTime() - start;
+    if (out.size() >= data.length) {
+      return data;
+    }
+    metrics.compressed(data.length, out.size(), time);
+    log.debug("{} bytes compressed to {} in {} us", data.length, out.size(), TimeUnit.NANOSECONDS.toMicros(time));
+    return out.toByteArray();
+  }
+
+  public static byte[] decompress(byte[] data) {
+    if (!isCompressed(data)) {
+      return data;
+    }
+    long start = System.nanoTime();
+    int length = ByteBuffer.wrap(data, 1, 4).getInt();
+    byte[] payload = new byte[length];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+      int read = 0;
+      while (read < length && !inflater.finished()) {
+        int inflated = inflater.inflate(payload, read, length - read);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        read += inflated;
+      }
+      if (read != length) {
+        throw new IllegalStateException("Corrupted compressed payload: " + read + " of " + length + " bytes");
+      }
+    } catch (DataFormatException ex) {
+      throw new IllegalStateException("Corrupted compressed payload", ex);
+    } finally {
+      inflater.end();
+    }
+    metrics.decompressed(System.nanoTime() - start);
+    return payload;
+  }
+
+  private static class Metrics implements PayloadCompressionMXBean {
+    private final AtomicLong compressedPayloads = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionTime = new AtomicLong();
+    private final AtomicLong decompressedPayloads = new AtomicLong();
+    private final AtomicLong decompressionTime = new AtomicLong();
+
+    private void compressed(long originalSize, long compressedSize, long nanos) {
+      compressedPayloads.incrementAndGet();
+      uncompressedBytes.addAndGet(originalSize);
+      compressedBytes.addAndGet(compressedSize);
+      compressionTime.addAndGet(nanos);
+    }
+
+    private void decompressed(long nanos) {
+      decompressedPayloads.incrementAndGet();
+      decompressionTime.addAndGet(nanos);
+    }
+
+    @Override
+    public long getCompressedPayloads() {
+      return compressedPayloads.get();
+    }
+
+    @Override
+    public long getUncompressedBytes() {
+      return uncompressedBytes.get();
+    }
+
+    @Override
+    public long getCompressedBytes() {
+      return compressedBytes.get();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+      long original = uncompressedBytes.get();
+      return original > 0 ? (double) compressedBytes.get() / original : 1;
+    }
+
+    @Override
+    public long getCompressionTimeMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(compressionTime.get());
+    }
+
+    @Override
+    public long getDecompressedPayloads() {
+      return decompressedPayloads.get();
+    }
+
+    @Override
+    public long getDecompressionTimeMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(decompressionTime.get());
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package ru.stqa.selenium.zkgrid.common;
+
+/**
+ * Compression metrics of the znode payloads written and read by this process.
+ */
+public interface PayloadCompressionMXBean {
+
+  long getCompressedPayloads();
+
+  long getUncompressedBytes();
+
+  long getCompressedBytes();
+
+  /**
+   * @return compressed size to original size of all the compressed payloads, 1 if nothing was compressed
+   */
+  double getCompressionRatio();
+
+  long getCompressionTimeMillis();
+
+  long getDecompressedPayloads();
+
+  long getDecompressionTimeMillis();
+}
@@ -0,0 +1,15 @@
+package ru.stqa.selenium.zkgrid.common;
+
+/**
+ * Capabilities the client adds to the new session and gang requests, the hub and the nodes read them.
+ */
+public class RequestCapabilities {
+
+  public static final String CLIENT_ID = "zk-grid.clientId";
+  public static final String DEADLINE = "zk-grid.deadline";
+  public static final String TENANT = "zk-grid.tenant";
+  public static final String PRIORITY = "zk-grid.priority";
+
+  public static final String GANG_MEMBERS = "zk-grid.gang";
+  public static final String GANG_MINIMUM = "zk-grid.gangMinimum";
+}
@@ -0,0 +1,30 @@
+package ru.stqa.selenium.zkgrid.common;
+
+import org.openqa.selenium.Capabilities;
+
+/**
+ * New session requests are spread over several queues by browser name,
+ * so that a burst of requests for one browser does not delay the others.
+ * Gang requests have a queue of their own.
+ */
+public class SessionRequestPartition {
+
+  public static final String ANY = "any";
+  public static final String GANG = "gang";
+
+  public static String of(Capabilities capabilities) {
+    if (capabilities.getCapability(RequestCapabilities.GANG_MEMBERS) != null) {
+      return GANG;
+    }
+    String browserName = capabilities.getBrowserName();
+    if (browserName == null || "".equals(browserName)) {
+      return ANY;
+    }
+    StringBuilder partition = new StringBuilder(browserName.length());
+    for (char c : browserName.toLowerCase().toCharArray()) {
+      partition.append(Character.isLetterOrDigit(c) ? c : '_');
+    }
+    return partition.toString();
+  }
+
+}
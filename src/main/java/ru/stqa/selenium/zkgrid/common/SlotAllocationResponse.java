@@ -1,10 +1,14 @@
 package ru.stqa.selenium.zkgrid.common;
 
+import java.util.List;
+
 public class SlotAllocationResponse {
 
   private Status status;
   private String message;
   private SlotInfo slotInfo;
+  // slots allocated to the members of a gang request in the order of the members, null if a member got no slot
+  private List<SlotInfo> slots;
 
   public SlotAllocationResponse() {
   }
@@ -19,7 +23,7 @@ public class SlotAllocationResponse {
     this.message = message;
   }
 
-  public enum Status { OK, NO_MATCHING_SLOT, NO_FREE_SLOT }
+  public enum Status { OK, NO_MATCHING_SLOT, NO_FREE_SLOT, TIMEOUT, ERROR }
 
   public Status getStatus() {
     return status;
@@ -33,6 +37,10 @@ public class SlotAllocationResponse {
     return slotInfo;
   }
 
+  public List<SlotInfo> getSlots() {
+    return slots;
+  }
+
   public void setStatus(Status status) {
     this.status = status;
   }
@@ -45,4 +53,8 @@ public class SlotAllocationResponse {
     this.slotInfo = slotInfo;
   }
 
+  public void setSlots(List<SlotInfo> slots) {
+    this.slots = slots;
+  }
+
 }
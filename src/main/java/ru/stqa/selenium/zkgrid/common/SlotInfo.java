@@ -2,13 +2,17 @@ package ru.stqa.selenium.zkgrid.common;
 
 import org.openqa.selenium.Capabilities;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class SlotInfo {
 
   private String nodeId;
   private String slotId;
   private Capabilities capabilities;
+  // client the slot is allocated to, known on the client side only
+  private String owner;
 
-  private boolean busy = false;
+  private final AtomicBoolean busy = new AtomicBoolean(false);
 
   public SlotInfo() {
   }
@@ -43,12 +47,29 @@ public class SlotInfo {
     this.capabilities = capabilities;
   }
 
+  public String getOwner() {
+    return owner;
+  }
+
+  public void setOwner(String owner) {
+    this.owner = owner;
+  }
+
   public boolean isBusy() {
-    return busy;
+    return busy.get();
   }
 
   public void setBusy(boolean busy) {
-    this.busy = busy;
+    this.busy.set(busy);
+  }
+
+  /**
+   * Atomically changes the busy flag if it has the expected value.
+   *
+   * @return true if the flag has been changed
+   */
+  public boolean compareAndSetBusy(boolean expect, boolean update) {
+    return busy.compareAndSet(expect, update);
   }
 
   @Override
@@ -0,0 +1,79 @@
+package ru.stqa.selenium.zkgrid.common;
+
+import com.google.gson.Gson;
+
+/**
+ * Content of the slot state znode. State transitions are made with versioned writes:
+ * the hub reserves a slot only at the version it has seen free, the node frees
+ * a slot only at the version of the reservation it has served.
+ */
+public class SlotState {
+
+  public static final String FREE = "free";
+  public static final String BUSY = "busy";
+
+  private String state;
+  // client the slot is reserved for, null if the slot is taken by the node itself
+  private String owner;
+  private long since;
+  // the owner should start using the slot before this moment
+  private long leaseUntil;
+
+  public SlotState() {
+  }
+
+  private SlotState(String state, String owner, long since, long leaseUntil) {
+    this.state = state;
+    this.owner = owner;
+    this.since = since;
+    this.leaseUntil = leaseUntil;
+  }
+
+  public static SlotState free() {
+    return new SlotState(FREE, null, System.currentTimeMillis(), 0);
+  }
+
+  public static SlotState busy(String owner, long leaseUntil) {
+    return new SlotState(BUSY, owner, System.currentTimeMillis(), leaseUntil);
+  }
+
+  public boolean isBusy() {
+    return BUSY.equals(state);
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public String getOwner() {
+    return owner;
+  }
+
+  public long getSince() {
+    return since;
+  }
+
+  public long getLeaseUntil() {
+    return leaseUntil;
+  }
+
+  public byte[] toBytes() {
+    return new Gson().toJson(this).getBytes();
+  }
+
+  /**
+   * Parses the state, nodes of older versions write a bare "busy" or "free".
+   */
+  public static SlotState fromBytes(byte[] data) {
+    String text = data != null ? new String(data).trim() : "";
+    if (!text.startsWith("{")) {
+      return new SlotState(BUSY.equals(text) ? BUSY : FREE, null, 0, 0);
+    }
+    return new Gson().fromJson(text, SlotState.class);
+  }
+
+  @Override
+  public String toString() {
+    return owner != null ? state + " (" + owner + ")" : state;
+  }
+}
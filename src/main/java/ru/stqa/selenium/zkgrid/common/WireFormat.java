@@ -0,0 +1,396 @@
+package ru.stqa.selenium.zkgrid.common;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.remote.BeanToJsonConverter;
+import org.openqa.selenium.remote.Command;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.openqa.selenium.remote.JsonToBeanConverter;
+import org.openqa.selenium.remote.Response;
+import org.openqa.selenium.remote.SessionId;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encoding of commands, responses, capabilities and slot allocation responses written to the znodes.
+ *
+ * A binary payload starts with the format byte and the format version, anything else is read as JSON,
+ * so the readers accept both. The values are encoded as the JSON converters would see them:
+ * integral numbers are read back as Long, fractional ones as Double, beans as maps.
+ */
+public class WireFormat {
+
+  /**
+   * Slot capability set by the nodes that read binary commands, the clients send JSON to the other ones.
+   */
+  public static final String BINARY_CAPABILITY = "zk-grid.binaryCodec";
+
+  private static final byte BINARY = 1;
+  private static final byte VERSION = 1;
+
+  private static final byte NULL = 0;
+  private static final byte FALSE = 1;
+  private static final byte TRUE = 2;
+  private static final byte LONG = 3;
+  private static final byte DOUBLE = 4;
+  private static final byte STRING = 5;
+  private static final byte LIST = 6;
+  private static final byte MAP = 7;
+
+  // the converters keep no state, so they are shared
+  private static final BeanToJsonConverter toJson = new BeanToJsonConverter();
+  private static final JsonToBeanConverter fromJson = new JsonToBeanConverter();
+
+  public static boolean isBinary(byte[] data) {
+    return data.length > 0 && data[0] == BINARY;
+  }
+
+  public static boolean supportsBinary(SlotInfo slot) {
+    Capabilities capabilities = slot.getCapabilities();
+    return capabilities != null
+        && Boolean.parseBoolean(String.valueOf(capabilities.getCapability(BINARY_CAPABILITY)));
+  }
+
+  public static byte[] encode(Command command, boolean binary) {
+    if (!binary) {
+      return toJson.convert(command).getBytes(Charsets.UTF_8);
+    }
+    Writer out = new Writer();
+    out.writeString(command.getSessionId() != null ? command.getSessionId().toString() : null);
+    out.writeString(command.getName());
+    out.writeValue(command.getParameters());
+    return out.toBytes();
+  }
+
+  @SuppressWarnings("unchecked")
+  public static Command decodeCommand(byte[] data) {
+    if (!isBinary(data)) {
+      return fromJson.convert(Command.class, new String(data, Charsets.UTF_8));
+    }
+    Reader in = new Reader(data);
+    String sessionId = in.readString();
+    String name = in.readString();
+    Map<String, ?> parameters = (Map<String, ?>) in.readValue();
+    return new Command(sessionId != null ? new SessionId(sessionId) : null, name, parameters);
+  }
+
+  public static byte[] encode(Response response, boolean binary) {
+    if (!binary) {
+      return toJson.convert(response).getBytes(Charsets.UTF_8);
+    }
+    Writer out = new Writer();
+    out.writeValue(response.getStatus());
+    out.writeString(response.getSessionId());
+    out.writeString(response.getState());
+    out.writeValue(response.getValue());
+    return out.toBytes();
+  }
+
+  public static Response decodeResponse(byte[] data) {
+    if (!isBinary(data)) {
+      return fromJson.convert(Response.class, new String(data, Charsets.UTF_8));
+    }
+    Reader in = new Reader(data);
+    Response response = new Response();
+    response.setStatus(((Long) in.readValue()).intValue());
+    response.setSessionId(in.readString());
+    response.setState(in.readString());
+    response.setValue(in.readValue());
+    return response;
+  }
+
+  public static byte[] encode(Capabilities capabilities) {
+    Writer out = new Writer();
+    out.writeValue(capabilities.asMap());
+    return out.toBytes();
+  }
+
+  @SuppressWarnings("unchecked")
+  public static Capabilities decodeCapabilities(byte[] data) {
+    if (!isBinary(data)) {
+      return fromJson.convert(Capabilities.class, new String(data, Charsets.UTF_8));
+    }
+    return new DesiredCapabilities((Map<String, ?>) new Reader(data).readValue());
+  }
+
+  public static byte[] encode(SlotAllocationResponse response) {
+    Writer out = new Writer();
+    out.writeString(response.getStatus() != null ? response.getStatus().name() : null);
+    out.writeString(response.getMessage());
+    out.writeValue(toMap(response.getSlotInfo()));
+    if (response.getSlots() == null) {
+      out.writeValue(null);
+    } else {
+      List<Object> slots = Lists.newArrayList();
+      for (SlotInfo slot : response.getSlots()) {
+        slots.add(toMap(slot));
+      }
+      out.writeValue(slots);
+    }
+    return out.toBytes();
+  }
+
+  @SuppressWarnings("unchecked")
+  public static SlotAllocationResponse decodeAllocationResponse(byte[] data) {
+    if (!isBinary(data)) {
+      SlotAllocationResponse response = fromJson.convert(SlotAllocationResponse.class, new String(data, Charsets.UTF_8));
+      // list elements come as maps from the generic JSON conversion
+      if (response.getSlots() != null) {
+        response.setSlots(toSlots((List<?>) response.getSlots()));
+      }
+      return response;
+    }
+    Reader in = new Reader(data);
+    SlotAllocationResponse response = new SlotAllocationResponse();
+    String status = in.readString();
+    response.setStatus(status != null ? SlotAllocationResponse.Status.valueOf(status) : null);
+    response.setMessage(in.readString());
+    response.setSlotInfo(toSlot((Map<String, ?>) in.readValue()));
+    List<?> slots = (List<?>) in.readValue();
+    response.setSlots(slots != null ? toSlots(slots) : null);
+    return response;
+  }
+
+  private static Map<String, Object> toMap(SlotInfo slot) {
+    if (slot == null) {
+      return null;
+    }
+    Map<String, Object> map = Maps.newHashMap();
+    map.put("nodeId", slot.getNodeId());
+    map.put("slotId", slot.getSlotId());
+    map.put("capabilities", slot.getCapabilities() != null ? slot.getCapabilities().asMap() : null);
+    return map;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static SlotInfo toSlot(Map<String, ?> map) {
+    if (map == null) {
+      return null;
+    }
+    Map<String, ?> capabilities = (Map<String, ?>) map.get("capabilities");
+    return new SlotInfo((String) map.get("nodeId"), (String) map.get("slotId"),
+        capabilities != null ? new DesiredCapabilities(capabilities) : null);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<SlotInfo> toSlots(List<?> slots) {
+    List<SlotInfo> result = Lists.newArrayList();
+    for (Object slot : slots) {
+      result.add(slot instanceof Map ? toSlot((Map<String, ?>) slot) : (SlotInfo) slot);
+    }
+    return result;
+  }
+
+  private static class Writer {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    private Writer() {
+      bytes.write(BINARY);
+      bytes.write(VERSION);
+    }
+
+    private byte[] toBytes() {
+      return bytes.toByteArray();
+    }
+
+    private void writeValue(Object value) {
+      try {
+        if (value == null) {
+          out.writeByte(NULL);
+        } else if (value instanceof Boolean) {
+          out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer || value instanceof Long
+            || value instanceof Short || value instanceof Byte) {
+          out.writeByte(LONG);
+          writeVarLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+          // as it is written to JSON, so a float keeps its short form and an integral big number stays integral
+          writeNumber(value.toString());
+        } else if (value instanceof String || value instanceof SessionId) {
+          out.writeByte(STRING);
+          writeText(value.toString());
+        } else if (value instanceof Collection) {
+          Collection<?> list = (Collection<?>) value;
+          out.writeByte(LIST);
+          writeVarLong(list.size());
+          for (Object element : list) {
+            writeValue(element);
+          }
+        } else if (value instanceof Map) {
+          Map<?, ?> map = (Map<?, ?>) value;
+          out.writeByte(MAP);
+          writeVarLong(map.size());
+          for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeText(String.valueOf(entry.getKey()));
+            writeValue(entry.getValue());
+          }
+        } else if (value instanceof Capabilities) {
+          writeValue(((Capabilities) value).asMap());
+        } else {
+          // beans, enums, arrays, exceptions: whatever the JSON converter makes of them
+          writeJson(new JsonParser().parse(toJson.convert(value)));
+        }
+      } catch (IOException ex) {
+        throw new IllegalStateException(ex);
+      }
+    }
+
+    private void writeJson(JsonElement json) throws IOException {
+      if (json == null || json.isJsonNull()) {
+        out.writeByte(NULL);
+      } else if (json.isJsonArray()) {
+        JsonArray array = json.getAsJsonArray();
+        out.writeByte(LIST);
+        writeVarLong(array.size());
+        for (JsonElement element : array) {
+          writeJson(element);
+        }
+      } else if (json.isJsonObject()) {
+        JsonObject object = json.getAsJsonObject();
+        out.writeByte(MAP);
+        writeVarLong(object.entrySet().size());
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+          writeText(entry.getKey());
+          writeJson(entry.getValue());
+        }
+      } else {
+        JsonPrimitive primitive = json.getAsJsonPrimitive();
+        if (primitive.isBoolean()) {
+          out.writeByte(primitive.getAsBoolean() ? TRUE : FALSE);
+        } else if (primitive.isNumber()) {
+          writeNumber(primitive.getAsString());
+        } else {
+          out.writeByte(STRING);
+          writeText(primitive.getAsString());
+        }
+      }
+    }
+
+    /**
+     * A number in its JSON text form, read back as Long if it is integral and fits, as Double otherwise.
+     */
+    private void writeNumber(String number) throws IOException {
+      if (!number.contains(".") && !number.contains("e") && !number.contains("E")) {
+        try {
+          long integral = Long.parseLong(number);
+          out.writeByte(LONG);
+          writeVarLong(integral);
+          return;
+        } catch (NumberFormatException ex) {
+          // too big for a long
+        }
+      }
+      out.writeByte(DOUBLE);
+      out.writeDouble(Double.parseDouble(number));
+    }
+
+    private void writeString(String value) {
+      writeValue(value);
+    }
+
+    private void writeText(String text) throws IOException {
+      byte[] data = text.getBytes(Charsets.UTF_8);
+      writeVarLong(data.length);
+      out.write(data);
+    }
+
+    // zigzag varint, small numbers and lengths take a byte or two
+    private void writeVarLong(long value) throws IOException {
+      long zigzag = (value << 1) ^ (value >> 63);
+      while ((zigzag & ~0x7FL) != 0) {
+        out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+        zigzag >>>= 7;
+      }
+      out.writeByte((int) zigzag);
+    }
+  }
+
+  private static class Reader {
+    private final DataInputStream in;
+
+    private Reader(byte[] data) {
+      if (data.length < 2 || data[1] > VERSION) {
+        throw new IllegalArgumentException("Unsupported binary payload version " + (data.length < 2 ? -1 : data[1]));
+      }
+      in = new DataInputStream(new ByteArrayInputStream(data, 2, data.length - 2));
+    }
+
+    private String readString() {
+      return (String) readValue();
+    }
+
+    private Object readValue() {
+      try {
+        byte tag = in.readByte();
+        switch (tag) {
+          case NULL:
+            return null;
+          case FALSE:
+            return false;
+          case TRUE:
+            return true;
+          case LONG:
+            return readVarLong();
+          case DOUBLE:
+            return in.readDouble();
+          case STRING:
+            return readText();
+          case LIST: {
+            int size = (int) readVarLong();
+            List<Object> list = Lists.newArrayListWithCapacity(size);
+            for (int i = 0; i < size; i++) {
+              list.add(readValue());
+            }
+            return list;
+          }
+          case MAP: {
+            int size = (int) readVarLong();
+            Map<String, Object> map = Maps.newHashMapWithExpectedSize(size);
+            for (int i = 0; i < size; i++) {
+              String key = readText();
+              map.put(key, readValue());
+            }
+            return map;
+          }
+          default:
+            throw new IllegalArgumentException("Unknown value tag " + tag);
+        }
+      } catch (IOException ex) {
+        throw new IllegalArgumentException("Truncated binary payload", ex);
+      }
+    }
+
+    private String readText() throws IOException {
+      byte[] data = new byte[(int) readVarLong()];
+      in.readFully(data);
+      return new String(data, Charsets.UTF_8);
+    }
+
+    private long readVarLong() throws IOException {
+      long zigzag = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = in.readByte();
+        zigzag |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          break;
+        }
+      }
+      return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+  }
+}
@@ -0,0 +1,12 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+/**
+ * Fills the busiest nodes first, so that the other nodes stay idle and can be shut down.
+ */
+public class BinPackPlacementStrategy implements PlacementStrategy {
+
+  @Override
+  public double score(NodeInfo node) {
+    return -node.getBusySlotCount();
+  }
+}
@@ -0,0 +1,55 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import com.google.common.base.Objects;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.remote.CapabilityType;
+
+/**
+ * Identity of a capability set as seen by the capability matcher:
+ * browserName, platform, version and applicationName.
+ */
+class CapabilityKey {
+
+  private final String browserName;
+  private final String platform;
+  private final String version;
+  private final String applicationName;
+
+  CapabilityKey(Capabilities capabilities) {
+    browserName = valueOf(capabilities, CapabilityType.BROWSER_NAME);
+    platform = valueOf(capabilities, CapabilityType.PLATFORM);
+    version = valueOf(capabilities, CapabilityType.VERSION);
+    applicationName = valueOf(capabilities, SlotIndex.APPLICATION_NAME);
+  }
+
+  private static String valueOf(Capabilities capabilities, String key) {
+    Object value = capabilities.getCapability(key);
+    return value == null ? null : value.toString();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof CapabilityKey)) {
+      return false;
+    }
+    CapabilityKey that = (CapabilityKey) o;
+    return Objects.equal(browserName, that.browserName)
+        && Objects.equal(platform, that.platform)
+        && Objects.equal(version, that.version)
+        && Objects.equal(applicationName, that.applicationName);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(browserName, platform, version, applicationName);
+  }
+
+  @Override
+  public String toString() {
+    return "{browserName=" + browserName + ", platform=" + platform
+        + ", version=" + version + ", applicationName=" + applicationName + "}";
+  }
+}
@@ -0,0 +1,5 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+public interface CapabilityPredicate {
+  boolean matches(SlotCapabilities slotCapabilities);
+}
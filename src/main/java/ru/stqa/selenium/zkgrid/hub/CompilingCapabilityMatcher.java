@@ -0,0 +1,12 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import org.openqa.selenium.Capabilities;
+
+/**
+ * A capability matcher that can turn the required capabilities into a predicate
+ * once per request, so that the predicate can be checked against many slots
+ * without parsing the request again.
+ */
+public interface CompilingCapabilityMatcher extends CapabilityMatcher {
+  CapabilityPredicate compile(Capabilities requiredCapabilities);
+}
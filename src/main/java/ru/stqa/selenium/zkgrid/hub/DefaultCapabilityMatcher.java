@@ -2,103 +2,129 @@ package ru.stqa.selenium.zkgrid.hub;
 
 import com.beust.jcommander.internal.Lists;
 import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.Platform;
 import org.openqa.selenium.remote.CapabilityType;
 
 import java.util.List;
 
-public class DefaultCapabilityMatcher implements CapabilityMatcher {
+public class DefaultCapabilityMatcher implements CompilingCapabilityMatcher {
 
-  private List<String> toConsider = Lists.newArrayList();
-
-  public DefaultCapabilityMatcher() {
-    toConsider.add(CapabilityType.PLATFORM);
-    toConsider.add(CapabilityType.BROWSER_NAME);
-    toConsider.add(CapabilityType.VERSION);
-    toConsider.add("applicationName");
-  }
+  private static final CapabilityPredicate NOTHING = new CapabilityPredicate() {
+    @Override
+    public boolean matches(SlotCapabilities slot) {
+      return false;
+    }
+  };
 
+  /**
+   * Kept for the callers of the plain matcher interface, the registry compiles the request once
+   * and checks the predicate against the slot capabilities parsed at registration.
+   */
   @Override
   public boolean matches(Capabilities providedCapabilities, Capabilities requiredCapabilities) {
     if (providedCapabilities == null || requiredCapabilities == null) {
       return false;
     }
-    for (String key : toConsider) {
-      Object requiredValue = requiredCapabilities.getCapability(key);
-      if (requiredValue != null && !"".equals(requiredValue)) {
-        if (key.equals(CapabilityType.PLATFORM)) {
-          if (! providedCapabilities.getPlatform().is(requiredCapabilities.getPlatform())) {
-            return false;
-          }
-        } else if (key.equals(CapabilityType.VERSION)) {
-          String requiredVersion = requiredCapabilities.getVersion();
-          if (requiredVersion.endsWith("+")) {
-            requiredVersion = requiredVersion.substring(0, requiredVersion.length()-1);
-            if (versionCompare(providedCapabilities.getVersion(), requiredVersion) < 0) {
-              return false;
-            }
-          } else if (requiredVersion.endsWith("-")) {
-            requiredVersion = requiredVersion.substring(0, requiredVersion.length()-1);
-            if (versionCompare(providedCapabilities.getVersion(), requiredVersion) > 0) {
-              return false;
-            }
-          } else {
-            if (versionCompare(providedCapabilities.getVersion(), requiredVersion) != 0) {
-              return false;
-            }
-          }
-        } else {
-          if (!providedCapabilities.getCapability(key).equals(requiredValue)) {
+    return compile(requiredCapabilities).matches(new SlotCapabilities(providedCapabilities));
+  }
+
+  @Override
+  public CapabilityPredicate compile(Capabilities requiredCapabilities) {
+    if (requiredCapabilities == null) {
+      return NOTHING;
+    }
+
+    final List<CapabilityPredicate> predicates = Lists.newArrayList();
+
+    if (isSet(requiredCapabilities.getCapability(CapabilityType.PLATFORM))) {
+      final Platform requiredPlatform = requiredCapabilities.getPlatform();
+      predicates.add(new CapabilityPredicate() {
+        @Override
+        public boolean matches(SlotCapabilities slot) {
+          return slot.getPlatform() != null && slot.getPlatform().is(requiredPlatform);
+        }
+      });
+    }
+
+    if (isSet(requiredCapabilities.getCapability(CapabilityType.BROWSER_NAME))) {
+      final Object requiredBrowserName = requiredCapabilities.getCapability(CapabilityType.BROWSER_NAME);
+      predicates.add(new CapabilityPredicate() {
+        @Override
+        public boolean matches(SlotCapabilities slot) {
+          return requiredBrowserName.equals(slot.getBrowserName());
+        }
+      });
+    }
+
+    if (isSet(requiredCapabilities.getCapability(CapabilityType.VERSION))) {
+      predicates.add(compileVersion(requiredCapabilities.getVersion()));
+    }
+
+    if (isSet(requiredCapabilities.getCapability(SlotIndex.APPLICATION_NAME))) {
+      final Object requiredApplicationName = requiredCapabilities.getCapability(SlotIndex.APPLICATION_NAME);
+      predicates.add(new CapabilityPredicate() {
+        @Override
+        public boolean matches(SlotCapabilities slot) {
+          return requiredApplicationName.equals(slot.getApplicationName());
+        }
+      });
+    }
+
+    final CapabilityPredicate[] all = predicates.toArray(new CapabilityPredicate[predicates.size()]);
+    return new CapabilityPredicate() {
+      @Override
+      public boolean matches(SlotCapabilities slot) {
+        for (CapabilityPredicate predicate : all) {
+          if (!predicate.matches(slot)) {
             return false;
           }
         }
-      } else {
-        // null value matches anything.
+        return true;
       }
-    }
-    return true;
+    };
+  }
+
+  private static boolean isSet(Object requiredValue) {
+    // null value matches anything.
+    return requiredValue != null && !"".equals(requiredValue);
   }
 
   /**
-   * Compares two version strings.
-   *
-   * Use this instead of String.compareTo() for a non-lexicographical
-   * comparison that works for version strings. e.g. "1.10".compareTo("1.6").
-   *
-   * @note It does not work if "1.10" is supposed to be equal to "1.10.0".
-   *
-   * @param str1 a string of ordinal numbers separated by decimal points.
-   * @param str2 a string of ordinal numbers separated by decimal points.
-   * @return The result is a negative integer if str1 is _numerically_ less than str2.
-   *         The result is a positive integer if str1 is _numerically_ greater than str2.
-   *         The result is zero if the strings are _numerically_ equal.
+   * Compiles a version requirement: "53+" means 53 or higher, "60-" means 60 or lower,
+   * anything else requires numerically equal version.
    */
-  private static Integer versionCompare(String str1, String str2) {
-    if (str1 == null || "".equals(str1)) {
-      str1 = "0";
-    }
-    if (str2 == null || "".equals(str2)) {
-      str2 = "0";
+  private static CapabilityPredicate compileVersion(String requiredVersion) {
+    final int sign;
+    if (requiredVersion.endsWith("+")) {
+      requiredVersion = requiredVersion.substring(0, requiredVersion.length()-1);
+      sign = 1;
+    } else if (requiredVersion.endsWith("-")) {
+      requiredVersion = requiredVersion.substring(0, requiredVersion.length()-1);
+      sign = -1;
+    } else {
+      sign = 0;
     }
-    List<String> vals1 = Lists.newArrayList(str1.split("\\."));
-    List<String> vals2 = Lists.newArrayList(str2.split("\\."));
-    int sizeDiff = vals1.size() - vals2.size();
-    if (sizeDiff > 0) {
-      for (int i = 0; i < sizeDiff; i++) {
-        vals2.add("0");
-      }
-    }
-    if (sizeDiff < 0) {
-      for (int i = 0; i < -sizeDiff; i++) {
-        vals1.add("0");
-      }
-    }
-    for (int i = 0; i < vals1.size(); i++) {
-      int diff = Integer.valueOf(vals1.get(i)).compareTo(Integer.valueOf(vals2.get(i)));
-      if (diff != 0) {
-        return diff;
-      }
 
+    final int[] version = Versions.parse(requiredVersion);
+    if (version == null) {
+      return NOTHING;
     }
-    return 0;
+
+    return new CapabilityPredicate() {
+      @Override
+      public boolean matches(SlotCapabilities slot) {
+        if (slot.getVersion() == null) {
+          return false;
+        }
+        int diff = Versions.compare(slot.getVersion(), version);
+        if (sign > 0) {
+          return diff >= 0;
+        } else if (sign < 0) {
+          return diff <= 0;
+        } else {
+          return diff == 0;
+        }
+      }
+    };
   }
 }
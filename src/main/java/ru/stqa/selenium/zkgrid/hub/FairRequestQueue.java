@@ -0,0 +1,156 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pending new session requests of a partition. Requests of a higher priority are served first,
+ * within a priority the tenants share the slots by weighted fair queuing, and the tenants
+ * that have reached their concurrency cap are skipped until one of their sessions ends.
+ */
+class FairRequestQueue {
+
+  private final TenantShares shares;
+
+  // priority -> tenant -> requests in arrival order
+  private final TreeMap<Integer, Map<String, LinkedList<SessionRequest>>> levels =
+      new TreeMap<Integer, Map<String, LinkedList<SessionRequest>>>(Collections.<Integer>reverseOrder());
+  private boolean closed;
+
+  FairRequestQueue(TenantShares shares) {
+    this.shares = shares;
+  }
+
+  public synchronized void put(SessionRequest request) {
+    Map<String, LinkedList<SessionRequest>> tenants = levels.get(request.getPriority());
+    if (tenants == null) {
+      tenants = Maps.newHashMap();
+      levels.put(request.getPriority(), tenants);
+    }
+    LinkedList<SessionRequest> requests = tenants.get(request.getTenant());
+    if (requests == null) {
+      requests = Lists.newLinkedList();
+      tenants.put(request.getTenant(), requests);
+    }
+    requests.add(request);
+    notifyAll();
+  }
+
+  /**
+   * Lets the consumer recheck the tenants after a session has ended.
+   */
+  public synchronized void wakeUp() {
+    notifyAll();
+  }
+
+  /**
+   * Waits until some requests can be served and takes up to the maximum number of them,
+   * the taken requests are counted to their tenants. Returns with no requests once the queue is closed.
+   */
+  public synchronized void take(List<SessionRequest> batch, int max) throws InterruptedException {
+    while (!closed) {
+      SessionRequest next;
+      while (batch.size() < max && (next = pollNext()) != null) {
+        batch.add(next);
+      }
+      if (!batch.isEmpty()) {
+        return;
+      }
+      wait();
+    }
+  }
+
+  /**
+   * Stops the consumer and removes all the pending requests.
+   *
+   * @return the requests that have not been served
+   */
+  public synchronized List<SessionRequest> close() {
+    closed = true;
+    notifyAll();
+    List<SessionRequest> pending = Lists.newArrayList();
+    for (Map<String, LinkedList<SessionRequest>> tenants : levels.values()) {
+      for (LinkedList<SessionRequest> requests : tenants.values()) {
+        pending.addAll(requests);
+      }
+    }
+    levels.clear();
+    return pending;
+  }
+
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  private SessionRequest pollNext() {
+    Iterator<Map<String, LinkedList<SessionRequest>>> levelIterator = levels.values().iterator();
+    while (levelIterator.hasNext()) {
+      Map<String, LinkedList<SessionRequest>> tenants = levelIterator.next();
+      for (String tenant : byStartTag(tenants.keySet())) {
+        LinkedList<SessionRequest> requests = tenants.get(tenant);
+        if (shares.tryAcquire(requests.getFirst())) {
+          SessionRequest request = requests.removeFirst();
+          if (requests.isEmpty()) {
+            tenants.remove(tenant);
+          }
+          if (tenants.isEmpty()) {
+            levelIterator.remove();
+          }
+          return request;
+        }
+      }
+      // all the tenants of this priority are capped, lower priorities can still be served
+    }
+    return null;
+  }
+
+  private List<String> byStartTag(Iterable<String> tenants) {
+    final Map<String, Double> tags = Maps.newHashMap();
+    for (String tenant : tenants) {
+      tags.put(tenant, shares.startTag(tenant));
+    }
+    List<String> sorted = Lists.newArrayList(tags.keySet());
+    Collections.sort(sorted, new Comparator<String>() {
+      @Override
+      public int compare(String tenant1, String tenant2) {
+        return Double.compare(tags.get(tenant1), tags.get(tenant2));
+      }
+    });
+    return sorted;
+  }
+
+  public synchronized List<SessionRequest> removeExpired(long now) {
+    List<SessionRequest> expired = Lists.newArrayList();
+    Iterator<Map<String, LinkedList<SessionRequest>>> levelIterator = levels.values().iterator();
+    while (levelIterator.hasNext()) {
+      Map<String, LinkedList<SessionRequest>> tenants = levelIterator.next();
+      Iterator<LinkedList<SessionRequest>> lists = tenants.values().iterator();
+      while (lists.hasNext()) {
+        LinkedList<SessionRequest> requests = lists.next();
+        Iterator<SessionRequest> i = requests.iterator();
+        while (i.hasNext()) {
+          SessionRequest request = i.next();
+          if (request.getDeadline() > 0 && !request.canWait(now)) {
+            expired.add(request);
+            i.remove();
+          }
+        }
+        if (requests.isEmpty()) {
+          lists.remove();
+        }
+      }
+      if (tenants.isEmpty()) {
+        levelIterator.remove();
+      }
+    }
+    return expired;
+  }
+}
@@ -0,0 +1,73 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import org.openqa.selenium.Capabilities;
+import ru.stqa.selenium.zkgrid.common.RequestCapabilities;
+
+import java.util.List;
+
+/**
+ * A request for a group of sessions that are allocated together: the gang gets
+ * its slots only if at least the minimum number of members can be placed.
+ */
+class GangRequest {
+
+  private final String clientId;
+  private final Capabilities capabilities;
+  private final List<CapabilityPredicate> members;
+  private final int minimum;
+  private final long deadline;
+  private final String tenant;
+  private int attempts;
+
+  GangRequest(Capabilities capabilities, List<CapabilityPredicate> members) {
+    this.clientId = (String) capabilities.getCapability(RequestCapabilities.CLIENT_ID);
+    this.capabilities = capabilities;
+    this.members = members;
+    Object minimum = capabilities.getCapability(RequestCapabilities.GANG_MINIMUM);
+    this.minimum = minimum instanceof Number
+        ? Math.min(Math.max(((Number) minimum).intValue(), 1), members.size()) : members.size();
+    Object deadline = capabilities.getCapability(RequestCapabilities.DEADLINE);
+    this.deadline = deadline instanceof Number ? ((Number) deadline).longValue() : 0;
+    this.tenant = SessionRequest.tenantOf(capabilities);
+  }
+
+  public String getClientId() {
+    return clientId;
+  }
+
+  public Capabilities getCapabilities() {
+    return capabilities;
+  }
+
+  public List<CapabilityPredicate> getMembers() {
+    return members;
+  }
+
+  public String getTenant() {
+    return tenant;
+  }
+
+  public int getMinimum() {
+    return minimum;
+  }
+
+  public boolean canWait(long now) {
+    return deadline - SessionRequest.RESPONSE_MARGIN > now;
+  }
+
+  public boolean isExpired(long now) {
+    return deadline > 0 && deadline <= now;
+  }
+
+  /**
+   * @return the number of the reservation attempts including this one
+   */
+  public int retry() {
+    return ++attempts;
+  }
+
+  @Override
+  public String toString() {
+    return "{clientId=" + clientId + ", tenant=" + tenant + ", members=" + members.size() + ", minimum=" + minimum + "}";
+  }
+}
@@ -3,6 +3,9 @@ package ru.stqa.selenium.zkgrid.hub;
 import com.beust.jcommander.internal.Maps;
 import com.google.common.io.Files;
 import com.google.gson.Gson;
+import org.apache.curator.framework.recipes.leader.LeaderLatch;
+import org.apache.curator.framework.recipes.leader.LeaderLatchListener;
+import org.apache.zookeeper.server.DatadirCleanupManager;
 import org.apache.zookeeper.server.ServerConfig;
 import org.apache.zookeeper.server.ZooKeeperServerMain;
 import org.apache.zookeeper.server.quorum.QuorumPeerConfig;
@@ -13,6 +16,7 @@ import ru.stqa.selenium.zkgrid.common.Curator;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 import static ru.stqa.selenium.zkgrid.common.PathUtils.*;
@@ -34,11 +38,18 @@ public class Hub {
   private HubParameters params;
   private final HubConfiguration config;
 
+  private final String hubId = UUID.randomUUID().toString();
+
   private SeleniumZooKeeperServer zooKeeperServer;
+  private DatadirCleanupManager zooKeeperCleanupManager;
 
   private Curator curator;
+  private LeaderLatch leaderLatch;
 
   private NodeRegistry nodeRegistry;
+  private RegistrationRequestProcessor registrationRequestProcessor;
+  private NewSessionRequestProcessor newSessionRequestProcessor;
+  private ZNodeReaper zNodeReaper;
 
   public static void main(String[] args) throws Exception {
     final Hub hub = new Hub(new HubParameters());
@@ -58,23 +69,126 @@ public class Hub {
   }
 
   public void start() throws Exception {
-    Properties properties = new Properties();
-    properties.setProperty("dataDir", Files.createTempDir().getAbsolutePath());
-    properties.setProperty("clientPort", String.valueOf(params.getPort()));
-    startServer(properties);
-    startCurator(properties.getProperty("clientPort"));
+    String connectionString = params.getZooKeeperConnectionString();
+    if (connectionString == null) {
+      startServer(zooKeeperProperties(config.zooKeeper));
+      connectionString = "localhost:" + params.getPort();
+    } else {
+      log.info("Using ZooKeeper ensemble {}", connectionString);
+    }
+    startCurator(connectionString);
+    startLeaderElection();
+  }
+
+  /**
+   * Several hubs can share the same ZooKeeper, only the leader allocates slots,
+   * the others wait to take over when the leader dies.
+   */
+  private void startLeaderElection() throws Exception {
+    leaderLatch = new LeaderLatch(curator.getClient(), hubLeaderPath(), hubId);
+    leaderLatch.addListener(new LeaderLatchListener() {
+      @Override
+      public void isLeader() {
+        try {
+          takeOver();
+        } catch (Exception ex) {
+          log.error("Hub " + hubId + " can't take over", ex);
+          stepDown();
+        }
+      }
+
+      @Override
+      public void notLeader() {
+        stepDown();
+      }
+    });
+    leaderLatch.start();
+    log.info("Hub {} is waiting for leadership", hubId);
+  }
+
+  private synchronized void takeOver() throws Exception {
+    long start = System.currentTimeMillis();
+    log.info("Hub {} is taking over", hubId);
 
     Map<String, Object> infoForNodes = Maps.newHashMap();
     infoForNodes.put("heartBeatPeriod", TimeUnit.SECONDS.toMillis(config.heartBeatPeriod));
     curator.setData(hubPath(), new Gson().toJson(infoForNodes));
 
     nodeRegistry = new NodeRegistry.Builder(curator)
-        .withLostTimeout(config.nodeLostTimeout, TimeUnit.SECONDS)
         .withDeadTimeout(config.nodeDeadTimeout, TimeUnit.SECONDS)
         .withCapabilityMatcher(config.capabilityMatcher)
+        .withPlacementStrategy(config.placementStrategy)
+        .create();
+    registrationRequestProcessor = new RegistrationRequestProcessor(curator, nodeRegistry);
+    registrationRequestProcessor.start();
+    NewSessionRequestProcessor.Builder newSessionRequestProcessorBuilder =
+        new NewSessionRequestProcessor.Builder(curator, nodeRegistry)
+            .withBatchSize(config.newSessionBatchSize)
+            .withReservationLease(config.slotReservationLease, TimeUnit.SECONDS)
+            .withLeaderSince(start)
+            .withDefaultTenant(config.defaultTenantWeight, config.defaultTenantMaxSessions);
+    if (config.tenants != null) {
+      for (Map.Entry<String, HubConfiguration.TenantConfiguration> tenant : config.tenants.entrySet()) {
+        newSessionRequestProcessorBuilder.withTenant(tenant.getKey(), tenant.getValue().weight, tenant.getValue().maxSessions);
+      }
+    }
+    newSessionRequestProcessor = newSessionRequestProcessorBuilder.create();
+    zNodeReaper = new ZNodeReaper.Builder(curator, nodeRegistry)
+        .withPeriod(config.reaperPeriod, TimeUnit.SECONDS)
+        .withGracePeriod(config.reaperGracePeriod, TimeUnit.SECONDS)
+        .withBatchSize(config.reaperBatchSize)
         .create();
-    new RegistrationRequestProcessor(curator, nodeRegistry).start();
-    new NewSessionRequestProcessor(curator, nodeRegistry).start();
+
+    log.info("Hub {} took over as the leader in {} ms, {} nodes in the registry",
+        hubId, System.currentTimeMillis() - start, nodeRegistry.getNodes().size());
+  }
+
+  private synchronized void stepDown() {
+    log.info("Hub {} is not the leader", hubId);
+    try {
+      if (zNodeReaper != null) {
+        zNodeReaper.stop();
+        zNodeReaper = null;
+      }
+      if (newSessionRequestProcessor != null) {
+        newSessionRequestProcessor.stop();
+        newSessionRequestProcessor = null;
+      }
+      if (registrationRequestProcessor != null) {
+        registrationRequestProcessor.stop();
+        registrationRequestProcessor = null;
+      }
+      if (nodeRegistry != null) {
+        nodeRegistry.stop();
+        nodeRegistry = null;
+      }
+    } catch (Exception ex) {
+      log.error("Hub " + hubId + " can't step down", ex);
+    }
+  }
+
+  /**
+   * The registry is restored from the persisted tree when the hub takes over after a restart.
+   */
+  private Properties zooKeeperProperties(HubConfiguration.EmbeddedZooKeeperConfiguration zooKeeperConfig) {
+    Properties properties = new Properties();
+    String dataDir = zooKeeperConfig.dataDir;
+    if (dataDir == null) {
+      dataDir = Files.createTempDir().getAbsolutePath();
+      log.warn("ZooKeeper dataDir is not set, the grid state is kept in {} and is lost on restart", dataDir);
+    }
+    properties.setProperty("dataDir", dataDir);
+    if (zooKeeperConfig.dataLogDir != null) {
+      properties.setProperty("dataLogDir", zooKeeperConfig.dataLogDir);
+    }
+    properties.setProperty("clientPort", String.valueOf(params.getPort()));
+    properties.setProperty("maxClientCnxns", String.valueOf(zooKeeperConfig.maxClientCnxns));
+    properties.setProperty("autopurge.snapRetainCount", String.valueOf(zooKeeperConfig.autopurgeSnapRetainCount));
+    properties.setProperty("autopurge.purgeInterval", String.valueOf(zooKeeperConfig.autopurgePurgeInterval));
+    // the server reads these as system properties only
+    System.setProperty("zookeeper.snapCount", String.valueOf(zooKeeperConfig.snapCount));
+    System.setProperty("zookeeper.preAllocSize", String.valueOf(zooKeeperConfig.preAllocSize));
+    return properties;
   }
 
   private void startServer(Properties properties) {
@@ -90,6 +204,12 @@ public class Hub {
     zooKeeperServer = new SeleniumZooKeeperServer();
     configuration.readFrom(quorumConfiguration);
 
+    // the standalone server does not purge old snapshots and logs itself
+    zooKeeperCleanupManager = new DatadirCleanupManager(quorumConfiguration.getDataDir(),
+        quorumConfiguration.getDataLogDir(), quorumConfiguration.getSnapRetainCount(),
+        quorumConfiguration.getPurgeInterval());
+    zooKeeperCleanupManager.start();
+
     new Thread() {
       public void run() {
         try {
@@ -101,15 +221,24 @@ public class Hub {
     }.start();
   }
 
-  private void startCurator(String port) throws Exception {
-    curator = Curator.createCurator("localhost:" + port, log);
+  private void startCurator(String connectionString) throws Exception {
+    curator = Curator.createCurator(connectionString, log);
     curator.start();
-    curator.getClient().create().forPath("/nodes");
+    curator.create(nodesPath());
   }
 
-  private void stop() {
+  public void stop() {
+    stepDown();
+    try {
+      leaderLatch.close();
+    } catch (IOException ex) {
+      log.warn("Can't close leader latch", ex);
+    }
     curator.getClient().close();
-    zooKeeperServer.shutdown();
+    if (zooKeeperServer != null) {
+      zooKeeperServer.shutdown();
+      zooKeeperCleanupManager.shutdown();
+    }
   }
 
 }
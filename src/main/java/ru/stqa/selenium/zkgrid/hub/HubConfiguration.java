@@ -1,10 +1,51 @@
 package ru.stqa.selenium.zkgrid.hub;
 
+import java.util.Map;
+
 public class HubConfiguration {
 
   long heartBeatPeriod = 2;
-  long nodeLostTimeout = 10;
   long nodeDeadTimeout = 20;
+  // must implement CompilingCapabilityMatcher
   String capabilityMatcher = DefaultCapabilityMatcher.class.getName();
+  int newSessionBatchSize = 20;
+  long slotReservationLease = 15;
+  String placementStrategy = LeastLoadedPlacementStrategy.class.getName();
+
+  int defaultTenantWeight = 1;
+  int defaultTenantMaxSessions = 0;
+  Map<String, TenantConfiguration> tenants;
+
+  // orphaned client znodes and stale slot payloads are removed every reaperPeriod
+  // once they are older than reaperGracePeriod
+  long reaperPeriod = 60;
+  long reaperGracePeriod = 300;
+  int reaperBatchSize = 100;
+
+  EmbeddedZooKeeperConfiguration zooKeeper = new EmbeddedZooKeeperConfiguration();
+
+  /**
+   * Storage of the ZooKeeper server the hub starts when no external ZooKeeper is given.
+   */
+  static class EmbeddedZooKeeperConfiguration {
+    // snapshots, a temporary directory if not set, the grid state is lost on restart then
+    String dataDir;
+    // transaction log, the snapshot directory if not set, a dedicated device keeps the writes fast
+    String dataLogDir;
+    // transactions between snapshots
+    int snapCount = 100000;
+    // transaction log file preallocation block in kilobytes
+    int preAllocSize = 65536;
+    // snapshots and logs to keep, and hours between purges, 0 disables purging
+    int autopurgeSnapRetainCount = 3;
+    int autopurgePurgeInterval = 1;
+    int maxClientCnxns = 0;
+  }
+
+  static class TenantConfiguration {
+    int weight = 1;
+    // 0 means no limit
+    int maxSessions;
+  }
 
 }
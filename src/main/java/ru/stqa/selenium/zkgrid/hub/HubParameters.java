@@ -16,10 +16,17 @@ public class HubParameters {
   @Parameter(names = "-hubConfig", description = "(hub) The hub configuration file")
   private String hubConfig = null;
 
+  @Parameter(names = "-zookeeper", description = "(hub) Connection string of an existing ZooKeeper ensemble to use instead of the embedded server, several hubs of a grid can share it, a /namespace suffix lets several grids share it too")
+  private String zooKeeperConnectionString = null;
+
   public int getPort() {
     return port;
   }
 
+  public String getZooKeeperConnectionString() {
+    return zooKeeperConnectionString;
+  }
+
   public HubConfiguration getHubConfiguration() throws IOException {
     InputStream in;
     if (hubConfig != null) {
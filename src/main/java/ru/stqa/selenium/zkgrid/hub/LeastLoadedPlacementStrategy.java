@@ -0,0 +1,30 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import ru.stqa.selenium.zkgrid.common.NodeLoad;
+
+/**
+ * Prefers nodes with the lowest share of busy slots and CPU load, nodes that are
+ * short of memory or slow to start browsers are used last.
+ */
+public class LeastLoadedPlacementStrategy implements PlacementStrategy {
+
+  private static final long LOW_MEMORY = 512L * 1024 * 1024;
+  private static final double LAUNCH_TIME_SCALE = 10000;
+
+  @Override
+  public double score(NodeInfo node) {
+    int slots = node.getSlots().size();
+    double score = slots > 0 ? (double) node.getBusySlotCount() / slots : 0;
+    NodeLoad load = node.getLoad();
+    if (load == null) {
+      return score;
+    }
+    if (load.getCpuLoad() > 0) {
+      score += load.getCpuLoad();
+    }
+    if (load.getFreeMemory() >= 0 && load.getFreeMemory() < LOW_MEMORY) {
+      score += 1;
+    }
+    return score + load.getBrowserLaunchTime() / LAUNCH_TIME_SCALE;
+  }
+}
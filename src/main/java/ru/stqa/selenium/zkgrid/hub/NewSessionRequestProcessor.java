@@ -1,18 +1,41 @@
 package ru.stqa.selenium.zkgrid.hub;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
 import org.apache.curator.framework.recipes.queue.DistributedQueue;
 import org.apache.curator.framework.recipes.queue.QueueBuilder;
 import org.apache.curator.framework.recipes.queue.QueueConsumer;
 import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
 import org.openqa.selenium.Capabilities;
-import org.openqa.selenium.remote.BeanToJsonConverter;
+import org.openqa.selenium.remote.DesiredCapabilities;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.stqa.selenium.zkgrid.common.CapabilitiesSerializer;
 import ru.stqa.selenium.zkgrid.common.Curator;
+import ru.stqa.selenium.zkgrid.common.RequestCapabilities;
+import ru.stqa.selenium.zkgrid.common.SessionRequestPartition;
 import ru.stqa.selenium.zkgrid.common.SlotAllocationResponse;
 import ru.stqa.selenium.zkgrid.common.SlotInfo;
+import ru.stqa.selenium.zkgrid.common.SlotState;
+import ru.stqa.selenium.zkgrid.common.WireFormat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static ru.stqa.selenium.zkgrid.common.PathUtils.*;
 
@@ -20,41 +43,676 @@ public class NewSessionRequestProcessor {
 
   private static Logger log = LoggerFactory.getLogger(NewSessionRequestProcessor.class);
 
+  public static class Builder {
+    private Curator curator;
+    private NodeRegistry nodeRegistry;
+
+    private int batchSize = 1;
+    private long reservationLease = TimeUnit.SECONDS.toMillis(15);
+    private TenantShares shares = new TenantShares();
+    private long leaderSince;
+
+    public Builder(Curator curator, NodeRegistry nodeRegistry) {
+      this.curator = curator;
+      this.nodeRegistry = nodeRegistry;
+    }
+
+    public Builder withBatchSize(int batchSize) {
+      this.batchSize = batchSize;
+      return this;
+    }
+
+    public Builder withReservationLease(long reservationLease, TimeUnit timeUnit) {
+      this.reservationLease = timeUnit.toMillis(reservationLease);
+      return this;
+    }
+
+    /**
+     * @param maxSessions concurrency cap of the tenant, 0 for no cap
+     */
+    public Builder withTenant(String tenant, int weight, int maxSessions) {
+      shares.configure(tenant, weight, maxSessions);
+      return this;
+    }
+
+    /**
+     * @param leaderSince the time the hub has been elected the leader at, the first allocation is timed from it
+     */
+    public Builder withLeaderSince(long leaderSince) {
+      this.leaderSince = leaderSince;
+      return this;
+    }
+
+    /**
+     * Sets weight and concurrency cap of the tenants that are not configured explicitly.
+     */
+    public Builder withDefaultTenant(int weight, int maxSessions) {
+      shares.setDefaults(weight, maxSessions);
+      return this;
+    }
+
+    public NewSessionRequestProcessor create() throws Exception {
+      log.debug("Creating NewSessionRequestProcessor");
+      NewSessionRequestProcessor processor = new NewSessionRequestProcessor(curator, nodeRegistry);
+      processor.setBatchSize(batchSize);
+      processor.setReservationLease(reservationLease);
+      processor.setTenantShares(shares);
+      processor.leaderSince = leaderSince > 0 ? leaderSince : System.currentTimeMillis();
+      processor.start();
+      log.debug("NewSessionRequestProcessor created");
+      return processor;
+    }
+  }
+
   private Curator curator;
   private NodeRegistry nodeRegistry;
 
-  public NewSessionRequestProcessor(Curator curator, NodeRegistry nodeRegistry) {
+  private static final int MAX_RESERVATION_ATTEMPTS = 5;
+  // time the allocation threads are given to finish their batches when the hub steps down
+  private static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+  private int batchSize;
+  private long reservationLease;
+  private TenantShares shares;
+  private long leaderSince;
+  private final AtomicBoolean allocatedAny = new AtomicBoolean();
+
+  private final Map<String, Partition> partitions = Maps.newConcurrentMap();
+  private final WaitingSessionRequests waitingRequests = new WaitingSessionRequests();
+  private final ScheduledExecutorService serviceExecutor;
+  private final ExecutorService allocationExecutor;
+  private final FreeSlotListener freeSlotListener = new FreeSlotListener();
+  private final List<Closeable> queues = new CopyOnWriteArrayList<Closeable>();
+  // gangs waiting on the service executor for their next placement attempt
+  private final Set<GangRequest> waitingGangs = Sets.newConcurrentHashSet();
+
+  private NewSessionRequestProcessor(Curator curator, NodeRegistry nodeRegistry) {
     this.curator = curator;
     this.nodeRegistry = nodeRegistry;
+
+    serviceExecutor = Executors.newSingleThreadScheduledExecutor();
+    allocationExecutor = Executors.newCachedThreadPool();
+  }
+
+  private void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(batchSize, 1);
+  }
+
+  private void setReservationLease(long reservationLease) {
+    this.reservationLease = reservationLease;
+  }
+
+  private void setTenantShares(TenantShares shares) {
+    this.shares = shares;
+  }
+
+  private void start() throws Exception {
+    nodeRegistry.addSlotListener(freeSlotListener);
+    serviceExecutor.scheduleWithFixedDelay(new ExpiredRequestsCleaner(), 1, 1, TimeUnit.SECONDS);
+    startPartitionsListener();
   }
 
-  public void start() throws Exception {
+  private void startPartitionsListener() throws Exception {
+    curator.create(newSessionRequestsPath());
+
+    PathChildrenCacheListener partitionsListener = new PathChildrenCacheListener() {
+      @Override
+      public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+        switch (event.getType()) {
+          case CHILD_ADDED: {
+            startPartition(ZKPaths.getNodeFromPath(event.getData().getPath()));
+            break;
+          }
+        }
+      }
+    };
+
+    PathChildrenCache partitionsCache = new PathChildrenCache(curator.getClient(), newSessionRequestsPath(), false);
+    queues.add(partitionsCache);
+    partitionsCache.getListenable().addListener(partitionsListener);
+    partitionsCache.start();
+  }
+
+  private void startPartition(String name) throws Exception {
+    if (partitions.containsKey(name)) {
+      return;
+    }
+    log.info("Starting new session request partition {}", name);
+    Partition partition = new Partition(name);
+    partitions.put(name, partition);
+    allocationExecutor.submit(partition);
+
     DistributedQueue<Capabilities> queue = QueueBuilder.builder(
-        curator.getClient(), new NewSessionRequestConsumer(), new CapabilitiesSerializer(), "/newSessionRequests").buildQueue();
+        curator.getClient(), partition, new CapabilitiesSerializer(), newSessionRequestsPath(name)).buildQueue();
+    queues.add(queue);
     queue.start();
   }
 
-  private class NewSessionRequestConsumer implements QueueConsumer<Capabilities> {
-    @Override
-    public void consumeMessage(Capabilities capabilities) throws Exception {
-      log.info("Request for new session " + capabilities);
-      String clientId = (String) capabilities.getCapability("zk-grid.clientId");
-      SlotAllocationResponse response = nodeRegistry.findFreeMatchingSlot(capabilities);
-      if (response.getStatus() == SlotAllocationResponse.Status.OK) {
-        log.info("Slot found " + response.getSlotInfo());
-        curator.setData(nodeSlotStatePath(response.getSlotInfo()), "busy");
-        response.getSlotInfo().setBusy(true);
+  /**
+   * Stops consuming the requests, lets the allocation threads finish their batches and puts
+   * the requests held in memory (pending, waiting for a slot, gangs waiting for a retry) back
+   * to the request queues, so that the next leader serves them.
+   */
+  public void stop() {
+    nodeRegistry.removeSlotListener(freeSlotListener);
+    for (Closeable queue : queues) {
+      try {
+        queue.close();
+      } catch (IOException ex) {
+        log.warn("Can't close queue", ex);
+      }
+    }
+    queues.clear();
+
+    List<Capabilities> unserved = Lists.newArrayList();
+    for (Partition partition : partitions.values()) {
+      for (SessionRequest request : partition.pendingRequests.close()) {
+        unserved.add(request.getCapabilities());
+      }
+    }
+    allocationExecutor.shutdown();
+    serviceExecutor.shutdownNow();
+    try {
+      if (!allocationExecutor.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+        log.warn("Slot allocations have not finished in {} ms", STOP_TIMEOUT);
+        allocationExecutor.shutdownNow();
+      }
+    } catch (InterruptedException ex) {
+      allocationExecutor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    for (SessionRequest request : waitingRequests.removeAll()) {
+      unserved.add(request.getCapabilities());
+    }
+    for (GangRequest gang : waitingGangs) {
+      unserved.add(gang.getCapabilities());
+    }
+    waitingGangs.clear();
+    requeue(unserved);
+  }
+
+  private void requeue(List<Capabilities> requests) {
+    if (requests.isEmpty()) {
+      return;
+    }
+    Map<String, DistributedQueue<Capabilities>> producers = Maps.newHashMap();
+    int requeued = 0;
+    try {
+      for (Capabilities request : requests) {
+        String partition = SessionRequestPartition.of(request);
+        DistributedQueue<Capabilities> producer = producers.get(partition);
+        if (producer == null) {
+          producer = QueueBuilder.builder(curator.getClient(), null, new CapabilitiesSerializer(),
+              newSessionRequestsPath(partition)).buildQueue();
+          producer.start();
+          producers.put(partition, producer);
+        }
+        producer.put(request);
+        requeued++;
+      }
+    } catch (Exception ex) {
+      log.error("Can't put the requests back to the queues, " + (requests.size() - requeued)
+          + " clients wait until their deadlines", ex);
+    } finally {
+      for (DistributedQueue<Capabilities> producer : producers.values()) {
+        try {
+          producer.close();
+        } catch (IOException ex) {
+          log.warn("Can't close queue", ex);
+        }
+      }
+    }
+    log.info("{} unserved requests put back to the queues for the next leader", requeued);
+  }
+
+  /**
+   * Logs the failover time: from the leader election to the first slot allocated by this hub.
+   */
+  private void allocated() {
+    if (allocatedAny.compareAndSet(false, true)) {
+      log.info("First slot allocated {} ms after the hub became the leader", System.currentTimeMillis() - leaderSince);
+    }
+  }
+
+  /**
+   * Decides placement for all the requests of the batch in memory, in one pass
+   * over the registry. Requests that can wait for a busy slot are parked.
+   * Partitions allocate concurrently, the registry claims slots atomically.
+   */
+  private List<Allocation> allocate(List<SessionRequest> requests) {
+    List<Allocation> allocations = Lists.newArrayList();
+    long now = System.currentTimeMillis();
+    for (SessionRequest request : requests) {
+      if (request.isExpired(now)) {
+        log.info("Request {} has reached the hub after its deadline", request);
+        allocations.add(new Allocation(request, new SlotAllocationResponse(SlotAllocationResponse.Status.TIMEOUT, null,
+            "The request has reached the hub after its deadline")));
+        continue;
+      }
+      SlotAllocationResponse response = nodeRegistry.findFreeMatchingSlot(request.getPredicate());
+      if (response.getStatus() == SlotAllocationResponse.Status.NO_FREE_SLOT && request.canWait(now)) {
+        synchronized (waitingRequests) {
+          // a slot may have been freed after the first attempt, before the request is parked
+          response = nodeRegistry.findFreeMatchingSlot(request.getPredicate());
+          if (response.getStatus() == SlotAllocationResponse.Status.NO_FREE_SLOT) {
+            log.info("No free slot, request {} is waiting", request);
+            shares.release(request);
+            waitingRequests.add(request);
+            continue;
+          }
+        }
+      }
+      allocations.add(new Allocation(request, response));
+    }
+    return allocations;
+  }
+
+  private Allocation allocateFreeSlot(SlotInfo slot, SlotCapabilities capabilities) {
+    synchronized (waitingRequests) {
+      if (!nodeRegistry.claimSlot(slot)) {
+        return null;
+      }
+      SessionRequest request = waitingRequests.pollMatching(capabilities, shares);
+      if (request == null) {
+        nodeRegistry.releaseSlot(slot);
+        return null;
+      }
+      log.info("Slot {} is free, handing it to the waiting request {}", slot, request);
+      return new Allocation(request, new SlotAllocationResponse(SlotAllocationResponse.Status.OK, slot));
+    }
+  }
+
+  /**
+   * Writes slot states, responses and clears client barriers for the whole batch
+   * in a single ZooKeeper transaction, falls back to one by one commit if the
+   * transaction fails (e.g. a client has gone and its barrier is already removed,
+   * or a slot state has been changed by its node).
+   */
+  private void commit(List<Allocation> allocations) throws Exception {
+    if (allocations.isEmpty()) {
+      return;
+    }
+    CuratorTransaction transaction = curator.getClient().inTransaction();
+    for (Allocation allocation : allocations) {
+      transaction = addToTransaction(transaction, allocation);
+      if (transaction == null) {
+        break;
+      }
+    }
+    try {
+      if (transaction != null) {
+        ((CuratorTransactionFinal) transaction).commit();
+        for (Allocation allocation : allocations) {
+          finish(allocation);
+        }
+        return;
+      }
+    } catch (KeeperException ex) {
+      log.warn("Batch commit failed, committing {} allocations one by one: {}", allocations.size(), ex.getMessage());
+    }
+    for (Allocation allocation : allocations) {
+      commitOne(allocation);
+    }
+  }
+
+  /**
+   * Commits the allocation in its own transaction, if the slot has been taken
+   * by its node concurrently the request gets another slot.
+   */
+  private void commitOne(Allocation allocation) {
+    while (allocation != null) {
+      SlotAllocationResponse response = allocation.response;
+      try {
+        CuratorTransaction transaction = addToTransaction(curator.getClient().inTransaction(), allocation);
+        if (transaction == null) {
+          throw new KeeperException.BadVersionException(nodeSlotStatePath(response.getSlotInfo()));
+        }
+        ((CuratorTransactionFinal) transaction).commit();
+        finish(allocation);
+        return;
+      } catch (KeeperException.BadVersionException ex) {
+        log.info("Slot {} state has been changed concurrently, reallocating request {}",
+            response.getSlotInfo(), allocation.request);
+        nodeRegistry.refreshSlotState(response.getSlotInfo());
+        allocation = reallocate(allocation.request);
+      } catch (Exception ex) {
+        log.error("Can't respond to the request " + allocation.request, ex);
+        if (response.getStatus() == SlotAllocationResponse.Status.OK) {
+          nodeRegistry.releaseSlot(response.getSlotInfo());
+        }
+        shares.release(allocation.request);
+        respond(allocation.request.getClientId(), new SlotAllocationResponse(SlotAllocationResponse.Status.ERROR,
+            null, "Can't reserve a slot: " + ex.getMessage()));
+        return;
+      }
+    }
+  }
+
+  private Allocation reallocate(SessionRequest request) {
+    if (request.retry() > MAX_RESERVATION_ATTEMPTS) {
+      return new Allocation(request, new SlotAllocationResponse(SlotAllocationResponse.Status.NO_FREE_SLOT, null,
+          "Matching slots were taken concurrently"));
+    }
+    List<Allocation> allocations = allocate(Collections.singletonList(request));
+    // the request may have been parked until a slot is freed
+    return allocations.isEmpty() ? null : allocations.get(0);
+  }
+
+  /**
+   * Adds the slot reservation and the response to the transaction.
+   * The reservation is a versioned write, it fails if the node has changed the slot state
+   * after the hub has seen it free.
+   *
+   * @return null if the hub has not seen the slot free, the slot can't be reserved
+   */
+  private CuratorTransaction addToTransaction(CuratorTransaction transaction, Allocation allocation) throws Exception {
+    SlotAllocationResponse response = allocation.response;
+    String clientId = allocation.request.getClientId();
+    if (response.getStatus() == SlotAllocationResponse.Status.OK) {
+      SlotInfo slot = response.getSlotInfo();
+      int version = nodeRegistry.getFreeStateVersion(slot);
+      if (version < 0) {
+        return null;
+      }
+      SlotState reservation = SlotState.busy(clientId, System.currentTimeMillis() + reservationLease);
+      transaction = transaction.setData().withVersion(version)
+          .forPath(nodeSlotStatePath(slot), reservation.toBytes()).and();
+      allocation.reservedVersion = version;
+      allocation.leaseUntil = reservation.getLeaseUntil();
+    }
+    return transaction
+        .setData().forPath(clientAllocatedSlotPath(clientId), WireFormat.encode(response)).and()
+        .delete().forPath(clientBarrierPath(clientId)).and();
+  }
+
+  /**
+   * Counts the session to the tenant of the committed request, or releases its share if it got no slot.
+   */
+  private void finish(Allocation allocation) {
+    if (allocation.response.getStatus() == SlotAllocationResponse.Status.OK) {
+      log.info("Slot found " + allocation.response.getSlotInfo());
+      nodeRegistry.slotReserved(allocation.response.getSlotInfo(), allocation.reservedVersion + 1, allocation.leaseUntil);
+      shares.grant(allocation.request, allocation.response.getSlotInfo());
+      allocated();
+    } else {
+      log.info("No slot found");
+      shares.release(allocation.request);
+    }
+  }
+
+  private void sessionEnded(SlotInfo slot) {
+    if (shares.slotReleased(slot)) {
+      for (Partition partition : partitions.values()) {
+        partition.pendingRequests.wakeUp();
+      }
+    }
+  }
+
+  private GangRequest createGangRequest(Capabilities capabilities) {
+    List<CapabilityPredicate> members = Lists.newArrayList();
+    for (Object member : (List<?>) capabilities.getCapability(RequestCapabilities.GANG_MEMBERS)) {
+      members.add(nodeRegistry.compile(new DesiredCapabilities((Map<String, ?>) member)));
+    }
+    GangRequest gang = new GangRequest(capabilities, members);
+    log.info("Request for a gang of sessions " + gang);
+    return gang;
+  }
+
+  /**
+   * Places all the members of the gang in one pass over the registry. If fewer than
+   * the minimum number of members are placed the claimed slots are released, and the gang
+   * either waits for the slots until its deadline or gets a negative response.
+   */
+  private void allocateGang(final GangRequest gang) {
+    if (gang.isExpired(System.currentTimeMillis())) {
+      log.info("Gang {} has not been placed before its deadline", gang);
+      respond(gang.getClientId(), new SlotAllocationResponse(SlotAllocationResponse.Status.TIMEOUT, null,
+          "The gang has not been placed before its deadline"));
+      return;
+    }
+    // the gang is placed only within the concurrency cap of its tenant
+    int allowed = shares.tryAcquire(gang.getTenant(), gang.getMembers().size(), gang.getMinimum());
+    List<SlotInfo> slots = Lists.newArrayList();
+    int placed = 0;
+    for (CapabilityPredicate member : gang.getMembers()) {
+      SlotAllocationResponse response = placed < allowed
+          ? nodeRegistry.findFreeMatchingSlot(member) : null;
+      if (response != null && response.getStatus() == SlotAllocationResponse.Status.OK) {
+        slots.add(response.getSlotInfo());
+        placed++;
       } else {
-        log.info("No slot found");
+        slots.add(null);
+      }
+    }
+
+    if (placed > 0 && placed >= gang.getMinimum()) {
+      if (commitGang(gang, slots, allowed)) {
+        return;
+      }
+      shares.release(gang.getTenant(), allowed);
+      if (gang.retry() <= MAX_RESERVATION_ATTEMPTS) {
+        allocateGang(gang);
+        return;
+      }
+    } else {
+      releaseSlots(slots);
+      shares.release(gang.getTenant(), allowed);
+    }
+
+    if (gang.canWait(System.currentTimeMillis())) {
+      waitingGangs.add(gang);
+      serviceExecutor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (waitingGangs.remove(gang)) {
+            allocateGang(gang);
+          }
+        }
+      }, 1, TimeUnit.SECONDS);
+      return;
+    }
+
+    log.info("No slots found for the gang {}, {} members placed", gang, placed);
+    respond(gang.getClientId(), new SlotAllocationResponse(SlotAllocationResponse.Status.NO_FREE_SLOT,
+        null, "Only " + placed + " of " + gang.getMembers().size() + " gang members can be placed, "
+        + gang.getMinimum() + " required"));
+  }
+
+  /**
+   * Reserves all the slots of the gang and responds in one transaction.
+   *
+   * @param allowed the number of sessions counted to the tenant for the gang
+   * @return false if some slot state has been changed concurrently, all the slots are released then;
+   *         true if the gang is committed or has got an error response
+   */
+  private boolean commitGang(GangRequest gang, List<SlotInfo> slots, int allowed) {
+    String clientId = gang.getClientId();
+    SlotAllocationResponse response = new SlotAllocationResponse(SlotAllocationResponse.Status.OK, null);
+    response.setSlots(slots);
+    Map<SlotInfo, Integer> reservedVersions = Maps.newHashMap();
+    long leaseUntil = System.currentTimeMillis() + gangLease(slots);
+    try {
+      CuratorTransaction transaction = curator.getClient().inTransaction();
+      for (SlotInfo slot : slots) {
+        if (slot == null) {
+          continue;
+        }
+        int version = nodeRegistry.getFreeStateVersion(slot);
+        if (version < 0) {
+          throw new KeeperException.BadVersionException(nodeSlotStatePath(slot));
+        }
+        SlotState reservation = SlotState.busy(clientId, leaseUntil);
+        transaction = transaction.setData().withVersion(version)
+            .forPath(nodeSlotStatePath(slot), reservation.toBytes()).and();
+        reservedVersions.put(slot, version);
+      }
+      ((CuratorTransactionFinal) transaction
+          .setData().forPath(clientAllocatedSlotPath(clientId), WireFormat.encode(response)).and()
+          .delete().forPath(clientBarrierPath(clientId)).and())
+          .commit();
+      log.info("Slots found for the gang {}: {}", gang, slots);
+      int placed = 0;
+      for (SlotInfo slot : slots) {
+        if (slot != null) {
+          nodeRegistry.slotReserved(slot, reservedVersions.get(slot) + 1, leaseUntil);
+          shares.grant(gang.getTenant(), slot);
+          placed++;
+        }
+      }
+      shares.release(gang.getTenant(), allowed - placed);
+      allocated();
+      return true;
+    } catch (KeeperException.BadVersionException ex) {
+      log.info("Gang {} slot states have been changed concurrently, reallocating", gang);
+      releaseSlots(slots);
+      for (SlotInfo slot : slots) {
+        if (slot != null) {
+          nodeRegistry.refreshSlotState(slot);
+        }
+      }
+      return false;
+    } catch (Exception ex) {
+      log.error("Can't reserve slots for the gang request " + gang, ex);
+      releaseSlots(slots);
+      shares.release(gang.getTenant(), allowed);
+      // the client waits on its barrier until the deadline otherwise
+      respond(clientId, new SlotAllocationResponse(SlotAllocationResponse.Status.ERROR, null,
+          "Can't reserve slots for the gang: " + ex.getMessage()));
+      return true;
+    }
+  }
+
+  /**
+   * The client starts the gang sessions one after another, the reservations of the last members
+   * wait for a tenth of the single session lease per member placed before them.
+   */
+  private long gangLease(List<SlotInfo> slots) {
+    int placed = 0;
+    for (SlotInfo slot : slots) {
+      if (slot != null) {
+        placed++;
+      }
+    }
+    return reservationLease + reservationLease * placed / 10;
+  }
+
+  private void releaseSlots(List<SlotInfo> slots) {
+    for (SlotInfo slot : slots) {
+      if (slot != null && nodeRegistry.releaseSlot(slot)) {
+        nodeRegistry.fireSlotFreed(slot);
       }
-      curator.setData(clientAllocatedSlotPath(clientId), new BeanToJsonConverter().convert(response));
+    }
+  }
+
+  private void respond(String clientId, SlotAllocationResponse response) {
+    try {
+      curator.setData(clientAllocatedSlotPath(clientId), WireFormat.encode(response));
       curator.clearBarrier(clientPath(clientId));
+    } catch (Exception ex) {
+      log.error("Can't respond to the client " + clientId, ex);
+    }
+  }
+
+  private static class Allocation {
+    private final SessionRequest request;
+    private final SlotAllocationResponse response;
+    // the slot state version the reservation is written at, and the lease of the reservation
+    private int reservedVersion;
+    private long leaseUntil;
+
+    private Allocation(SessionRequest request, SlotAllocationResponse response) {
+      this.request = request;
+      this.response = response;
+    }
+  }
+
+  /**
+   * A queue of new session requests for one browser, consumed by its own allocation loop
+   * concurrently with the other partitions.
+   */
+  private class Partition implements QueueConsumer<Capabilities>, Runnable {
+    private final String name;
+    private final FairRequestQueue pendingRequests = new FairRequestQueue(shares);
+
+    private Partition(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void consumeMessage(Capabilities capabilities) throws Exception {
+      if (capabilities.getCapability(RequestCapabilities.GANG_MEMBERS) != null) {
+        allocateGang(createGangRequest(capabilities));
+        return;
+      }
+      log.info("Request for new session " + capabilities);
+      pendingRequests.put(new SessionRequest(capabilities, nodeRegistry.compile(capabilities)));
     }
 
     @Override
     public void stateChanged(CuratorFramework curatorFramework, ConnectionState connectionState) {
       System.out.println("!!!" + connectionState);
     }
+
+    @Override
+    public void run() {
+      List<SessionRequest> batch = Lists.newArrayList();
+      while (!Thread.currentThread().isInterrupted() && !pendingRequests.isClosed()) {
+        try {
+          pendingRequests.take(batch, batchSize);
+          if (batch.isEmpty()) {
+            continue;
+          }
+          log.debug("Allocating slots for {} requests in partition {}", batch.size(), name);
+          commit(allocate(batch));
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+          log.error("Can't allocate slots", ex);
+        } finally {
+          batch.clear();
+        }
+      }
+    }
+  }
+
+  private class FreeSlotListener implements SlotListener {
+    @Override
+    public void slotFreed(SlotInfo slot, SlotCapabilities capabilities) {
+      sessionEnded(slot);
+      Allocation allocation = allocateFreeSlot(slot, capabilities);
+      if (allocation != null) {
+        commitOne(allocation);
+      }
+    }
+
+    @Override
+    public void slotRemoved(SlotInfo slot) {
+      sessionEnded(slot);
+    }
+  }
+
+  private class ExpiredRequestsCleaner implements Runnable {
+    @Override
+    public void run() {
+      List<Allocation> allocations = Lists.newArrayList();
+      for (SessionRequest request : waitingRequests.removeExpired(System.currentTimeMillis())) {
+        log.info("Request {} has not got a free slot before the deadline", request);
+        allocations.add(new Allocation(request, new SlotAllocationResponse(SlotAllocationResponse.Status.NO_FREE_SLOT, null,
+            "There are matching slots, but they were all busy until the deadline")));
+      }
+      for (Partition partition : partitions.values()) {
+        for (SessionRequest request : partition.pendingRequests.removeExpired(System.currentTimeMillis())) {
+          log.info("Request {} has not been served before the deadline", request);
+          allocations.add(new Allocation(request, new SlotAllocationResponse(SlotAllocationResponse.Status.NO_FREE_SLOT, null,
+              "The request has not been served before the deadline, the tenant may have reached its session limit")));
+        }
+      }
+      try {
+        commit(allocations);
+      } catch (Exception ex) {
+        log.error("Can't respond to the expired requests", ex);
+      }
+    }
   }
 
 }
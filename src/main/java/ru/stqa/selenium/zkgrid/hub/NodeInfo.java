@@ -1,33 +1,79 @@
 package ru.stqa.selenium.zkgrid.hub;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
-import org.openqa.selenium.remote.DesiredCapabilities;
+import ru.stqa.selenium.zkgrid.common.NodeLoad;
 import ru.stqa.selenium.zkgrid.common.SlotInfo;
 
 import java.util.Collection;
 import java.util.Map;
 
+/**
+ * Immutable view of a registered node, modifications return a new instance.
+ */
 public class NodeInfo {
 
-  private String nodeId;
+  private final String nodeId;
 
-  private Map<String, SlotInfo> slots = Maps.newHashMap();
+  private final ImmutableMap<String, SlotInfo> slots;
+
+  private final NodeLoad load;
 
   public NodeInfo(String nodeId) {
+    this(nodeId, ImmutableMap.<String, SlotInfo>of(), null);
+  }
+
+  private NodeInfo(String nodeId, ImmutableMap<String, SlotInfo> slots, NodeLoad load) {
     this.nodeId = nodeId;
+    this.slots = slots;
+    this.load = load;
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  public NodeInfo withSlot(SlotInfo slot) {
+    Map<String, SlotInfo> newSlots = Maps.newLinkedHashMap(slots);
+    newSlots.put(slot.getSlotId(), slot);
+    return new NodeInfo(nodeId, ImmutableMap.copyOf(newSlots), load);
+  }
+
+  public NodeInfo withoutSlot(String slotId) {
+    Map<String, SlotInfo> newSlots = Maps.newLinkedHashMap(slots);
+    newSlots.remove(slotId);
+    return new NodeInfo(nodeId, ImmutableMap.copyOf(newSlots), load);
+  }
+
+  public NodeInfo withLoad(NodeLoad load) {
+    return new NodeInfo(nodeId, slots, load);
+  }
+
+  /**
+   * @return the load from the last heart beat, null if the node has not sent one yet
+   */
+  public NodeLoad getLoad() {
+    return load;
   }
 
-  public synchronized SlotInfo addSlot(String slotId, DesiredCapabilities capabilities) {
-    SlotInfo slot = new SlotInfo(nodeId, slotId, capabilities);
-    slots.put(slotId, slot);
-    return slot;
+  /**
+   * @return the number of slots the hub considers busy, more recent than the last heart beat
+   */
+  public int getBusySlotCount() {
+    int count = 0;
+    for (SlotInfo slot : slots.values()) {
+      if (slot.isBusy()) {
+        count++;
+      }
+    }
+    return count;
   }
 
-  public synchronized void removeSlot(String slotId) {
-    slots.remove(slotId);
+  public SlotInfo getSlot(String slotId) {
+    return slots.get(slotId);
   }
 
-  public synchronized Collection<SlotInfo> getSlots() {
+  public Collection<SlotInfo> getSlots() {
     return slots.values();
   }
 }
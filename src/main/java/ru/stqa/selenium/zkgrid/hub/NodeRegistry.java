@@ -1,20 +1,36 @@
 package ru.stqa.selenium.zkgrid.hub;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
 import org.apache.curator.framework.recipes.cache.*;
 import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 import org.openqa.selenium.Capabilities;
-import org.openqa.selenium.remote.DesiredCapabilities;
-import org.openqa.selenium.remote.JsonToBeanConverter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.stqa.selenium.zkgrid.common.Curator;
+import ru.stqa.selenium.zkgrid.common.NodeLoad;
+import ru.stqa.selenium.zkgrid.common.NodeSlotStates;
 import ru.stqa.selenium.zkgrid.common.SlotAllocationResponse;
 import ru.stqa.selenium.zkgrid.common.SlotInfo;
-
+import ru.stqa.selenium.zkgrid.common.SlotState;
+import ru.stqa.selenium.zkgrid.common.WireFormat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 
 import static ru.stqa.selenium.zkgrid.common.PathUtils.*;
@@ -23,39 +39,55 @@ public class NodeRegistry {
 
   private static Logger log = LoggerFactory.getLogger(NodeRegistry.class);
 
+  private static final long LOST_NODES_TICK = 100;
+  private static final int LOST_NODES_WHEEL_SIZE = 1024;
+
   public static class Builder {
     private Curator curator;
 
-    private long lostTimeout;
     private long deadTimeout;
-    private Class<? extends CapabilityMatcher> capabilityMatcher;
+    private Class<? extends CompilingCapabilityMatcher> capabilityMatcher;
+    private Class<? extends PlacementStrategy> placementStrategy;
 
     public Builder(Curator curator) {
       this.curator = curator;
     }
 
-    public Builder withLostTimeout(long lostTimeout, TimeUnit timeUnit) {
-      this.lostTimeout = timeUnit.toMillis(lostTimeout);
-      return this;
-    }
-
     public Builder withDeadTimeout(long deadTimeout, TimeUnit timeUnit) {
       this.deadTimeout = timeUnit.toMillis(deadTimeout);
       return this;
     }
 
+    /**
+     * The slots are matched by buckets of equal matched capabilities, a plain {@link CapabilityMatcher}
+     * would see only one slot of each bucket, so the matcher has to compile the requests into predicates.
+     *
+     * @throws IllegalArgumentException if the matcher is not a {@link CompilingCapabilityMatcher}
+     */
     public Builder withCapabilityMatcher(String capabilityMatcherClass) throws ClassNotFoundException {
-      this.capabilityMatcher =
-          (Class<? extends CapabilityMatcher>) this.getClass().getClassLoader().loadClass(capabilityMatcherClass);
+      Class<?> matcherClass = this.getClass().getClassLoader().loadClass(capabilityMatcherClass);
+      if (!CompilingCapabilityMatcher.class.isAssignableFrom(matcherClass)) {
+        throw new IllegalArgumentException("Capability matcher " + capabilityMatcherClass + " does not implement "
+            + CompilingCapabilityMatcher.class.getName() + ", the registry can't match slot buckets with it");
+      }
+      this.capabilityMatcher = matcherClass.asSubclass(CompilingCapabilityMatcher.class);
+      return this;
+    }
+
+    public Builder withPlacementStrategy(String placementStrategyClass) throws ClassNotFoundException {
+      this.placementStrategy =
+          (Class<? extends PlacementStrategy>) this.getClass().getClassLoader().loadClass(placementStrategyClass);
       return this;
     }
 
     public NodeRegistry create() throws Exception {
       log.debug("Creating NodeRegistry");
       NodeRegistry registry = new NodeRegistry(curator);
-      registry.setLostTimeout(lostTimeout);
       registry.setDeadTimeout(deadTimeout);
       registry.setCapabilityMatcher(capabilityMatcher.newInstance());
+      if (placementStrategy != null) {
+        registry.setPlacementStrategy(placementStrategy.newInstance());
+      }
       registry.start();
       log.debug("NodeRegistry created");
       return registry;
@@ -64,35 +96,165 @@ public class NodeRegistry {
 
   private Curator curator;
 
-  private long lostTimeout;
   private long deadTimeout;
-  private CapabilityMatcher capabilityMatcher;
-
-  private Map<String, NodeInfo> nodes = Maps.newHashMap();
-  private Map<String, Future<?>> heartBeaters = Maps.newHashMap();
+  private CompilingCapabilityMatcher capabilityMatcher;
+  private PlacementStrategy placementStrategy;
+
+  // Registry structure is modified by the serviceExecutor thread only, readers see immutable snapshots
+  private volatile Snapshot snapshot = new Snapshot(ImmutableMap.<String, NodeInfo>of(), new SlotIndex());
+  // nodes that have lost their ZooKeeper session, with the deadlines they are removed from the registry at
+  private final TimingWheel<String> lostNodes = new TimingWheel<String>(
+      LOST_NODES_TICK, TimeUnit.MILLISECONDS, LOST_NODES_WHEEL_SIZE, new TimingWheel.ExpirationListener<String>() {
+    @Override
+    public void expired(String nodeId) {
+      // checkAlive may have armed the timer after the node came back, the alive event cancels nothing then
+      if (aliveCache != null && aliveCache.getCurrentData(nodeAlivePath(nodeId)) != null) {
+        log.info("Node {} is alive, not removed", nodeId);
+        return;
+      }
+      log.info("Node {} is dead", nodeId);
+      unregisterNode(nodeId);
+    }
+  });
+  private PathChildrenCache aliveCache;
+  // slot state versions are updated by the state listeners and the allocators, only moving forward
+  private final ConcurrentMap<SlotInfo, SlotStateVersion> stateVersions = new ConcurrentHashMap<SlotInfo, SlotStateVersion>();
+  private List<SlotListener> slotListeners = new CopyOnWriteArrayList<SlotListener>();
+  private List<Closeable> caches = new CopyOnWriteArrayList<Closeable>();
+  // one slot states znode per node, instead of a watch per slot
+  private final ConcurrentMap<String, NodeCache> slotStateCaches = new ConcurrentHashMap<String, NodeCache>();
+  private final ConcurrentMap<String, PathChildrenCache> slotRegistrationCaches =
+      new ConcurrentHashMap<String, PathChildrenCache>();
 
   private ScheduledExecutorService serviceExecutor;
+  // reservation leases are checked off the registry thread, the reclaiming writes are asynchronous
+  private ScheduledExecutorService leaseExecutor;
+  private final Set<SlotInfo> reclaiming = Sets.newConcurrentHashSet();
+  // slot listeners allocate and commit, they are notified in order but off the registry thread
+  private ExecutorService listenerExecutor;
+
+  private static class Snapshot {
+    private final ImmutableMap<String, NodeInfo> nodes;
+    private final SlotIndex slots;
+
+    private Snapshot(ImmutableMap<String, NodeInfo> nodes, SlotIndex slots) {
+      this.nodes = nodes;
+      this.slots = slots;
+    }
+
+    private Snapshot withNode(NodeInfo node) {
+      Map<String, NodeInfo> newNodes = Maps.newHashMap(nodes);
+      newNodes.put(node.getNodeId(), node);
+      return new Snapshot(ImmutableMap.copyOf(newNodes), slots);
+    }
+
+    private Snapshot withoutNode(String nodeId) {
+      NodeInfo node = nodes.get(nodeId);
+      if (node == null) {
+        return this;
+      }
+      SlotIndex newSlots = slots;
+      for (SlotInfo slot : node.getSlots()) {
+        newSlots = newSlots.withoutSlot(slot);
+      }
+      Map<String, NodeInfo> newNodes = Maps.newHashMap(nodes);
+      newNodes.remove(nodeId);
+      return new Snapshot(ImmutableMap.copyOf(newNodes), newSlots);
+    }
+
+    private Snapshot withNodes(Collection<NodeInfo> newNodes) {
+      Map<String, NodeInfo> allNodes = Maps.newHashMap(nodes);
+      List<SlotInfo> newSlots = Lists.newArrayList();
+      for (NodeInfo node : newNodes) {
+        allNodes.put(node.getNodeId(), node);
+        newSlots.addAll(node.getSlots());
+      }
+      return new Snapshot(ImmutableMap.copyOf(allNodes), slots.withSlots(newSlots));
+    }
+
+    private Snapshot withSlot(SlotInfo slot) {
+      NodeInfo node = nodes.get(slot.getNodeId());
+      if (node == null) {
+        return this;
+      }
+      return withNode(node.withSlot(slot)).withSlots(slots.withSlots(Collections.singletonList(slot)));
+    }
+
+    private Snapshot withoutSlot(SlotInfo slot) {
+      NodeInfo node = nodes.get(slot.getNodeId());
+      if (node == null) {
+        return this;
+      }
+      return withNode(node.withoutSlot(slot.getSlotId())).withSlots(slots.withoutSlot(slot));
+    }
+
+    private Snapshot withSlots(SlotIndex newSlots) {
+      return new Snapshot(nodes, newSlots);
+    }
+  }
 
   private NodeRegistry(Curator curator) {
     this.curator = curator;
 
     serviceExecutor = Executors.newSingleThreadScheduledExecutor();
-  }
-
-  private void setLostTimeout(long lostTimeout) {
-    this.lostTimeout = lostTimeout;
+    leaseExecutor = Executors.newSingleThreadScheduledExecutor();
+    listenerExecutor = Executors.newSingleThreadExecutor();
   }
 
   private void setDeadTimeout(long deadTimeout) {
     this.deadTimeout = deadTimeout;
   }
 
-  private void setCapabilityMatcher(CapabilityMatcher capabilityMatcher) {
+  private void setCapabilityMatcher(CompilingCapabilityMatcher capabilityMatcher) {
     this.capabilityMatcher = capabilityMatcher;
   }
 
+  private void setPlacementStrategy(PlacementStrategy placementStrategy) {
+    this.placementStrategy = placementStrategy;
+  }
+
   private void start() throws Exception {
+    restoreRegisteredNodes();
     startNodesDeregistrationListener();
+    lostNodes.start();
+    startLivenessListener();
+    leaseExecutor.scheduleWithFixedDelay(new LeaseReclaimer(), 1, 1, TimeUnit.SECONDS);
+  }
+
+  public void stop() {
+    leaseExecutor.shutdownNow();
+    serviceExecutor.shutdownNow();
+    listenerExecutor.shutdownNow();
+    lostNodes.stop();
+    for (Closeable cache : caches) {
+      try {
+        cache.close();
+      } catch (IOException ex) {
+        log.warn("Can't close cache", ex);
+      }
+    }
+    caches.clear();
+  }
+
+  /**
+   * Rebuilds the registry from the nodes and slots registered by the previous hub.
+   */
+  private void restoreRegisteredNodes() throws Exception {
+    long start = System.currentTimeMillis();
+    final List<NodeInfo> restored = new RegistryLoader(curator).load(stateVersions);
+    serviceExecutor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        snapshot = snapshot.withNodes(restored);
+        for (NodeInfo node : restored) {
+          snapshot.slots.offerFree(node.getSlots());
+          startSlotRegistrationListener(node.getNodeId());
+          startSlotStatesListener(node.getNodeId());
+        }
+        return null;
+      }
+    }).get();
+    log.info("{} nodes restored in {} ms", restored.size(), System.currentTimeMillis() - start);
   }
 
   public void registerNode(final String nodeId) {
@@ -100,9 +262,15 @@ public class NodeRegistry {
       @Override
       public void run() {
         try {
-          nodes.put(nodeId, new NodeInfo(nodeId));
-          startNodeHeartBeatWatcher(nodeId);
+          if (getNode(nodeId) != null) {
+            log.info("Node {} is already in the registry", nodeId);
+            curator.clearBarrier(nodePath(nodeId));
+            return;
+          }
+          snapshot = snapshot.withNode(new NodeInfo(nodeId));
+          startSlotStatesListener(nodeId);
           startSlotRegistrationListener(nodeId);
+          checkAlive(nodeId);
           log.info("Node {} added to the registry", nodeId);
           curator.clearBarrier(nodePath(nodeId));
         } catch (Exception ex) {
@@ -117,9 +285,26 @@ public class NodeRegistry {
       @Override
       public void run() {
         try {
-          nodes.remove(nodeId);
-          heartBeaters.get(nodeId).cancel(false);
-          heartBeaters.remove(nodeId);
+          if (getNode(nodeId) == null) {
+            return;
+          }
+          NodeInfo node = getNode(nodeId);
+          snapshot = snapshot.withoutNode(nodeId);
+          for (SlotInfo slot : node.getSlots()) {
+            stateVersions.remove(slot);
+            fireSlotRemoved(slot);
+          }
+          lostNodes.cancel(nodeId);
+          NodeCache slotStateCache = slotStateCaches.remove(nodeId);
+          if (slotStateCache != null) {
+            caches.remove(slotStateCache);
+            slotStateCache.close();
+          }
+          PathChildrenCache slotRegistrationCache = slotRegistrationCaches.remove(nodeId);
+          if (slotRegistrationCache != null) {
+            caches.remove(slotRegistrationCache);
+            slotRegistrationCache.close();
+          }
           curator.delete(nodePath(nodeId, ""));
           log.info("Node {} removed from the registry", nodeId);
         } catch (Exception ex) {
@@ -129,34 +314,95 @@ public class NodeRegistry {
     });
   }
 
-  private void startNodeHeartBeatWatcher(final String nodeId) {
-    Future<?> heartBeater = serviceExecutor.scheduleAtFixedRate(new Runnable() {
-      @Override
-      public void run() {
-        try {
-          if (curator.checkExists(nodeHeartBeatPath(nodeId))) {
-            long timestamp = Long.parseLong(curator.getDataForPath(nodeHeartBeatPath(nodeId)));
-            long now = System.currentTimeMillis();
-            if (now - timestamp > deadTimeout) {
-              unregisterNode(nodeId);
+  /**
+   * Node liveness is the ephemeral znode each node keeps in /alive while its ZooKeeper session lasts,
+   * the znode data is the node load. A node whose znode disappears is lost, if it does not come back
+   * within the dead timeout it is dead and is removed from the registry. No node is polled.
+   */
+  private void startLivenessListener() throws Exception {
+    curator.create(aliveNodesPath());
 
-            } else if (now - timestamp > lostTimeout) {
-              log.info("Node {} is lost", nodeId);
+    PathChildrenCacheListener aliveListener = new PathChildrenCacheListener() {
+      @Override
+      public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+        switch (event.getType()) {
+          case CHILD_ADDED:
+          case CHILD_UPDATED: {
+            nodeAlive(ZKPaths.getNodeFromPath(event.getData().getPath()), event.getData().getData());
+            break;
+          }
 
-            } else {
-              log.debug("Node {} is alive", nodeId);
-            }
+          case CHILD_REMOVED: {
+            nodeLost(ZKPaths.getNodeFromPath(event.getData().getPath()));
+            break;
+          }
 
-          } else {
-            log.warn("Node {} has no heartbeat", nodeId);
-            curator.setData(nodeHeartBeatPath(nodeId), String.valueOf(System.currentTimeMillis()));
+          case INITIALIZED: {
+            // nodes restored from the previous hub that have not come back, once the restored nodes are published
+            serviceExecutor.submit(new Runnable() {
+              @Override
+              public void run() {
+                for (String nodeId : snapshot.nodes.keySet()) {
+                  checkAlive(nodeId);
+                }
+              }
+            });
+            break;
           }
-        } catch (Exception ex) {
-          throw Throwables.propagate(ex);
         }
       }
-    }, lostTimeout / 2, lostTimeout / 2, TimeUnit.MILLISECONDS);
-    heartBeaters.put(nodeId, heartBeater);
+    };
+
+    aliveCache = new PathChildrenCache(curator.getClient(), aliveNodesPath(), true);
+    caches.add(aliveCache);
+    aliveCache.getListenable().addListener(aliveListener);
+    aliveCache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+  }
+
+  /**
+   * Called on the cache thread, the lost node deadlines are kept off the registry thread.
+   */
+  private void nodeAlive(final String nodeId, final byte[] load) {
+    if (lostNodes.cancel(nodeId)) {
+      log.info("Node {} is alive again", nodeId);
+    }
+    if (load == null || load.length == 0) {
+      return;
+    }
+    serviceExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        NodeInfo node = getNode(nodeId);
+        if (node != null) {
+          snapshot = snapshot.withNode(node.withLoad(NodeLoad.fromJson(new String(load))));
+        }
+      }
+    });
+  }
+
+  private void nodeLost(String nodeId) {
+    if (getNode(nodeId) != null) {
+      startDeathTimer(nodeId);
+    }
+  }
+
+  private void checkAlive(String nodeId) {
+    if (aliveCache.getCurrentData(nodeAlivePath(nodeId)) == null) {
+      startDeathTimer(nodeId);
+    }
+  }
+
+  /**
+   * @return true if the node has lost its alive znode and waits for the dead timeout
+   */
+  boolean isLost(String nodeId) {
+    return lostNodes.isScheduled(nodeId);
+  }
+
+  private void startDeathTimer(String nodeId) {
+    if (lostNodes.scheduleIfAbsent(nodeId, deadTimeout, TimeUnit.MILLISECONDS)) {
+      log.info("Node {} is lost", nodeId);
+    }
   }
 
   private void startNodesDeregistrationListener() throws Exception {
@@ -173,7 +419,8 @@ public class NodeRegistry {
       }
     };
 
-    PathChildrenCache nodesCache = new PathChildrenCache(curator.getClient(), "/nodes", false);
+    PathChildrenCache nodesCache = new PathChildrenCache(curator.getClient(), nodesPath(), false);
+    caches.add(nodesCache);
     nodesCache.start();
     nodesCache.getListenable().addListener(nodesListener);
   }
@@ -181,79 +428,325 @@ public class NodeRegistry {
   private void startSlotRegistrationListener(final String nodeId) throws Exception {
     curator.create(nodeSlotsPath(nodeId));
 
-    PathChildrenCacheListener nodesListener = new PathChildrenCacheListener() {
+    PathChildrenCache slotsCache = new PathChildrenCache(curator.getClient(), nodeSlotsPath(nodeId), false);
+    if (slotRegistrationCaches.putIfAbsent(nodeId, slotsCache) != null) {
+      return;
+    }
+    caches.add(slotsCache);
+
+    PathChildrenCacheListener slotsListener = new PathChildrenCacheListener() {
       @Override
       public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
         switch (event.getType()) {
           case CHILD_ADDED: {
             String slotId = ZKPaths.getNodeFromPath(event.getData().getPath());
-            String data = curator.getDataForPath(nodeSlotPath(nodeId, slotId));
-            DesiredCapabilities capabilities = new JsonToBeanConverter().convert(DesiredCapabilities.class, data);
+            Capabilities capabilities = WireFormat.decodeCapabilities(
+                curator.getClient().getData().forPath(nodeSlotPath(nodeId, slotId)));
             log.info("Slot registration request " + slotId + " " + capabilities);
-            SlotInfo slot = getNode(nodeId).addSlot(slotId, capabilities);
-            startSlotStateListener(slot);
+            registerSlot(new SlotInfo(nodeId, slotId, capabilities));
             break;
           }
 
           case CHILD_REMOVED: {
             String slotId = ZKPaths.getNodeFromPath(event.getData().getPath());
             log.info("Slot removed " + slotId);
-            getNode(nodeId).removeSlot(slotId);
+            unregisterSlot(nodeId, slotId);
             break;
           }
         }
       }
     };
 
-    PathChildrenCache nodesCache = new PathChildrenCache(curator.getClient(), nodeSlotsPath(nodeId), false);
-    nodesCache.start();
-    nodesCache.getListenable().addListener(nodesListener);
+    slotsCache.getListenable().addListener(slotsListener);
+    slotsCache.start();
   }
 
-  private void startSlotStateListener(final SlotInfo slot) throws Exception {
-    final NodeCache nodeCache = new NodeCache(curator.getClient(), nodeSlotStatePath(slot), false);
-    nodeCache.start();
+  private void registerSlot(final SlotInfo slot) {
+    serviceExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          NodeInfo node = getNode(slot.getNodeId());
+          if (node == null || node.getSlot(slot.getSlotId()) != null) {
+            return;
+          }
+          // the node creates the state as free along with the slot
+          updateStateVersion(slot, new SlotStateVersion(0, true));
+          snapshot = snapshot.withSlot(slot);
+          snapshot.slots.offerFree(Collections.singletonList(slot));
+          // the node may have published the state before the slot registration came
+          NodeCache slotStateCache = slotStateCaches.get(slot.getNodeId());
+          if (slotStateCache != null && slotStateCache.getCurrentData() != null) {
+            applySlotStates(getNode(slot.getNodeId()),
+                NodeSlotStates.fromBytes(slotStateCache.getCurrentData().getData()));
+          }
+          if (!slot.isBusy()) {
+            fireSlotFreed(slot);
+          }
+        } catch (Exception ex) {
+          throw Throwables.propagate(ex);
+        }
+      }
+    });
+  }
 
-    NodeCacheListener nodesListener = new NodeCacheListener () {
+  private void unregisterSlot(final String nodeId, final String slotId) {
+    serviceExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        NodeInfo node = getNode(nodeId);
+        SlotInfo slot = node != null ? node.getSlot(slotId) : null;
+        if (slot != null) {
+          snapshot = snapshot.withoutSlot(slot);
+          stateVersions.remove(slot);
+          fireSlotRemoved(slot);
+        }
+      }
+    });
+  }
+
+  /**
+   * The node publishes the states of all its slots in one znode, the slots whose state version
+   * has not moved forward since the last change are skipped. The hub's own writes to the slot states
+   * are applied by the hub itself.
+   */
+  private void startSlotStatesListener(final String nodeId) throws Exception {
+    final NodeCache nodeCache = new NodeCache(curator.getClient(), nodeSlotStatesPath(nodeId), false);
+    if (slotStateCaches.putIfAbsent(nodeId, nodeCache) != null) {
+      return;
+    }
+    caches.add(nodeCache);
+
+    NodeCacheListener statesListener = new NodeCacheListener () {
       @Override
       public void nodeChanged() throws Exception {
-        String data = new String(nodeCache.getCurrentData().getData());
-        log.info("Slot {} state changed to {}", slot, data);
-        if ("busy".equals(data)) {
-          slot.setBusy(true);
-        } else {
-          slot.setBusy(false);
+        ChildData data = nodeCache.getCurrentData();
+        NodeInfo node = getNode(nodeId);
+        if (data != null && node != null) {
+          applySlotStates(node, NodeSlotStates.fromBytes(data.getData()));
         }
       }
     };
 
-    nodeCache.getListenable().addListener(nodesListener);
+    nodeCache.getListenable().addListener(statesListener);
+    nodeCache.start();
   }
 
-  private NodeInfo getNode(String nodeId) {
-    return nodes.get(nodeId);
+  private void applySlotStates(NodeInfo node, NodeSlotStates states) {
+    for (String slotId : states.getSlotIds()) {
+      SlotInfo slot = node.getSlot(slotId);
+      if (slot != null) {
+        // the node writes its states with no lease
+        applySlotState(slot, states.isBusy(slotId) ? SlotState.busy(null, 0) : SlotState.free(),
+            states.getVersion(slotId));
+      }
+    }
   }
 
-  public SlotAllocationResponse findFreeMatchingSlot(Capabilities requiredCapabilities) {
-    int matchingSlots = 0;
-    for (NodeInfo node : nodes.values()) {
-      for (SlotInfo slot : node.getSlots()) {
-        if (capabilityMatcher.matches(slot.getCapabilities(), requiredCapabilities)) {
-          if (!slot.isBusy()) {
-            return new SlotAllocationResponse(SlotAllocationResponse.Status.OK, slot);
-          } else {
-            matchingSlots++;
+  /**
+   * Records the reservation the hub has written.
+   */
+  void slotReserved(SlotInfo slot, int version, long leaseUntil) {
+    updateStateVersion(slot, new SlotStateVersion(version, false, leaseUntil));
+  }
+
+  private void applySlotState(SlotInfo slot, SlotState state, int version) {
+    if (!updateStateVersion(slot, new SlotStateVersion(version, !state.isBusy(), state.getLeaseUntil()))) {
+      return;
+    }
+    log.info("Slot {} state changed to {}", slot, state);
+    if (state.isBusy()) {
+      claimSlot(slot);
+    } else if (releaseSlot(slot)) {
+      fireSlotFreed(slot);
+    }
+  }
+
+  /**
+   * @return false if a newer or the same version has been seen already
+   */
+  private boolean updateStateVersion(SlotInfo slot, SlotStateVersion next) {
+    while (true) {
+      SlotStateVersion current = stateVersions.putIfAbsent(slot, next);
+      if (current == null) {
+        return true;
+      }
+      if (current.version >= next.version) {
+        return false;
+      }
+      if (stateVersions.replace(slot, current, next)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * @return the state version the slot can be reserved at, -1 if the hub has not seen the slot free
+   */
+  int getFreeStateVersion(SlotInfo slot) {
+    SlotStateVersion version = stateVersions.get(slot);
+    return version != null && version.free ? version.version : -1;
+  }
+
+  /**
+   * Frees the slots reserved for clients that have not started a session before the lease expired.
+   * The node takes a reservation with a versioned write too, so either the node or the reclaimer wins.
+   */
+  private class LeaseReclaimer implements Runnable {
+    @Override
+    public void run() {
+      long now = System.currentTimeMillis();
+      for (Map.Entry<SlotInfo, SlotStateVersion> entry : stateVersions.entrySet()) {
+        if (entry.getValue().isLeaseExpired(now) && reclaiming.add(entry.getKey())) {
+          reclaim(entry.getKey(), entry.getValue().version);
+        }
+      }
+    }
+
+    private void reclaim(final SlotInfo slot, int version) {
+      final SlotState free = SlotState.free();
+      try {
+        curator.getClient().setData().withVersion(version).inBackground(new BackgroundCallback() {
+          @Override
+          public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+            reclaiming.remove(slot);
+            if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+              applySlotState(slot, free, event.getStat().getVersion());
+              log.info("Slot {} reservation has expired, the slot is reclaimed", slot);
+            } else if (event.getResultCode() == KeeperException.Code.BADVERSION.intValue()) {
+              log.debug("Slot {} reservation has been taken by its node", slot);
+            } else {
+              log.warn("Can't reclaim slot {}: {}", slot, KeeperException.Code.get(event.getResultCode()));
+            }
+          }
+        }).forPath(nodeSlotStatePath(slot), free.toBytes());
+      } catch (Exception ex) {
+        reclaiming.remove(slot);
+        log.warn("Can't reclaim slot " + slot, ex);
+      }
+    }
+  }
+
+  /**
+   * Reads the slot state after a reservation conflict, not waiting for the state listener.
+   */
+  void refreshSlotState(SlotInfo slot) {
+    try {
+      Stat stat = new Stat();
+      byte[] data = curator.getClient().getData().storingStatIn(stat).forPath(nodeSlotStatePath(slot));
+      applySlotState(slot, SlotState.fromBytes(data), stat.getVersion());
+    } catch (Exception ex) {
+      log.warn("Can't read state of the slot " + slot, ex);
+    }
+  }
+
+  public void addSlotListener(SlotListener listener) {
+    slotListeners.add(listener);
+  }
+
+  public void removeSlotListener(SlotListener listener) {
+    slotListeners.remove(listener);
+  }
+
+  void fireSlotFreed(final SlotInfo slot) {
+    final SlotCapabilities capabilities = snapshot.slots.getCapabilities(slot);
+    listenerExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        for (SlotListener listener : slotListeners) {
+          try {
+            listener.slotFreed(slot, capabilities);
+          } catch (Exception ex) {
+            log.error("Slot listener failed on freed slot " + slot, ex);
+          }
+        }
+      }
+    });
+  }
+
+  private void fireSlotRemoved(final SlotInfo slot) {
+    listenerExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        for (SlotListener listener : slotListeners) {
+          try {
+            listener.slotRemoved(slot);
+          } catch (Exception ex) {
+            log.error("Slot listener failed on removed slot " + slot, ex);
           }
         }
       }
+    });
+  }
+
+  private NodeInfo getNode(String nodeId) {
+    return snapshot.nodes.get(nodeId);
+  }
+
+  public Collection<NodeInfo> getNodes() {
+    return snapshot.nodes.values();
+  }
+
+  public SlotAllocationResponse findFreeMatchingSlot(Capabilities requiredCapabilities) {
+    return findFreeMatchingSlot(compile(requiredCapabilities));
+  }
+
+  public SlotAllocationResponse findFreeMatchingSlot(CapabilityPredicate predicate) {
+    Snapshot current = snapshot;
+    if (placementStrategy == null) {
+      return current.slots.findFreeMatchingSlot(predicate);
+    }
+    return current.slots.findFreeMatchingSlot(predicate, new PlacementOrder(current.nodes));
+  }
+
+  /**
+   * Orders slots by the placement strategy score of their nodes,
+   * each node is scored once per allocation.
+   */
+  private class PlacementOrder implements Comparator<SlotInfo> {
+    private final Map<String, NodeInfo> nodes;
+    private final Map<String, Double> scores = Maps.newHashMap();
+
+    private PlacementOrder(Map<String, NodeInfo> nodes) {
+      this.nodes = nodes;
+    }
+
+    @Override
+    public int compare(SlotInfo slot1, SlotInfo slot2) {
+      return Double.compare(score(slot1.getNodeId()), score(slot2.getNodeId()));
     }
-    if (matchingSlots == 0) {
-      return new SlotAllocationResponse(SlotAllocationResponse.Status.NO_MATCHING_SLOT, null,
-          "There are no matching slots found");
-    } else {
-      return new SlotAllocationResponse(SlotAllocationResponse.Status.NO_FREE_SLOT, null,
-          "There are "+matchingSlots+" matching slots, but they are all busy");
+
+    private double score(String nodeId) {
+      Double score = scores.get(nodeId);
+      if (score == null) {
+        NodeInfo node = nodes.get(nodeId);
+        score = node != null ? placementStrategy.score(node) : Double.MAX_VALUE;
+        scores.put(nodeId, score);
+      }
+      return score;
     }
   }
 
+  CapabilityPredicate compile(Capabilities requiredCapabilities) {
+    return capabilityMatcher.compile(requiredCapabilities);
+  }
+
+  /**
+   * Marks the slot busy.
+   *
+   * @return false if the slot is already busy
+   */
+  public boolean claimSlot(SlotInfo slot) {
+    return snapshot.slots.claim(slot);
+  }
+
+  /**
+   * Marks the slot free and returns it to the free slot inventory, slot listeners are not notified.
+   *
+   * @return false if the slot is already free
+   */
+  public boolean releaseSlot(SlotInfo slot) {
+    return snapshot.slots.release(slot);
+  }
+
 }
@@ -0,0 +1,9 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+/**
+ * Ranks the nodes a new session can be placed on, a free matching slot
+ * on the node with the lowest score is allocated first.
+ */
+public interface PlacementStrategy {
+  double score(NodeInfo node);
+}
@@ -10,12 +10,15 @@ import org.slf4j.LoggerFactory;
 import ru.stqa.selenium.zkgrid.common.Curator;
 import ru.stqa.selenium.zkgrid.common.StringSerializer;
 
+import java.io.IOException;
+
 public class RegistrationRequestProcessor {
 
   private static Logger log = LoggerFactory.getLogger(RegistrationRequestProcessor.class);
 
   private Curator curator;
   private NodeRegistry nodeRegistry;
+  private DistributedQueue<String> queue;
 
   public RegistrationRequestProcessor(Curator curator, NodeRegistry nodeRegistry) {
     this.curator = curator;
@@ -23,11 +26,15 @@ public class RegistrationRequestProcessor {
   }
 
   public void start() throws Exception {
-    DistributedQueue<String> queue = QueueBuilder.builder(
+    queue = QueueBuilder.builder(
         curator.getClient(), new RegistrationRequestConsumer(), new StringSerializer(), "/registrationRequests").buildQueue();
     queue.start();
   }
 
+  public void stop() throws IOException {
+    queue.close();
+  }
+
   private class RegistrationRequestConsumer implements QueueConsumer<String> {
     @Override
     public void consumeMessage(String nodeId) throws Exception {
@@ -0,0 +1,150 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.stqa.selenium.zkgrid.common.Curator;
+import ru.stqa.selenium.zkgrid.common.SlotInfo;
+import ru.stqa.selenium.zkgrid.common.SlotState;
+import ru.stqa.selenium.zkgrid.common.WireFormat;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static ru.stqa.selenium.zkgrid.common.PathUtils.*;
+
+/**
+ * Reads the nodes and slots registered by a previous hub from /nodes in bulk:
+ * all the reads of a level are sent at once in background, so the load takes
+ * a couple of round trips instead of one round trip per znode.
+ */
+class RegistryLoader {
+
+  private static Logger log = LoggerFactory.getLogger(RegistryLoader.class);
+
+  private static final long TIMEOUT = 60;
+
+  private final Curator curator;
+
+  RegistryLoader(Curator curator) {
+    this.curator = curator;
+  }
+
+  /**
+   * @param stateVersions receives the versions of the slot states
+   */
+  public List<NodeInfo> load(Map<SlotInfo, SlotStateVersion> stateVersions) throws Exception {
+    List<NodeInfo> nodes = Lists.newArrayList();
+    if (!curator.checkExists(nodesPath())) {
+      return nodes;
+    }
+
+    List<String> nodeIds = curator.getClient().getChildren().forPath(nodesPath());
+
+    Map<String, List<String>> slotIds = Maps.newConcurrentMap();
+    CountDownLatch childrenLatch = new CountDownLatch(nodeIds.size());
+    for (String nodeId : nodeIds) {
+      curator.getClient().getChildren()
+          .inBackground(new ChildrenCallback(nodeId, slotIds, childrenLatch))
+          .forPath(nodeSlotsPath(nodeId));
+    }
+    await(childrenLatch);
+
+    Map<String, byte[]> data = Maps.newConcurrentMap();
+    Map<String, Integer> versions = Maps.newConcurrentMap();
+    int slotCount = 0;
+    for (List<String> slots : slotIds.values()) {
+      slotCount += slots.size();
+    }
+    CountDownLatch dataLatch = new CountDownLatch(slotCount * 2);
+    for (Map.Entry<String, List<String>> node : slotIds.entrySet()) {
+      for (String slotId : node.getValue()) {
+        readData(nodeSlotPath(node.getKey(), slotId), data, versions, dataLatch);
+        readData(nodeSlotStatePath(node.getKey(), slotId), data, versions, dataLatch);
+      }
+    }
+    await(dataLatch);
+
+    for (Map.Entry<String, List<String>> node : slotIds.entrySet()) {
+      NodeInfo nodeInfo = new NodeInfo(node.getKey());
+      for (String slotId : node.getValue()) {
+        byte[] capabilities = data.get(nodeSlotPath(node.getKey(), slotId));
+        if (capabilities == null || capabilities.length == 0) {
+          continue;
+        }
+        SlotInfo slot = new SlotInfo(node.getKey(), slotId, WireFormat.decodeCapabilities(capabilities));
+        String statePath = nodeSlotStatePath(node.getKey(), slotId);
+        SlotState state = SlotState.fromBytes(data.get(statePath));
+        slot.setBusy(state.isBusy());
+        if (versions.containsKey(statePath)) {
+          stateVersions.put(slot, new SlotStateVersion(versions.get(statePath), !state.isBusy(), state.getLeaseUntil()));
+        }
+        nodeInfo = nodeInfo.withSlot(slot);
+      }
+      nodes.add(nodeInfo);
+    }
+    return nodes;
+  }
+
+  private void readData(String path, Map<String, byte[]> data, Map<String, Integer> versions,
+                        CountDownLatch latch) throws Exception {
+    curator.getClient().getData().inBackground(new DataCallback(data, versions, latch)).forPath(path);
+  }
+
+  private void await(CountDownLatch latch) throws InterruptedException {
+    if (!latch.await(TIMEOUT, TimeUnit.SECONDS)) {
+      throw new Error("Registry loading timeout");
+    }
+  }
+
+  private static class ChildrenCallback implements BackgroundCallback {
+    private final String nodeId;
+    private final Map<String, List<String>> slotIds;
+    private final CountDownLatch latch;
+
+    private ChildrenCallback(String nodeId, Map<String, List<String>> slotIds, CountDownLatch latch) {
+      this.nodeId = nodeId;
+      this.slotIds = slotIds;
+      this.latch = latch;
+    }
+
+    @Override
+    public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+      if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+        slotIds.put(nodeId, event.getChildren());
+      } else {
+        // the node has not been registered yet, its registration request is still in the queue
+        log.debug("Node {} has no slots: {}", nodeId, KeeperException.Code.get(event.getResultCode()));
+      }
+      latch.countDown();
+    }
+  }
+
+  private static class DataCallback implements BackgroundCallback {
+    private final Map<String, byte[]> data;
+    private final Map<String, Integer> versions;
+    private final CountDownLatch latch;
+
+    private DataCallback(Map<String, byte[]> data, Map<String, Integer> versions, CountDownLatch latch) {
+      this.data = data;
+      this.versions = versions;
+      this.latch = latch;
+    }
+
+    @Override
+    public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+      if (event.getResultCode() == KeeperException.Code.OK.intValue() && event.getData() != null) {
+        data.put(event.getPath(), event.getData());
+        versions.put(event.getPath(), event.getStat().getVersion());
+      }
+      latch.countDown();
+    }
+  }
+}
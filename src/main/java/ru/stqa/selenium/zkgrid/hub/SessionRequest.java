@@ -0,0 +1,110 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import org.openqa.selenium.Capabilities;
+import ru.stqa.selenium.zkgrid.common.RequestCapabilities;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A new session request as seen by the hub: the client, the required capabilities
+ * compiled into a predicate, and the moment the client stops waiting for a slot.
+ * Requests without a deadline come from older clients, they never wait and never expire.
+ */
+class SessionRequest {
+
+  // time the hub needs to respond to a waiting request before its client gives up
+  static final long RESPONSE_MARGIN = 2000;
+
+  private static final AtomicLong sequence = new AtomicLong();
+
+  private final long order = sequence.incrementAndGet();
+  private final String clientId;
+  private final Capabilities capabilities;
+  private final CapabilityPredicate predicate;
+  private final long deadline;
+  private final String tenant;
+  private final int priority;
+  private int attempts;
+  private boolean holdsShare;
+
+  SessionRequest(Capabilities capabilities, CapabilityPredicate predicate) {
+    this.clientId = (String) capabilities.getCapability(RequestCapabilities.CLIENT_ID);
+    this.capabilities = capabilities;
+    this.predicate = predicate;
+    Object deadline = capabilities.getCapability(RequestCapabilities.DEADLINE);
+    this.deadline = deadline instanceof Number ? ((Number) deadline).longValue() : 0;
+    this.tenant = tenantOf(capabilities);
+    Object priority = capabilities.getCapability(RequestCapabilities.PRIORITY);
+    this.priority = priority instanceof Number ? ((Number) priority).intValue() : 0;
+  }
+
+  static String tenantOf(Capabilities capabilities) {
+    Object tenant = capabilities.getCapability(RequestCapabilities.TENANT);
+    return tenant != null && !"".equals(tenant) ? tenant.toString() : TenantShares.DEFAULT_TENANT;
+  }
+
+  public long getOrder() {
+    return order;
+  }
+
+  public String getClientId() {
+    return clientId;
+  }
+
+  public Capabilities getCapabilities() {
+    return capabilities;
+  }
+
+  public CapabilityPredicate getPredicate() {
+    return predicate;
+  }
+
+  public long getDeadline() {
+    return deadline;
+  }
+
+  /**
+   * @return the number of the reservation attempts including this one
+   */
+  public int retry() {
+    return ++attempts;
+  }
+
+  public String getTenant() {
+    return tenant;
+  }
+
+  /**
+   * @return priority class of the request, higher priorities are served first
+   */
+  public int getPriority() {
+    return priority;
+  }
+
+  /**
+   * @return true if the session the request is going to start is counted to the tenant
+   */
+  boolean holdsShare() {
+    return holdsShare;
+  }
+
+  void setHoldsShare(boolean holdsShare) {
+    this.holdsShare = holdsShare;
+  }
+
+  public boolean canWait(long now) {
+    return deadline - RESPONSE_MARGIN > now;
+  }
+
+  /**
+   * @return true if the client has given up waiting for the response
+   */
+  public boolean isExpired(long now) {
+    return deadline > 0 && deadline <= now;
+  }
+
+  @Override
+  public String toString() {
+    return "{clientId=" + clientId + ", tenant=" + tenant + ", capabilities=" + capabilities + "}";
+  }
+}
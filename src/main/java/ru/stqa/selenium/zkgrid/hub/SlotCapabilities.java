@@ -0,0 +1,50 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.Platform;
+import org.openqa.selenium.remote.CapabilityType;
+
+/**
+ * Slot capabilities parsed once at slot registration: the platform is resolved
+ * to the enum and the version is split into a numeric vector.
+ */
+public class SlotCapabilities {
+
+  private final Capabilities capabilities;
+  private final Object browserName;
+  private final Platform platform;
+  private final int[] version;
+  private final Object applicationName;
+
+  public SlotCapabilities(Capabilities capabilities) {
+    this.capabilities = capabilities;
+    this.browserName = capabilities.getCapability(CapabilityType.BROWSER_NAME);
+    this.platform = capabilities.getPlatform();
+    this.version = Versions.parse(capabilities.getVersion());
+    this.applicationName = capabilities.getCapability(SlotIndex.APPLICATION_NAME);
+  }
+
+  public Capabilities getCapabilities() {
+    return capabilities;
+  }
+
+  public Object getBrowserName() {
+    return browserName;
+  }
+
+  public Platform getPlatform() {
+    return platform;
+  }
+
+  /**
+   * @return parsed version, or null if the version string is not a sequence
+   *         of ordinal numbers separated by decimal points.
+   */
+  public int[] getVersion() {
+    return version;
+  }
+
+  public Object getApplicationName() {
+    return applicationName;
+  }
+}
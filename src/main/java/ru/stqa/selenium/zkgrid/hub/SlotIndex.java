@@ -0,0 +1,207 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import ru.stqa.selenium.zkgrid.common.SlotAllocationResponse;
+import ru.stqa.selenium.zkgrid.common.SlotInfo;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Inventory of the registered slots grouped into buckets by the capabilities
+ * the matcher takes into account (browserName, platform, version, applicationName).
+ *
+ * Slot capabilities are parsed once when the bucket is created, the compiled
+ * request predicate is evaluated once per bucket, not once per slot,
+ * and each bucket keeps its own queue of free slots, so an allocation touches
+ * only the buckets that match the request. Capability matchers are expected
+ * to consider only the capabilities the buckets are keyed by, the registry
+ * takes compiling matchers only.
+ *
+ * The index is an immutable snapshot: adding or removing a slot returns a new index.
+ * The busy flags of the slots and the free queues are shared between snapshots
+ * and are changed atomically, so any number of threads can allocate slots without locks.
+ */
+class SlotIndex {
+
+  static final String APPLICATION_NAME = "applicationName";
+
+  private final ImmutableMap<CapabilityKey, Bucket> buckets;
+
+  SlotIndex() {
+    this(ImmutableMap.<CapabilityKey, Bucket>of());
+  }
+
+  private SlotIndex(ImmutableMap<CapabilityKey, Bucket> buckets) {
+    this.buckets = buckets;
+  }
+
+  public SlotIndex withSlots(Collection<SlotInfo> newSlots) {
+    Map<CapabilityKey, Bucket> newBuckets = Maps.newHashMap(buckets);
+    Map<CapabilityKey, ImmutableSet.Builder<SlotInfo>> bucketSlots = Maps.newHashMap();
+    for (SlotInfo slot : newSlots) {
+      CapabilityKey key = new CapabilityKey(slot.getCapabilities());
+      Bucket bucket = newBuckets.get(key);
+      if (bucket == null) {
+        bucket = new Bucket(new SlotCapabilities(slot.getCapabilities()),
+            ImmutableSet.<SlotInfo>of(), new ConcurrentLinkedQueue<SlotInfo>());
+        newBuckets.put(key, bucket);
+      }
+      ImmutableSet.Builder<SlotInfo> slots = bucketSlots.get(key);
+      if (slots == null) {
+        slots = ImmutableSet.<SlotInfo>builder().addAll(bucket.slots);
+        bucketSlots.put(key, slots);
+      }
+      slots.add(slot);
+    }
+    for (Map.Entry<CapabilityKey, ImmutableSet.Builder<SlotInfo>> slots : bucketSlots.entrySet()) {
+      Bucket bucket = newBuckets.get(slots.getKey());
+      newBuckets.put(slots.getKey(), new Bucket(bucket.capabilities, slots.getValue().build(), bucket.free));
+    }
+    return new SlotIndex(ImmutableMap.copyOf(newBuckets));
+  }
+
+  /**
+   * Puts the free slots to the free slot queues, must be called after the index
+   * containing the slots is published, allocators discard queued slots unknown to the index.
+   */
+  public void offerFree(Collection<SlotInfo> slots) {
+    for (SlotInfo slot : slots) {
+      Bucket bucket = buckets.get(new CapabilityKey(slot.getCapabilities()));
+      if (bucket != null && !slot.isBusy()) {
+        bucket.free.offer(slot);
+      }
+    }
+  }
+
+  public SlotIndex withoutSlot(SlotInfo slot) {
+    CapabilityKey key = new CapabilityKey(slot.getCapabilities());
+    Bucket bucket = buckets.get(key);
+    if (bucket == null || !bucket.slots.contains(slot)) {
+      return this;
+    }
+    bucket.free.remove(slot);
+    Map<CapabilityKey, Bucket> newBuckets = Maps.newHashMap(buckets);
+    if (bucket.slots.size() == 1) {
+      newBuckets.remove(key);
+    } else {
+      ImmutableSet.Builder<SlotInfo> slots = ImmutableSet.builder();
+      for (SlotInfo s : bucket.slots) {
+        if (s != slot) {
+          slots.add(s);
+        }
+      }
+      newBuckets.put(key, new Bucket(bucket.capabilities, slots.build(), bucket.free));
+    }
+    return new SlotIndex(ImmutableMap.copyOf(newBuckets));
+  }
+
+  public SlotCapabilities getCapabilities(SlotInfo slot) {
+    Bucket bucket = buckets.get(new CapabilityKey(slot.getCapabilities()));
+    return bucket != null ? bucket.capabilities : new SlotCapabilities(slot.getCapabilities());
+  }
+
+  /**
+   * @return true if the slot was free and now is marked busy
+   */
+  public boolean claim(SlotInfo slot) {
+    return slot.compareAndSetBusy(false, true);
+  }
+
+  /**
+   * @return true if the slot was busy and now is marked free
+   */
+  public boolean release(SlotInfo slot) {
+    if (!slot.compareAndSetBusy(true, false)) {
+      return false;
+    }
+    Bucket bucket = buckets.get(new CapabilityKey(slot.getCapabilities()));
+    if (bucket != null && bucket.slots.contains(slot)) {
+      bucket.free.offer(slot);
+    }
+    return true;
+  }
+
+  /**
+   * Finds a free slot that matches the predicate and marks it busy, slots are taken in the order they were freed.
+   */
+  public SlotAllocationResponse findFreeMatchingSlot(CapabilityPredicate predicate) {
+    int matchingSlots = 0;
+    for (Bucket bucket : buckets.values()) {
+      if (predicate.matches(bucket.capabilities)) {
+        SlotInfo slot;
+        while ((slot = bucket.free.poll()) != null) {
+          // the queue may hold slots that were taken by the node itself or removed from the registry
+          if (bucket.slots.contains(slot) && claim(slot)) {
+            return new SlotAllocationResponse(SlotAllocationResponse.Status.OK, slot);
+          }
+        }
+        matchingSlots += bucket.slots.size();
+      }
+    }
+    return notFound(matchingSlots);
+  }
+
+  /**
+   * Finds the most preferred free slot that matches the predicate and marks it busy.
+   * Unlike the queue order allocation it looks through all the free matching slots, in a single pass,
+   * and looks again if the preferred slot is taken concurrently.
+   */
+  public SlotAllocationResponse findFreeMatchingSlot(CapabilityPredicate predicate, Comparator<SlotInfo> preference) {
+    while (true) {
+      int matchingSlots = 0;
+      SlotInfo best = null;
+      Bucket bestBucket = null;
+      for (Bucket bucket : buckets.values()) {
+        if (predicate.matches(bucket.capabilities)) {
+          for (Iterator<SlotInfo> i = bucket.free.iterator(); i.hasNext(); ) {
+            SlotInfo slot = i.next();
+            if (!bucket.slots.contains(slot) || slot.isBusy()) {
+              i.remove();
+            } else if (best == null || preference.compare(slot, best) < 0) {
+              best = slot;
+              bestBucket = bucket;
+            }
+          }
+          matchingSlots += bucket.slots.size();
+        }
+      }
+      if (best == null) {
+        return notFound(matchingSlots);
+      }
+      if (claim(best)) {
+        bestBucket.free.remove(best);
+        return new SlotAllocationResponse(SlotAllocationResponse.Status.OK, best);
+      }
+    }
+  }
+
+  private static SlotAllocationResponse notFound(int matchingSlots) {
+    if (matchingSlots == 0) {
+      return new SlotAllocationResponse(SlotAllocationResponse.Status.NO_MATCHING_SLOT, null,
+          "There are no matching slots found");
+    } else {
+      return new SlotAllocationResponse(SlotAllocationResponse.Status.NO_FREE_SLOT, null,
+          "There are "+matchingSlots+" matching slots, but they are all busy");
+    }
+  }
+
+  private static class Bucket {
+    private final SlotCapabilities capabilities;
+    private final ImmutableSet<SlotInfo> slots;
+    private final Queue<SlotInfo> free;
+
+    private Bucket(SlotCapabilities capabilities, ImmutableSet<SlotInfo> slots, Queue<SlotInfo> free) {
+      this.capabilities = capabilities;
+      this.slots = slots;
+      this.free = free;
+    }
+  }
+}
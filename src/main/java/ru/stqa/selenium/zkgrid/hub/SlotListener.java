@@ -0,0 +1,11 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import ru.stqa.selenium.zkgrid.common.SlotInfo;
+
+public interface SlotListener {
+
+  void slotFreed(SlotInfo slot, SlotCapabilities capabilities);
+
+  void slotRemoved(SlotInfo slot);
+
+}
@@ -0,0 +1,26 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+/**
+ * The last slot state znode version the hub has seen, whether the slot was free at that version,
+ * and until when the reservation waits for its client, 0 if the slot is in use.
+ */
+class SlotStateVersion {
+
+  final int version;
+  final boolean free;
+  final long leaseUntil;
+
+  SlotStateVersion(int version, boolean free) {
+    this(version, free, 0);
+  }
+
+  SlotStateVersion(int version, boolean free, long leaseUntil) {
+    this.version = version;
+    this.free = free;
+    this.leaseUntil = leaseUntil;
+  }
+
+  boolean isLeaseExpired(long now) {
+    return !free && leaseUntil > 0 && leaseUntil < now;
+  }
+}
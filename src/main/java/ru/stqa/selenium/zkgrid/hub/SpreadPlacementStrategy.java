@@ -0,0 +1,12 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+/**
+ * Spreads sessions evenly, prefers nodes running the fewest sessions.
+ */
+public class SpreadPlacementStrategy implements PlacementStrategy {
+
+  @Override
+  public double score(NodeInfo node) {
+    return node.getBusySlotCount();
+  }
+}
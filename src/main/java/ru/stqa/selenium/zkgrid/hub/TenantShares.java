@@ -0,0 +1,137 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import com.google.common.collect.Maps;
+import ru.stqa.selenium.zkgrid.common.SlotInfo;
+
+import java.util.Map;
+
+/**
+ * Fair share accounting of the tenants: weights and concurrency caps, the sessions
+ * each tenant holds, and the virtual time of start-time fair queuing. A tenant that starts
+ * a session is charged 1/weight of virtual time, so among the backlogged tenants
+ * the one with the lowest start tag is served next, and a tenant returning after a pause
+ * does not get credit for the time it was idle.
+ */
+class TenantShares {
+
+  static final String DEFAULT_TENANT = "default";
+
+  private final Map<String, Tenant> tenants = Maps.newHashMap();
+  private final Map<SlotInfo, String> slotTenants = Maps.newHashMap();
+  private int defaultWeight = 1;
+  private int defaultMaxSessions = 0;
+  private double virtualTime;
+
+  private static class Tenant {
+    private int weight;
+    private int maxSessions;
+    private int sessions;
+    private double finishTag;
+
+    private Tenant(int weight, int maxSessions) {
+      this.weight = Math.max(weight, 1);
+      this.maxSessions = maxSessions;
+    }
+
+    private boolean isCapped() {
+      return maxSessions > 0 && sessions >= maxSessions;
+    }
+  }
+
+  /**
+   * @param maxSessions concurrency cap of the tenants that are not configured explicitly, 0 for no cap
+   */
+  public synchronized void setDefaults(int weight, int maxSessions) {
+    this.defaultWeight = weight;
+    this.defaultMaxSessions = maxSessions;
+  }
+
+  /**
+   * @param maxSessions concurrency cap of the tenant, 0 for no cap
+   */
+  public synchronized void configure(String tenant, int weight, int maxSessions) {
+    tenants.put(tenant, new Tenant(weight, maxSessions));
+  }
+
+  public synchronized double startTag(String tenant) {
+    return Math.max(tenant(tenant).finishTag, virtualTime);
+  }
+
+  /**
+   * Counts a session the request is going to start, unless the tenant has reached its cap.
+   */
+  public synchronized boolean tryAcquire(SessionRequest request) {
+    if (request.holdsShare()) {
+      return true;
+    }
+    if (tryAcquire(request.getTenant(), 1, 1) == 0) {
+      return false;
+    }
+    request.setHoldsShare(true);
+    return true;
+  }
+
+  /**
+   * @return the number of sessions counted, between the minimum and the wanted number, or 0
+   */
+  public synchronized int tryAcquire(String tenantName, int wanted, int minimum) {
+    Tenant tenant = tenant(tenantName);
+    int available = tenant.maxSessions > 0 ? tenant.maxSessions - tenant.sessions : wanted;
+    int acquired = Math.min(wanted, available);
+    if (acquired < minimum || acquired <= 0) {
+      return 0;
+    }
+    tenant.sessions += acquired;
+    double start = Math.max(tenant.finishTag, virtualTime);
+    virtualTime = start;
+    tenant.finishTag = start + (double) acquired / tenant.weight;
+    return acquired;
+  }
+
+  public synchronized void release(SessionRequest request) {
+    if (request.holdsShare()) {
+      request.setHoldsShare(false);
+      release(request.getTenant(), 1);
+    }
+  }
+
+  public synchronized void release(String tenant, int count) {
+    tenant(tenant).sessions -= count;
+  }
+
+  /**
+   * Turns the counted session of the request into the session on the slot.
+   */
+  public synchronized void grant(SessionRequest request, SlotInfo slot) {
+    if (!request.holdsShare()) {
+      tenant(request.getTenant()).sessions++;
+    }
+    request.setHoldsShare(false);
+    slotTenants.put(slot, request.getTenant());
+  }
+
+  public synchronized void grant(String tenant, SlotInfo slot) {
+    slotTenants.put(slot, tenant);
+  }
+
+  /**
+   * @return true if the session on the slot was counted to a tenant
+   */
+  public synchronized boolean slotReleased(SlotInfo slot) {
+    String tenant = slotTenants.remove(slot);
+    if (tenant == null) {
+      return false;
+    }
+    tenant(tenant).sessions--;
+    return true;
+  }
+
+  private Tenant tenant(String name) {
+    Tenant tenant = tenants.get(name);
+    if (tenant == null) {
+      tenant = new Tenant(defaultWeight, defaultMaxSessions);
+      tenants.put(name, tenant);
+    }
+    return tenant;
+  }
+}
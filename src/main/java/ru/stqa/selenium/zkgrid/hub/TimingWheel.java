@@ -0,0 +1,133 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel that tracks one deadline per key for any number of keys.
+ *
+ * Arming, re-arming and cancelling a deadline is O(1), a tick looks through one bucket only,
+ * deadlines longer than a revolution of the wheel stay in their bucket until their round comes.
+ * Expired keys are reported to the listener on the wheel's own thread.
+ */
+class TimingWheel<K> {
+
+  private static Logger log = LoggerFactory.getLogger(TimingWheel.class);
+
+  interface ExpirationListener<K> {
+    void expired(K key);
+  }
+
+  private final long tickDuration;
+  private final List<Set<K>> buckets;
+  // tick each key expires at
+  private final Map<K, Long> deadlines = Maps.newHashMap();
+  private final ExpirationListener<K> listener;
+  private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+
+  private long currentTick;
+
+  TimingWheel(long tickDuration, TimeUnit timeUnit, int wheelSize, ExpirationListener<K> listener) {
+    this.tickDuration = timeUnit.toMillis(tickDuration);
+    this.listener = listener;
+    buckets = Lists.newArrayListWithCapacity(wheelSize);
+    for (int i = 0; i < wheelSize; i++) {
+      buckets.add(Sets.<K>newHashSet());
+    }
+  }
+
+  void start() {
+    currentTick = System.currentTimeMillis() / tickDuration;
+    ticker.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          tick();
+        } catch (Throwable t) {
+          log.error("Timing wheel tick failed", t);
+        }
+      }
+    }, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+  }
+
+  void stop() {
+    ticker.shutdownNow();
+  }
+
+  /**
+   * Sets the deadline for the key, replacing the previous one if any.
+   */
+  synchronized void schedule(K key, long delay, TimeUnit timeUnit) {
+    cancel(key);
+    long deadline = System.currentTimeMillis() + timeUnit.toMillis(delay);
+    // rounded up, and never into the bucket the ticker has already passed
+    long tick = Math.max((deadline + tickDuration - 1) / tickDuration, currentTick + 1);
+    deadlines.put(key, tick);
+    bucket(tick).add(key);
+  }
+
+  /**
+   * Sets the deadline for the key unless it is already set.
+   */
+  synchronized boolean scheduleIfAbsent(K key, long delay, TimeUnit timeUnit) {
+    if (deadlines.containsKey(key)) {
+      return false;
+    }
+    schedule(key, delay, timeUnit);
+    return true;
+  }
+
+  /**
+   * @return true if the key had a deadline
+   */
+  synchronized boolean cancel(K key) {
+    Long tick = deadlines.remove(key);
+    if (tick == null) {
+      return false;
+    }
+    bucket(tick).remove(key);
+    return true;
+  }
+
+  synchronized boolean isScheduled(K key) {
+    return deadlines.containsKey(key);
+  }
+
+  private void tick() {
+    long now = System.currentTimeMillis() / tickDuration;
+    List<K> expired = Lists.newArrayList();
+    synchronized (this) {
+      // catch up if the ticker thread was late
+      while (currentTick < now) {
+        currentTick++;
+        for (Iterator<K> i = bucket(currentTick).iterator(); i.hasNext(); ) {
+          K key = i.next();
+          // keys of the later rounds stay in the bucket
+          if (deadlines.get(key) <= currentTick) {
+            i.remove();
+            deadlines.remove(key);
+            expired.add(key);
+          }
+        }
+      }
+    }
+    for (K key : expired) {
+      listener.expired(key);
+    }
+  }
+
+  private Set<K> bucket(long tick) {
+    return buckets.get((int) (tick % buckets.size()));
+  }
+}
@@ -0,0 +1,75 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+class Versions {
+
+  private static final int[] ZERO = new int[] { 0 };
+
+  private Versions() {
+  }
+
+  /**
+   * Parses a version string into a vector of ordinal numbers.
+   *
+   * @param version a string of ordinal numbers separated by decimal points,
+   *                null or empty string is treated as "0".
+   * @return parsed version, or null if the string can't be parsed.
+   */
+  static int[] parse(String version) {
+    if (version == null || "".equals(version)) {
+      return ZERO;
+    }
+    int parts = 1;
+    for (int i = 0; i < version.length(); i++) {
+      if (version.charAt(i) == '.') {
+        parts++;
+      }
+    }
+    int[] result = new int[parts];
+    int part = 0;
+    int digits = 0;
+    long value = 0;
+    for (int i = 0; i < version.length(); i++) {
+      char c = version.charAt(i);
+      if (c == '.') {
+        if (digits == 0) {
+          return null;
+        }
+        result[part++] = (int) value;
+        value = 0;
+        digits = 0;
+      } else if (c >= '0' && c <= '9') {
+        value = value * 10 + (c - '0');
+        if (value > Integer.MAX_VALUE) {
+          return null;
+        }
+        digits++;
+      } else {
+        return null;
+      }
+    }
+    if (digits == 0) {
+      return null;
+    }
+    result[part] = (int) value;
+    return result;
+  }
+
+  /**
+   * Compares two parsed versions numerically, missing trailing parts are treated as zeros,
+   * so "1.10" is equal to "1.10.0".
+   *
+   * @return a negative integer, zero, or a positive integer as the first version
+   *         is less than, equal to, or greater than the second one.
+   */
+  static int compare(int[] v1, int[] v2) {
+    int length = Math.max(v1.length, v2.length);
+    for (int i = 0; i < length; i++) {
+      int p1 = i < v1.length ? v1[i] : 0;
+      int p2 = i < v2.length ? v2[i] : 0;
+      if (p1 != p2) {
+        return p1 < p2 ? -1 : 1;
+      }
+    }
+    return 0;
+  }
+}
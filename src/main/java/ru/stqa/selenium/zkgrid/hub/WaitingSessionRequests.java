@@ -0,0 +1,114 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Session requests that found all the matching slots busy and wait for a slot
+ * to become free, in wait lists per required capabilities.
+ */
+class WaitingSessionRequests {
+
+  private final Map<CapabilityKey, LinkedList<SessionRequest>> waitLists = Maps.newHashMap();
+
+  public synchronized void add(SessionRequest request) {
+    CapabilityKey key = new CapabilityKey(request.getCapabilities());
+    LinkedList<SessionRequest> waitList = waitLists.get(key);
+    if (waitList == null) {
+      waitList = Lists.newLinkedList();
+      waitLists.put(key, waitList);
+    }
+    waitList.add(request);
+  }
+
+  /**
+   * Removes and returns the request the slot should serve: of the highest priority,
+   * of the tenant with the lowest fair share start tag, the oldest one.
+   * The requests of the tenants that have reached their cap are skipped.
+   * The returned request is counted to its tenant.
+   */
+  public synchronized SessionRequest pollMatching(SlotCapabilities slot, final TenantShares shares) {
+    List<SessionRequest> candidates = Lists.newArrayList();
+    for (LinkedList<SessionRequest> waitList : waitLists.values()) {
+      // the requests of a wait list require the same capabilities
+      if (waitList.getFirst().getPredicate().matches(slot)) {
+        candidates.addAll(waitList);
+      }
+    }
+    if (candidates.isEmpty()) {
+      return null;
+    }
+
+    final Map<String, Double> startTags = Maps.newHashMap();
+    for (SessionRequest candidate : candidates) {
+      if (!startTags.containsKey(candidate.getTenant())) {
+        startTags.put(candidate.getTenant(), shares.startTag(candidate.getTenant()));
+      }
+    }
+    Collections.sort(candidates, new Comparator<SessionRequest>() {
+      @Override
+      public int compare(SessionRequest r1, SessionRequest r2) {
+        if (r1.getPriority() != r2.getPriority()) {
+          return r1.getPriority() > r2.getPriority() ? -1 : 1;
+        }
+        int byTag = Double.compare(startTags.get(r1.getTenant()), startTags.get(r2.getTenant()));
+        if (byTag != 0) {
+          return byTag;
+        }
+        return r1.getOrder() < r2.getOrder() ? -1 : (r1.getOrder() == r2.getOrder() ? 0 : 1);
+      }
+    });
+
+    for (SessionRequest candidate : candidates) {
+      if (shares.tryAcquire(candidate)) {
+        CapabilityKey key = new CapabilityKey(candidate.getCapabilities());
+        LinkedList<SessionRequest> waitList = waitLists.get(key);
+        waitList.remove(candidate);
+        if (waitList.isEmpty()) {
+          waitLists.remove(key);
+        }
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  public synchronized List<SessionRequest> removeExpired(long now) {
+    List<SessionRequest> expired = Lists.newArrayList();
+    Iterator<LinkedList<SessionRequest>> lists = waitLists.values().iterator();
+    while (lists.hasNext()) {
+      LinkedList<SessionRequest> waitList = lists.next();
+      Iterator<SessionRequest> requests = waitList.iterator();
+      while (requests.hasNext()) {
+        SessionRequest request = requests.next();
+        if (!request.canWait(now)) {
+          expired.add(request);
+          requests.remove();
+        }
+      }
+      if (waitList.isEmpty()) {
+        lists.remove();
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * @return all the waiting requests, the wait lists are left empty
+   */
+  public synchronized List<SessionRequest> removeAll() {
+    List<SessionRequest> all = Lists.newArrayList();
+    for (LinkedList<SessionRequest> waitList : waitLists.values()) {
+      all.addAll(waitList);
+    }
+    waitLists.clear();
+    return all;
+  }
+}
@@ -0,0 +1,234 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import com.google.common.collect.Lists;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.stqa.selenium.zkgrid.common.Curator;
+import ru.stqa.selenium.zkgrid.common.SlotInfo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static ru.stqa.selenium.zkgrid.common.PathUtils.*;
+
+/**
+ * Removes the data nobody is going to read, so the ZooKeeper snapshots stay small:
+ * the znodes of the clients that have gone (a live client keeps an ephemeral owner znode)
+ * and the commands and responses of the free slots nobody has collected.
+ * Only the data untouched for the grace period is removed, client deletions are batched into transactions.
+ * The slot payloads are looked for only at the slots freed since the previous pass (all the free slots
+ * on the first pass, to clean up after the previous hub), idle slots cost nothing.
+ */
+public class ZNodeReaper {
+
+  private static Logger log = LoggerFactory.getLogger(ZNodeReaper.class);
+
+  public static class Builder {
+    private Curator curator;
+    private NodeRegistry nodeRegistry;
+    private long period = TimeUnit.MINUTES.toMillis(1);
+    private long gracePeriod = TimeUnit.MINUTES.toMillis(5);
+    private int batchSize = 100;
+
+    public Builder(Curator curator, NodeRegistry nodeRegistry) {
+      this.curator = curator;
+      this.nodeRegistry = nodeRegistry;
+    }
+
+    public Builder withPeriod(long period, TimeUnit timeUnit) {
+      this.period = timeUnit.toMillis(period);
+      return this;
+    }
+
+    public Builder withGracePeriod(long gracePeriod, TimeUnit timeUnit) {
+      this.gracePeriod = timeUnit.toMillis(gracePeriod);
+      return this;
+    }
+
+    public Builder withBatchSize(int batchSize) {
+      this.batchSize = batchSize;
+      return this;
+    }
+
+    public ZNodeReaper create() {
+      ZNodeReaper reaper = new ZNodeReaper(curator, nodeRegistry);
+      reaper.period = period;
+      reaper.gracePeriod = gracePeriod;
+      reaper.batchSize = batchSize;
+      reaper.start();
+      return reaper;
+    }
+  }
+
+  private final Curator curator;
+  private final NodeRegistry nodeRegistry;
+  private long period;
+  private long gracePeriod;
+  private int batchSize;
+
+  private final ScheduledExecutorService reaperExecutor = Executors.newSingleThreadScheduledExecutor();
+
+  // slots freed since they were last reaped, with the time they were freed at
+  private final ConcurrentMap<SlotInfo, Long> freedSlots = new ConcurrentHashMap<SlotInfo, Long>();
+  private boolean firstPass = true;
+
+  private final SlotListener slotListener = new SlotListener() {
+    @Override
+    public void slotFreed(SlotInfo slot, SlotCapabilities capabilities) {
+      freedSlots.put(slot, System.currentTimeMillis());
+    }
+
+    @Override
+    public void slotRemoved(SlotInfo slot) {
+      freedSlots.remove(slot);
+    }
+  };
+
+  private ZNodeReaper(Curator curator, NodeRegistry nodeRegistry) {
+    this.curator = curator;
+    this.nodeRegistry = nodeRegistry;
+  }
+
+  private void start() {
+    nodeRegistry.addSlotListener(slotListener);
+    reaperExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          reapClients();
+          reapSlotPayloads();
+        } catch (Exception ex) {
+          log.warn("Can't reap orphaned znodes", ex);
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  public void stop() {
+    nodeRegistry.removeSlotListener(slotListener);
+    reaperExecutor.shutdownNow();
+  }
+
+  private void reapClients() throws Exception {
+    List<String> clientIds;
+    try {
+      clientIds = curator.getClient().getChildren().forPath(clientsPath());
+    } catch (KeeperException.NoNodeException ex) {
+      return;
+    }
+    long expired = System.currentTimeMillis() - gracePeriod;
+    List<String> orphans = Lists.newArrayList();
+    for (String clientId : clientIds) {
+      try {
+        Stat stat = curator.getClient().checkExists().forPath(clientPath(clientId));
+        if (stat != null && stat.getMtime() < expired && !curator.checkExists(clientOwnerPath(clientId))) {
+          orphans.add(clientId);
+        }
+      } catch (Exception ex) {
+        log.warn("Can't check client " + clientId, ex);
+      }
+    }
+    for (List<String> batch : Lists.partition(orphans, batchSize)) {
+      deleteClients(batch);
+    }
+    if (!orphans.isEmpty()) {
+      log.info("{} orphaned clients removed", orphans.size());
+    }
+  }
+
+  /**
+   * Deletes the batch in one transaction, one by one if a client has changed meanwhile.
+   */
+  private void deleteClients(List<String> clientIds) {
+    try {
+      CuratorTransaction transaction = curator.getClient().inTransaction();
+      for (String clientId : clientIds) {
+        for (String child : curator.getClient().getChildren().forPath(clientPath(clientId))) {
+          transaction = transaction.delete().forPath(clientPath(clientId, "/" + child)).and();
+        }
+        transaction = transaction.delete().forPath(clientPath(clientId)).and();
+      }
+      ((CuratorTransactionFinal) transaction).commit();
+      return;
+    } catch (Exception ex) {
+      log.debug("Batch delete of the clients failed, deleting one by one: {}", ex.getMessage());
+    }
+    for (String clientId : clientIds) {
+      try {
+        curator.delete(clientPath(clientId));
+      } catch (KeeperException.NoNodeException ex) {
+        // removed by the client itself
+      } catch (Exception ex) {
+        log.warn("Can't remove client " + clientId, ex);
+      }
+    }
+  }
+
+  /**
+   * Deletes the commands and the responses of the free slots left by the clients that have gone.
+   * A slot is looked at once the grace period has passed since it was freed.
+   */
+  private void reapSlotPayloads() {
+    long expired = System.currentTimeMillis() - gracePeriod;
+    int deleted = 0;
+    if (firstPass) {
+      firstPass = false;
+      for (NodeInfo node : nodeRegistry.getNodes()) {
+        for (SlotInfo slot : node.getSlots()) {
+          if (!slot.isBusy()) {
+            deleted += deleteExpiredPayloads(slot, expired);
+          }
+        }
+      }
+    }
+    for (Map.Entry<SlotInfo, Long> entry : freedSlots.entrySet()) {
+      SlotInfo slot = entry.getKey();
+      if (slot.isBusy()) {
+        // in use again, it is tracked from the next time it is freed
+        freedSlots.remove(slot, entry.getValue());
+      } else if (entry.getValue() < expired) {
+        deleted += deleteExpiredPayloads(slot, expired);
+        freedSlots.remove(slot, entry.getValue());
+      }
+    }
+    if (deleted > 0) {
+      log.info("{} stale slot commands and responses removed", deleted);
+    }
+  }
+
+  private int deleteExpiredPayloads(SlotInfo slot, long expired) {
+    int deleted = 0;
+    for (String parent : new String[] {nodeSlotResponsesPath(slot), nodeSlotCommandsPath(slot)}) {
+      deleted += deleteExpiredChildren(parent, expired);
+    }
+    return deleted;
+  }
+
+  private int deleteExpiredChildren(String parent, long expired) {
+    int deleted = 0;
+    try {
+      for (String child : curator.getClient().getChildren().forPath(parent)) {
+        String path = parent + "/" + child;
+        Stat stat = curator.getClient().checkExists().forPath(path);
+        if (stat != null && stat.getMtime() < expired) {
+          curator.delete(path);
+          deleted++;
+        }
+      }
+    } catch (KeeperException.NoNodeException ex) {
+      // nothing has been sent to the slot, or deleted concurrently
+    } catch (Exception ex) {
+      log.warn("Can't clean up " + parent, ex);
+    }
+    return deleted;
+  }
+}
@@ -1,20 +1,27 @@
 package ru.stqa.selenium.zkgrid.node;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.apache.curator.framework.recipes.barriers.DistributedBarrier;
 import org.apache.curator.framework.recipes.queue.DistributedQueue;
 import org.apache.curator.framework.recipes.queue.QueueBuilder;
-import org.openqa.selenium.Capabilities;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.openqa.selenium.remote.*;
 import ru.stqa.selenium.zkgrid.common.CuratorStateListener;
 import shaded.org.openqa.selenium.remote.server.DefaultDriverSessions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.stqa.selenium.zkgrid.common.Curator;
+import ru.stqa.selenium.zkgrid.common.Frames;
+import ru.stqa.selenium.zkgrid.common.NodeLoad;
 import ru.stqa.selenium.zkgrid.common.SlotInfo;
 import ru.stqa.selenium.zkgrid.common.StringSerializer;
+import ru.stqa.selenium.zkgrid.common.WireFormat;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.*;
@@ -34,12 +41,18 @@ public class Node {
   private DefaultDriverSessions sessions;
 
   private Curator curator;
+  private SlotStatePublisher statePublisher;
+  private NodeEndpoint endpoint;
 
   private ScheduledExecutorService serviceExecutor;
-  private ScheduledFuture<?> heartBeatingFuture;
+  private ScheduledFuture<?> loadReportingFuture;
 
-  private long heartBeatPeriod;
+  private long loadReportPeriod;
   private CommandHandler commandHandler;
+  private final NodeLoadMonitor loadMonitor = new NodeLoadMonitor();
+  private volatile NodeLoad reportedLoad;
+
+  private static final long MAX_LOAD_REPORT_AGE = TimeUnit.SECONDS.toMillis(30);
 
   public static void main(String[] args) throws Exception {
     Node node = new Node(new NodeParameters());
@@ -54,16 +67,25 @@ public class Node {
   public void start() throws Exception {
     serviceExecutor = Executors.newSingleThreadScheduledExecutor();
 
-    curator = Curator.createCurator(params.getHubConnectionString(), log);
+    curator = Curator.createCurator(params.getHubConnectionString(),
+        (int) TimeUnit.SECONDS.toMillis(config.sessionTimeout), log);
     curator.start();
+    statePublisher = new SlotStatePublisher(curator, nodeId);
 
     sessions = new DefaultDriverSessions();
     commandHandler = new CommandHandler(sessions);
     
+    if (config.endpointPort >= 0) {
+      String host = config.endpointHost != null ? config.endpointHost : InetAddress.getLocalHost().getHostAddress();
+      endpoint = new NodeEndpoint(host, config.endpointPort, config.endpointMaxFrameSize * 1024, slots);
+    }
     createSlots();
+    if (endpoint != null) {
+      endpoint.start();
+    }
 
     registerToTheHub();
-    startHeartBeating();
+    startLoadReporting();
     registerSlots();
 
     curator.addStateListener(new NodeCuratorStateListener());
@@ -72,35 +94,59 @@ public class Node {
   private void createSlots() throws Exception {
     for (NodeConfiguration.SlotConfiguration slotConfig : config.slots) {
       for (int count = 1; count <= slotConfig.maxInstances; count++) {
-        Capabilities capabilities = slotConfig.getCapabilities();
+        DesiredCapabilities capabilities = new DesiredCapabilities(slotConfig.getCapabilities());
+        capabilities.setCapability(WireFormat.BINARY_CAPABILITY, true);
+        if (endpoint != null) {
+          capabilities.setCapability(Frames.ENDPOINT, endpoint.getAddress());
+          capabilities.setCapability(Frames.MAX_FRAME_SIZE, config.endpointMaxFrameSize * 1024);
+        }
         String slotId = String.valueOf(slotConfig.getName() + "-" + count);
         SlotInfo slotInfo = new SlotInfo(nodeId, slotId, capabilities);
         NodeSlot slot = new NodeSlot.Builder(curator, slotInfo, commandHandler)
             .withCommandExecutionTimeout(config.commandExecutionTimeout, TimeUnit.SECONDS)
             .withClientInactivityTimeout(config.clientInactivityTimeout, TimeUnit.SECONDS)
+            .withLoadMonitor(loadMonitor)
+            .withStatePublisher(statePublisher)
+            .withPayloadChunkSize(config.payloadChunkSize * 1024)
+            .withCompressionThreshold(config.compressionThreshold < 0 ? -1 : config.compressionThreshold * 1024)
             .create();
         slots.put(slotInfo.getSlotId(), slot);
       }
     }
   }
 
-  private void startHeartBeating() {
+  private void startLoadReporting() {
     serviceExecutor.submit(new Runnable() {
       @Override
       public void run() {
-        if (heartBeatingFuture == null) {
-          heartBeatingFuture = serviceExecutor.scheduleAtFixedRate(
-              new HeartBeat(), 0, heartBeatPeriod, TimeUnit.MILLISECONDS);
+        if (loadReportingFuture == null) {
+          loadReportingFuture = serviceExecutor.scheduleAtFixedRate(
+              new LoadReport(), loadReportPeriod, loadReportPeriod, TimeUnit.MILLISECONDS);
         }
       }
     });
   }
 
-  private void stopHeartBeating() {
-    if (heartBeatingFuture != null) {
-      heartBeatingFuture.cancel(true);
-      heartBeatingFuture = null;
+  private void stopLoadReporting() {
+    if (loadReportingFuture != null) {
+      loadReportingFuture.cancel(true);
+      loadReportingFuture = null;
+    }
+  }
+
+  /**
+   * The node is alive for the hub while its ZooKeeper session keeps the ephemeral znode,
+   * a new session after expiration creates the znode again.
+   */
+  private void announceAlive() throws Exception {
+    NodeLoad load = loadMonitor.getLoad(countActiveSessions());
+    try {
+      curator.getClient().create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL)
+          .forPath(nodeAlivePath(nodeId), load.toJson().getBytes());
+    } catch (KeeperException.NodeExistsException ex) {
+      curator.getClient().setData().forPath(nodeAlivePath(nodeId), load.toJson().getBytes());
     }
+    reportedLoad = load;
   }
 
   private void registerToTheHub() {
@@ -109,6 +155,7 @@ public class Node {
       public void run() {
         log.info("Registering node to the hub");
         try {
+          announceAlive();
           if (curator.checkExists(nodePath(nodeId))) {
             log.info("Node is already registered to the hub");
             return;
@@ -126,7 +173,7 @@ public class Node {
           }
 
           Map<String, Object> hubConfig = new JsonToBeanConverter().convert(Map.class, curator.getDataForPath(hubPath()));
-          heartBeatPeriod = (Long) hubConfig.get("heartBeatPeriod");
+          loadReportPeriod = (Long) hubConfig.get("heartBeatPeriod");
         } catch (Exception ex) {
           throw new Error("Node can't register itself", ex);
         }
@@ -144,6 +191,16 @@ public class Node {
         }
       });
     }
+    serviceExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        List<SlotInfo> slotInfos = Lists.newArrayList();
+        for (NodeSlot slot : slots.values()) {
+          slotInfos.add(slot.getSlotInfo());
+        }
+        statePublisher.refresh(slotInfos);
+      }
+    });
   }
 
   private void destroyAllSessions() {
@@ -152,16 +209,37 @@ public class Node {
     }
   }
 
+  private int countActiveSessions() {
+    int count = 0;
+    for (NodeSlot slot : slots.values()) {
+      if (slot.hasSession()) {
+        count++;
+      }
+    }
+    return count;
+  }
+
   private void unregisterFromHub() throws Exception {
     curator.delete(nodePath(nodeId));
   }
 
-  private class HeartBeat implements Runnable {
+  /**
+   * Publishes the load only when it has changed noticeably or the last report is getting old.
+   */
+  private class LoadReport implements Runnable {
     @Override
     public void run() {
-      log.debug("Heart beat");
+      NodeLoad load = loadMonitor.getLoad(countActiveSessions());
+      if (!load.differsSignificantly(reportedLoad)
+          && load.getTimestamp() - reportedLoad.getTimestamp() < MAX_LOAD_REPORT_AGE) {
+        return;
+      }
+      log.debug("Load report {}", load);
       try {
-        curator.setData(nodeHeartBeatPath(nodeId), String.valueOf(System.currentTimeMillis()));
+        curator.getClient().setData().forPath(nodeAlivePath(nodeId), load.toJson().getBytes());
+        reportedLoad = load;
+      } catch (KeeperException.NoNodeException ex) {
+        log.warn("Node is not alive for the hub, the session has expired");
       } catch (Exception e) {
         e.printStackTrace();
       }
@@ -172,23 +250,23 @@ public class Node {
     @Override
     public void connectionEstablished() {
       registerToTheHub();
-      startHeartBeating();
+      startLoadReporting();
       registerSlots();
     }
 
     @Override
     public void connectionSuspended() {
-      stopHeartBeating();
+      stopLoadReporting();
     }
 
     @Override
     public void connectionRestored() {
-      startHeartBeating();
+      startLoadReporting();
     }
 
     @Override
     public void connectionLost() {
-      stopHeartBeating();
+      stopLoadReporting();
       destroyAllSessions();
     }
   }
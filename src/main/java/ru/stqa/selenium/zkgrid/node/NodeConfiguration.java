@@ -14,6 +14,18 @@ public class NodeConfiguration {
 
   long clientInactivityTimeout = 120;
   long commandExecutionTimeout = 60;
+  // ZooKeeper session timeout, the hub considers the node lost when the session expires
+  long sessionTimeout = 10;
+  // responses larger than this (in kilobytes) are split into chunk znodes, must stay below jute.maxbuffer
+  int payloadChunkSize = 512;
+  // responses larger than this (in kilobytes) are deflated, -1 disables the compression
+  int compressionThreshold = 16;
+  // clients send commands straight to this port when they can, 0 means any free port, -1 disables it
+  int endpointPort = 0;
+  // the address the clients should connect to, the local host address if not set
+  String endpointHost;
+  // commands sent straight to the node larger than this (in kilobytes) are refused, the clients use ZooKeeper for them
+  int endpointMaxFrameSize = 4096;
 
   List<SlotConfiguration> slots;
 
@@ -0,0 +1,276 @@
+package ru.stqa.selenium.zkgrid.node;
+
+import com.google.common.base.Charsets;
+import org.openqa.selenium.remote.Command;
+import org.openqa.selenium.remote.ErrorCodes;
+import org.openqa.selenium.remote.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.stqa.selenium.zkgrid.common.Frames;
+import ru.stqa.selenium.zkgrid.common.WireFormat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Accepts commands sent by the clients straight to the node over persistent framed connections,
+ * ZooKeeper is left to discovery, allocation and failover. The endpoint is advertised
+ * as a capability of the slots.
+ *
+ * A single selector thread reads and writes all the connections, the commands are executed by the slots.
+ */
+public class NodeEndpoint {
+
+  private static Logger log = LoggerFactory.getLogger(NodeEndpoint.class);
+
+  private final Map<String, NodeSlot> slots;
+  private final int maxFrameSize;
+  // the commands that are not taken are read into it and dropped, the selector thread only uses it
+  private final ByteBuffer discarded = ByteBuffer.allocate(8192);
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
+  private final String address;
+
+  private Thread selectorThread;
+
+  /**
+   * @param maxFrameSize the largest command the node takes, in bytes
+   */
+  public NodeEndpoint(String host, int port, int maxFrameSize, Map<String, NodeSlot> slots) throws IOException {
+    this.slots = slots;
+    this.maxFrameSize = maxFrameSize;
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.socket().bind(new InetSocketAddress(port));
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    address = host + ":" + serverChannel.socket().getLocalPort();
+  }
+
+  /**
+   * @return host:port the clients connect to
+   */
+  public String getAddress() {
+    return address;
+  }
+
+  public void start() {
+    selectorThread = new Thread("node-endpoint") {
+      @Override
+      public void run() {
+        select();
+      }
+    };
+    selectorThread.setDaemon(true);
+    selectorThread.start();
+    log.info("Node endpoint is listening at {}", address);
+  }
+
+  public void stop() {
+    try {
+      selector.close();
+      serverChannel.close();
+    } catch (IOException ex) {
+      log.warn("Can't close node endpoint", ex);
+    }
+  }
+
+  private void select() {
+    try {
+      while (selector.isOpen()) {
+        selector.select();
+        for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); ) {
+          SelectionKey key = i.next();
+          i.remove();
+          try {
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept();
+            } else {
+              Connection connection = (Connection) key.attachment();
+              if (key.isReadable()) {
+                connection.read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                connection.write();
+              }
+            }
+          } catch (IOException ex) {
+            log.debug("Client connection closed: {}", ex.getMessage());
+            key.cancel();
+            key.channel().close();
+          }
+        }
+        for (SelectionKey key : selector.keys()) {
+          if (key.isValid() && key.attachment() != null) {
+            ((Connection) key.attachment()).updateInterest();
+          }
+        }
+      }
+    } catch (ClosedSelectorException ex) {
+      // stopped
+    } catch (IOException ex) {
+      log.error("Node endpoint failed", ex);
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+    key.attach(new Connection(key, channel));
+  }
+
+  private class Connection {
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    private final ByteBuffer length = ByteBuffer.allocate(4);
+    private ByteBuffer frame;
+    // the slot and the client of the command the connection reads, null while the header is read
+    private NodeSlot slot;
+    private String clientId;
+    // bytes of a refused command still to be dropped
+    private int discarding;
+    // responses are queued by the slot threads and written by the selector thread
+    private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private Connection(SelectionKey key, SocketChannel channel) {
+      this.key = key;
+      this.channel = channel;
+    }
+
+    private void read() throws IOException {
+      while (true) {
+        if (discarding > 0) {
+          discarded.clear();
+          discarded.limit(Math.min(discarding, discarded.capacity()));
+          int read = channel.read(discarded);
+          if (read < 0) {
+            throw new IOException("Connection closed by the client");
+          }
+          discarding -= read;
+          if (discarding > 0) {
+            return;
+          }
+          continue;
+        }
+        if (frame == null) {
+          if (channel.read(length) < 0) {
+            throw new IOException("Connection closed by the client");
+          }
+          if (length.hasRemaining()) {
+            return;
+          }
+          length.flip();
+          int frameLength = length.getInt();
+          length.clear();
+          if (clientId == null) {
+            frame = ByteBuffer.allocate(Frames.checkLength(frameLength, Frames.MAX_HEADER_SIZE));
+          } else if (slot == null) {
+            // the header has been refused, the command is dropped without being stored
+            discarding = Frames.checkLength(frameLength, Integer.MAX_VALUE);
+            clientId = null;
+            continue;
+          } else {
+            frame = ByteBuffer.allocate(Frames.checkLength(frameLength, maxFrameSize));
+          }
+        }
+        if (channel.read(frame) < 0) {
+          throw new IOException("Connection closed by the client");
+        }
+        if (frame.hasRemaining()) {
+          return;
+        }
+        frame.flip();
+        // the frame buffer is allocated to the frame length, its array is the message
+        byte[] message = frame.array();
+        frame = null;
+        if (clientId == null) {
+          readHeader(new String(message, Charsets.UTF_8));
+        } else {
+          dispatch(slot, clientId, message);
+          slot = null;
+          clientId = null;
+        }
+      }
+    }
+
+    /**
+     * Takes the slot and the client of the next command, the command is dropped if they are refused.
+     */
+    private void readHeader(String header) {
+      String[] parts = header.split("\n", 2);
+      clientId = parts.length == 2 ? parts[1] : "";
+      if (clientId.isEmpty()) {
+        log.warn("Direct command without a client id");
+        respondError("The slot id and the client id are required");
+        return;
+      }
+      NodeSlot target = slots.get(parts[0]);
+      if (target == null) {
+        log.warn("Direct command for an unknown slot {}", parts[0]);
+        respondError("Unknown slot " + parts[0]);
+        return;
+      }
+      if (!target.accepts(clientId)) {
+        log.warn("Slot {} does not serve client {}", parts[0], clientId);
+        respondError("Slot " + parts[0] + " does not serve this client");
+        return;
+      }
+      slot = target;
+    }
+
+    private void dispatch(NodeSlot slot, String clientId, byte[] command) {
+      Command cmd = WireFormat.decodeCommand(command);
+      slot.executeCommand(cmd, clientId, new NodeSlot.ResponseSender() {
+        @Override
+        public void send(Response res) {
+          respond(res);
+        }
+      });
+    }
+
+    private void respondError(String message) {
+      Response res = new Response();
+      res.setStatus(ErrorCodes.UNHANDLED_ERROR);
+      res.setValue(message);
+      respond(res);
+    }
+
+    private void respond(Response res) {
+      responses.offer(Frames.encode(WireFormat.encode(res, false)));
+      selector.wakeup();
+    }
+
+    private void write() throws IOException {
+      ByteBuffer frame;
+      while ((frame = responses.peek()) != null) {
+        channel.write(frame);
+        if (frame.hasRemaining()) {
+          return;
+        }
+        responses.poll();
+      }
+    }
+
+    private void updateInterest() {
+      key.interestOps(responses.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package ru.stqa.selenium.zkgrid.node;
+
+import ru.stqa.selenium.zkgrid.common.NodeLoad;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+/**
+ * Collects the load of the machine the node runs on for the hub.
+ */
+public class NodeLoadMonitor {
+
+  private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+  private long browserLaunchTime;
+
+  /**
+   * Accounts a browser start, the launch time is a moving average biased to the recent starts.
+   */
+  public synchronized void browserLaunched(long launchTime) {
+    browserLaunchTime = browserLaunchTime == 0 ? launchTime : (browserLaunchTime * 3 + launchTime) / 4;
+  }
+
+  public synchronized NodeLoad getLoad(int activeSessions) {
+    NodeLoad load = new NodeLoad(System.currentTimeMillis());
+    double loadAverage = os.getSystemLoadAverage();
+    if (loadAverage >= 0) {
+      load.setCpuLoad(loadAverage / os.getAvailableProcessors());
+    }
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      load.setFreeMemory(((com.sun.management.OperatingSystemMXBean) os).getFreePhysicalMemorySize());
+    }
+    load.setActiveSessions(activeSessions);
+    load.setBrowserLaunchTime(browserLaunchTime);
+    return load;
+  }
+}
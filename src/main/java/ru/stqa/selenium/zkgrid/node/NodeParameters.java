@@ -10,7 +10,7 @@ import java.io.InputStreamReader;
 
 public class NodeParameters {
 
-  @Parameter(names = "-hub", description = "(node) The hub address in format host:port")
+  @Parameter(names = "-hub", description = "(node) The hub address in format host:port, or the ZooKeeper ensemble the hub uses, with the /namespace of the grid if any")
   private String hubConnectionString = "localhost:4444";
 
   @Parameter(names = "-nodeConfig", description = "(node) The node configuration file")
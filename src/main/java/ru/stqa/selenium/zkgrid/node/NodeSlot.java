@@ -1,13 +1,26 @@
 package ru.stqa.selenium.zkgrid.node;
 
-import org.apache.curator.framework.recipes.cache.NodeCache;
-import org.apache.curator.framework.recipes.cache.NodeCacheListener;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.openqa.selenium.Capabilities;
 import org.openqa.selenium.remote.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.stqa.selenium.zkgrid.common.ChunkedPayload;
 import ru.stqa.selenium.zkgrid.common.Curator;
+import ru.stqa.selenium.zkgrid.common.PayloadCompression;
+import ru.stqa.selenium.zkgrid.common.RequestCapabilities;
 import ru.stqa.selenium.zkgrid.common.SlotInfo;
+import ru.stqa.selenium.zkgrid.common.SlotState;
+import ru.stqa.selenium.zkgrid.common.WireFormat;
 
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 
 import static ru.stqa.selenium.zkgrid.common.PathUtils.*;
@@ -16,27 +29,44 @@ public class NodeSlot {
 
   private static Logger log = LoggerFactory.getLogger(NodeSlot.class);
 
+  // seconds to wait before freeing the slot state, and between the retries
+  private static final long FREE_STATE_DELAY = 5;
+
   private Curator curator;
   private final SlotInfo slotInfo;
   private CommandHandler commandHandler;
+  private NodeLoadMonitor loadMonitor;
+  private SlotStatePublisher statePublisher;
 
   private final ScheduledExecutorService serviceExecutor;
   private final ExecutorService commandExecutor;
 
   private Future<Response> currentCommand;
   private boolean executingCommand;
-  private String sessionId;
+  private volatile String sessionId;
+  // version of the busy slot state the slot is serving, -1 if the slot is free
+  private int stateVersion = -1;
+  // client the slot is serving, null if the slot is free or the client is unknown
+  private volatile String owner;
   private long commandExecutionTimeout;
   private long clientInactivityTimeout;
+  private int payloadChunkSize;
+  private int compressionThreshold;
   private Future<?> clientInactivityWatcher;
+  // the last command taken from the sequential command znodes
+  private String lastCommandPath = "";
 
   public static class Builder {
     private Curator curator;
     private SlotInfo slotInfo;
     private CommandHandler commandHandler;
+    private NodeLoadMonitor loadMonitor = new NodeLoadMonitor();
+    private SlotStatePublisher statePublisher;
 
     private long commandExecutionTimeout;
     private long clientInactivityTimeout;
+    private int payloadChunkSize = ChunkedPayload.DEFAULT_CHUNK_SIZE;
+    private int compressionThreshold = PayloadCompression.DEFAULT_THRESHOLD;
 
     public Builder(Curator curator, SlotInfo slotInfo, CommandHandler commandHandler) {
       this.curator = curator;
@@ -54,11 +84,35 @@ public class NodeSlot {
       return this;
     }
 
+    public Builder withLoadMonitor(NodeLoadMonitor loadMonitor) {
+      this.loadMonitor = loadMonitor;
+      return this;
+    }
+
+    public Builder withPayloadChunkSize(int payloadChunkSize) {
+      this.payloadChunkSize = payloadChunkSize;
+      return this;
+    }
+
+    public Builder withCompressionThreshold(int compressionThreshold) {
+      this.compressionThreshold = compressionThreshold;
+      return this;
+    }
+
+    public Builder withStatePublisher(SlotStatePublisher statePublisher) {
+      this.statePublisher = statePublisher;
+      return this;
+    }
+
     public NodeSlot create() throws Exception {
       log.debug("Creating NodeSlot");
       NodeSlot slot = new NodeSlot(curator, slotInfo, commandHandler);
       slot.setCommandExecutionTimeout(commandExecutionTimeout);
       slot.setClientInactivityTimeout(clientInactivityTimeout);
+      slot.setLoadMonitor(loadMonitor);
+      slot.setStatePublisher(statePublisher);
+      slot.setPayloadChunkSize(payloadChunkSize);
+      slot.setCompressionThreshold(compressionThreshold);
       log.debug("NodeSlot created");
       return slot;
     }
@@ -81,6 +135,22 @@ public class NodeSlot {
     this.clientInactivityTimeout = clientInactivityTimeout;
   }
 
+  public void setLoadMonitor(NodeLoadMonitor loadMonitor) {
+    this.loadMonitor = loadMonitor;
+  }
+
+  public void setPayloadChunkSize(int payloadChunkSize) {
+    this.payloadChunkSize = payloadChunkSize;
+  }
+
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  public void setStatePublisher(SlotStatePublisher statePublisher) {
+    this.statePublisher = statePublisher;
+  }
+
   public SlotInfo getSlotInfo() {
     return slotInfo;
   }
@@ -92,7 +162,11 @@ public class NodeSlot {
         log.info("Slot {} is already registered to the hub", slotInfo);
         return;
       }
-      curator.setData(nodeSlotPath(slotInfo), new BeanToJsonConverter().convert(slotInfo.getCapabilities()));
+      // the state is created along with the slot, so the hub can update it without existence checks
+      curator.getClient().inTransaction()
+          .create().forPath(nodeSlotPath(slotInfo), WireFormat.encode(slotInfo.getCapabilities()))
+          .and().create().forPath(nodeSlotStatePath(slotInfo), SlotState.free().toBytes())
+          .and().commit();
       startCommandListener();
     } catch (Exception ex) {
       throw new Error("Can't register slot " + slotInfo, ex);
@@ -100,42 +174,117 @@ public class NodeSlot {
     log.info("Slot {} registered to the hub", slotInfo);
   }
 
+  /**
+   * Clients write commands as sequential znodes, so several commands can be in flight.
+   * The commands are taken in the sequence order and executed one by one, the response
+   * to each goes to the response znode with the same sequence number.
+   */
   private void startCommandListener() throws Exception {
-    final NodeCache nodeCache = new NodeCache(curator.getClient(), nodeSlotCommandPath(slotInfo), false);
-    nodeCache.start();
+    final PathChildrenCache commandsCache =
+        new PathChildrenCache(curator.getClient(), nodeSlotCommandsPath(slotInfo), false);
 
-    NodeCacheListener nodesListener = new NodeCacheListener () {
+    PathChildrenCacheListener commandsListener = new PathChildrenCacheListener() {
       @Override
-      public void nodeChanged() throws Exception {
-        if (executingCommand) {
-          log.warn("A new command detected, but the slot {} is busy executing the previous command");
-          return;
+      public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+        switch (event.getType()) {
+          case CHILD_ADDED:
+          case CHILD_UPDATED: {
+            takeCommands(commandsCache.getCurrentData());
+            break;
+          }
         }
-
-        String data = new String(nodeCache.getCurrentData().getData());
-        Command cmd = new JsonToBeanConverter().convert(Command.class, data);
-        log.info("Slot {} received a command {}", slotInfo, cmd);
-        processCommand(cmd);
       }
     };
 
-    nodeCache.getListenable().addListener(nodesListener);
+    commandsCache.getListenable().addListener(commandsListener);
+    commandsCache.start();
   }
 
-  private void processCommand(final Command cmd) throws Exception {
+  /**
+   * Called on the cache thread only.
+   *
+   * @param commands the command znodes in the sequence order
+   */
+  private void takeCommands(List<ChildData> commands) throws Exception {
+    for (ChildData command : commands) {
+      final String commandPath = command.getPath();
+      if (commandPath.compareTo(lastCommandPath) <= 0) {
+        continue;
+      }
+      byte[] data;
+      try {
+        data = curator.getClient().getData().forPath(commandPath);
+      } catch (KeeperException.NoNodeException ex) {
+        continue;
+      }
+      if (data.length == 0) {
+        // the chunks of the command are still being written, the later commands wait for it
+        return;
+      }
+      lastCommandPath = commandPath;
+      byte[] payload = ChunkedPayload.read(curator, commandPath, data);
+      // the response goes in the format of the command
+      final boolean binary = WireFormat.isBinary(payload);
+      Command cmd = WireFormat.decodeCommand(payload);
+      log.info("Slot {} received a command {}", slotInfo, cmd);
+      processCommand(cmd, null, new ResponseSender() {
+        @Override
+        public void send(Response res) throws Exception {
+          ChunkedPayload.write(curator, nodeSlotResponsePath(slotInfo, commandPath),
+              PayloadCompression.compress(WireFormat.encode(res, binary), compressionThreshold), payloadChunkSize);
+          curator.delete(commandPath);
+        }
+      });
+    }
+  }
+
+  /**
+   * Delivers the response the way the command came.
+   */
+  interface ResponseSender {
+    void send(Response res) throws Exception;
+  }
+
+  /**
+   * Executes a command received directly from the client, bypassing ZooKeeper.
+   * Only the client the slot is reserved for can use it.
+   */
+  void executeCommand(Command cmd, String clientId, ResponseSender sender) {
+    log.info("Slot {} received a direct command {} from client {}", slotInfo, cmd, clientId);
+    processCommand(cmd, clientId, sender);
+  }
+
+  /**
+   * @param clientId the client that sent the command, null if unknown
+   */
+  private void processCommand(final Command cmd, final String clientId, final ResponseSender sender) {
     if (clientInactivityWatcher != null) {
       clientInactivityWatcher.cancel(false);
     }
     serviceExecutor.submit(new Runnable() {
       public void run() {
         try {
-          if (sessionId != null && !sessionId.equals(cmd.getSessionId().toString())) {
-            log.warn("!!! Command dispatched to a wrong slot");
+          boolean newSession = DriverCommand.NEW_SESSION.equals(cmd.getName());
+          if (!newSession && sessionId != null
+              && (cmd.getSessionId() == null || !sessionId.equals(cmd.getSessionId().toString()))) {
+            log.warn("Command of session {} dispatched to slot {} serving session {}",
+                cmd.getSessionId(), slotInfo, sessionId);
+            sender.send(error("Slot " + slotInfo.getSlotId() + " serves another session"));
+            return;
           }
 
-          executingCommand = true;
+          if (!newSession && clientId != null && !clientId.equals(owner)) {
+            log.warn("Slot {} does not serve client {}", slotInfo, clientId);
+            sender.send(error("Slot " + slotInfo.getSlotId() + " does not serve this client"));
+            return;
+          }
+
+          if (!setBusyState(newSession ? requestedOwner(cmd, clientId) : clientId)) {
+            sender.send(error("Slot " + slotInfo.getSlotId() + " is not reserved for this client"));
+            return;
+          }
 
-          setBusyState();
+          executingCommand = true;
 
           currentCommand = commandExecutor.submit(new Callable<Response>() {
             @Override
@@ -144,6 +293,7 @@ public class NodeSlot {
             }
           });
 
+          long commandStart = System.currentTimeMillis();
           Response res;
           try {
             res = currentCommand.get(commandExecutionTimeout, TimeUnit.MILLISECONDS);
@@ -158,6 +308,7 @@ public class NodeSlot {
             if (ErrorCodes.SUCCESS == res.getStatus()) {
               sessionId = res.getSessionId();
               log.info("sessionId = " + sessionId);
+              loadMonitor.browserLaunched(System.currentTimeMillis() - commandStart);
 
             } else {
               setFreeState();
@@ -166,11 +317,25 @@ public class NodeSlot {
           } else if (DriverCommand.QUIT.equals(cmd.getName())) {
             sessionId = null;
             setFreeState();
-          }
 
-          curator.setData(nodeSlotResponsePath(slotInfo), new BeanToJsonConverter().convert(res));
-          curator.clearBarrier(nodeSlotPath(slotInfo));
+          } else if (sessionId != null && ErrorCodes.NO_SUCH_SESSION == res.getStatus()) {
+            log.warn("Session {} is gone on slot {}, the browser has died", sessionId, slotInfo);
+            sessionId = null;
+            setFreeState();
+          }
 
+          sender.send(res);
+        } catch (Exception e) {
+          log.error("Command " + cmd + " failed on slot " + slotInfo, e);
+          // the client waits for a response to every command
+          try {
+            sender.send(error("Command failed on the node: " + e));
+          } catch (Exception ex) {
+            log.error("Can't send the response", ex);
+          }
+        } finally {
+          executingCommand = false;
+          currentCommand = null;
           clientInactivityWatcher = serviceExecutor.schedule(
               new Runnable() {
                 @Override
@@ -178,19 +343,51 @@ public class NodeSlot {
                   destroySession();
                 }
               }, clientInactivityTimeout, TimeUnit.MILLISECONDS);
-        } catch (Exception e) {
-          e.printStackTrace();
-        } finally {
-          executingCommand = false;
-          currentCommand = null;
         }
       }
     });
   }
 
+  /**
+   * The client that asks for a new session, the clients put their id to the desired capabilities.
+   */
+  private static String requestedOwner(Command cmd, String clientId) {
+    if (clientId != null) {
+      return clientId;
+    }
+    Object desired = cmd.getParameters().get("desiredCapabilities");
+    Object owner = null;
+    if (desired instanceof Map) {
+      owner = ((Map<?, ?>) desired).get(RequestCapabilities.CLIENT_ID);
+    } else if (desired instanceof Capabilities) {
+      owner = ((Capabilities) desired).getCapability(RequestCapabilities.CLIENT_ID);
+    }
+    return owner != null ? owner.toString() : null;
+  }
+
+  private static Response error(String message) {
+    Response res = new Response();
+    res.setStatus(ErrorCodes.UNHANDLED_ERROR);
+    res.setValue(message);
+    return res;
+  }
+
+  /**
+   * Whether a direct command of the client can be taken, the command itself is checked when it is executed.
+   */
+  boolean accepts(String clientId) {
+    String current = owner;
+    return current == null || current.equals(clientId);
+  }
+
+  public boolean hasSession() {
+    return sessionId != null;
+  }
+
   public void destroySession() {
     if (sessionId == null) {
       log.info("No session on slot {}", slotInfo);
+      freeStateIfNoSession();
       return;
     }
     if (executingCommand && currentCommand != null) {
@@ -202,29 +399,109 @@ public class NodeSlot {
         log.info("Killing session {} on slot {}", sessionId, slotInfo);
         commandHandler.handleCommand(new Command(new SessionId(sessionId), DriverCommand.QUIT));
         sessionId = null;
+        freeStateIfNoSession();
       }
     });
   }
 
-  private void setBusyState() {
+  /**
+   * Frees the slot on the service thread the state belongs to, unless a new session
+   * has been started by the commands queued before.
+   */
+  private void freeStateIfNoSession() {
+    serviceExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        if (sessionId == null) {
+          setFreeState();
+        }
+      }
+    });
+  }
+
+  /**
+   * Takes the reservation made by the hub for the client before its lease expires,
+   * or takes the slot if it is not reserved.
+   *
+   * @param clientId the client the command comes from, null if unknown
+   * @return false if the slot is reserved for another client or its state has been changed concurrently
+   */
+  private boolean setBusyState(String clientId) {
+    if (stateVersion >= 0) {
+      return clientId == null || owner == null || owner.equals(clientId);
+    }
     try {
-      curator.setData(nodeSlotStatePath(slotInfo), "busy");
-    } catch (Exception e) {
-      e.printStackTrace();
+      Stat stat = new Stat();
+      SlotState state = SlotState.fromBytes(
+          curator.getClient().getData().storingStatIn(stat).forPath(nodeSlotStatePath(slotInfo)));
+      if (state.isBusy() && state.getOwner() != null && !state.getOwner().equals(clientId)) {
+        log.warn("Slot {} is reserved for client {}, not for {}", slotInfo, state.getOwner(), clientId);
+        return false;
+      }
+      if (state.isBusy() && state.getLeaseUntil() == 0) {
+        stateVersion = stat.getVersion();
+        owner = state.getOwner();
+      } else {
+        stateVersion = curator.getClient().setData().withVersion(stat.getVersion())
+            .forPath(nodeSlotStatePath(slotInfo), SlotState.busy(clientId, 0).toBytes()).getVersion();
+        owner = clientId;
+      }
+      publishState(true, stateVersion);
+      return true;
+    } catch (KeeperException.BadVersionException ex) {
+      log.warn("Slot {} state has been changed concurrently, the reservation may have been reclaimed", slotInfo);
+      return false;
+    } catch (Exception ex) {
+      log.error("Can't take slot " + slotInfo, ex);
+      return false;
     }
   }
 
+  /**
+   * Frees the slot unless the hub has reserved it again since the served reservation.
+   */
   private void setFreeState() {
-    serviceExecutor.schedule(new Runnable() {
-      @Override
-      public void run() {
-        try {
-          curator.setData(nodeSlotStatePath(slotInfo), "free");
-        } catch (Exception ex) {
-          ex.printStackTrace();
-        }
+    final int version = stateVersion;
+    stateVersion = -1;
+    owner = null;
+    if (version < 0) {
+      return;
+    }
+    serviceExecutor.schedule(new FreeStateWrite(version), FREE_STATE_DELAY, TimeUnit.SECONDS);
+  }
+
+  /**
+   * The busy state the node writes has no lease, so the write is retried until it either
+   * succeeds or turns out to be unnecessary, otherwise the hub would never see the slot free.
+   */
+  private class FreeStateWrite implements Runnable {
+    private final int version;
+
+    FreeStateWrite(int version) {
+      this.version = version;
+    }
+
+    @Override
+    public void run() {
+      try {
+        Stat stat = curator.getClient().setData().withVersion(version)
+            .forPath(nodeSlotStatePath(slotInfo), SlotState.free().toBytes());
+        publishState(false, stat.getVersion());
+      } catch (KeeperException.BadVersionException ex) {
+        log.info("Slot {} state has been changed since the session started, it is not freed", slotInfo);
+      } catch (KeeperException.NoNodeException ex) {
+        log.info("Slot {} is not registered anymore", slotInfo);
+      } catch (Exception ex) {
+        log.warn("Can't free slot " + slotInfo + ", retrying", ex);
+        serviceExecutor.schedule(this, FREE_STATE_DELAY, TimeUnit.SECONDS);
       }
-    }, 5, TimeUnit.SECONDS);
+    }
+  }
+
+  private void publishState(boolean busy, int version) {
+    if (statePublisher != null) {
+      statePublisher.slotStateChanged(slotInfo, busy, version);
+    }
   }
 
 }
@@ -0,0 +1,86 @@
+package ru.stqa.selenium.zkgrid.node;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.stqa.selenium.zkgrid.common.Curator;
+import ru.stqa.selenium.zkgrid.common.NodeSlotStates;
+import ru.stqa.selenium.zkgrid.common.SlotInfo;
+import ru.stqa.selenium.zkgrid.common.SlotState;
+
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static ru.stqa.selenium.zkgrid.common.PathUtils.*;
+
+/**
+ * Publishes the states of all the slots of the node in one znode the hub watches.
+ * Changes made while a write is in progress are coalesced into the next write.
+ */
+public class SlotStatePublisher {
+
+  private static Logger log = LoggerFactory.getLogger(SlotStatePublisher.class);
+
+  private final Curator curator;
+  private final String nodeId;
+
+  private final NodeSlotStates states = new NodeSlotStates();
+  private boolean publishPending;
+
+  private final ExecutorService publishExecutor = Executors.newSingleThreadExecutor();
+
+  public SlotStatePublisher(Curator curator, String nodeId) {
+    this.curator = curator;
+    this.nodeId = nodeId;
+  }
+
+  public synchronized void slotStateChanged(SlotInfo slot, boolean busy, int version) {
+    if (states.set(slot.getSlotId(), busy, version) && !publishPending) {
+      publishPending = true;
+      publishExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          publish();
+        }
+      });
+    }
+  }
+
+  /**
+   * Reads the state znodes of the slots, the states may have been changed by the hub or by the previous run of the node.
+   */
+  public void refresh(Collection<SlotInfo> slots) {
+    for (SlotInfo slot : slots) {
+      try {
+        Stat stat = new Stat();
+        byte[] data = curator.getClient().getData().storingStatIn(stat).forPath(nodeSlotStatePath(slot));
+        slotStateChanged(slot, SlotState.fromBytes(data).isBusy(), stat.getVersion());
+      } catch (Exception ex) {
+        log.warn("Can't read state of the slot " + slot, ex);
+      }
+    }
+  }
+
+  public void stop() {
+    publishExecutor.shutdownNow();
+  }
+
+  private void publish() {
+    byte[] data;
+    synchronized (this) {
+      publishPending = false;
+      data = states.toBytes();
+    }
+    try {
+      try {
+        curator.getClient().setData().forPath(nodeSlotStatesPath(nodeId), data);
+      } catch (KeeperException.NoNodeException ex) {
+        curator.getClient().create().creatingParentsIfNeeded().forPath(nodeSlotStatesPath(nodeId), data);
+      }
+    } catch (Exception ex) {
+      log.warn("Can't publish slot states of the node " + nodeId, ex);
+    }
+  }
+}
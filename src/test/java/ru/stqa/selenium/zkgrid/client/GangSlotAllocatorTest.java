@@ -0,0 +1,55 @@
+package ru.stqa.selenium.zkgrid.client;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.remote.DesiredCapabilities;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static ru.stqa.selenium.zkgrid.common.PathUtils.*;
+
+public class GangSlotAllocatorTest {
+
+  private TestingServer server;
+  // the allocator shares the pooled session, the assertions need one of their own
+  private CuratorFramework observer;
+  private GangSlotAllocator allocator;
+
+  @Before
+  public void startServer() throws Exception {
+    server = new TestingServer();
+    observer = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(100));
+    observer.start();
+    allocator = new GangSlotAllocator(server.getConnectString());
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    allocator.close();
+    observer.close();
+    server.close();
+  }
+
+  @Test
+  public void abandonedRequestLeavesNoClientZnodes() throws Exception {
+    // no hub answers the request
+    Error timeout = null;
+    try {
+      allocator.allocate(Arrays.<Capabilities>asList(DesiredCapabilities.firefox()), 0, TimeUnit.SECONDS);
+    } catch (Error ex) {
+      timeout = ex;
+    }
+    assertNotNull("The allocation has not timed out", timeout);
+    assertEquals("Slot allocation timeout", timeout.getMessage());
+
+    assertTrue(observer.getChildren().forPath(clientsPath()).isEmpty());
+  }
+}
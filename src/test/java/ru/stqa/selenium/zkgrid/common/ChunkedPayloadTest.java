@@ -0,0 +1,114 @@
+package ru.stqa.selenium.zkgrid.common;
+
+import com.google.common.base.Charsets;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChunkedPayloadTest {
+
+  private TestingServer server;
+  private Curator curator;
+
+  @Before
+  public void startServer() throws Exception {
+    server = new TestingServer();
+    curator = new Curator(server.getConnectString(), LoggerFactory.getLogger(getClass()));
+    curator.start();
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    curator.getClient().close();
+    server.close();
+  }
+
+  private static byte[] payload(int size) {
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) i;
+    }
+    return data;
+  }
+
+  private List<String> children(String path) throws Exception {
+    return curator.getClient().getChildren().forPath(path);
+  }
+
+  @Test
+  public void smallPayloadIsWrittenToTheZNode() throws Exception {
+    byte[] data = payload(100);
+    ChunkedPayload.write(curator, "/slot/responses/rsp-1", data, 1000);
+
+    assertArrayEquals(data, curator.getClient().getData().forPath("/slot/responses/rsp-1"));
+    assertArrayEquals(data, ChunkedPayload.read(curator, "/slot/responses/rsp-1"));
+    assertTrue(children("/slot/responses/rsp-1").isEmpty());
+  }
+
+  @Test
+  public void largePayloadIsWrittenInChunks() throws Exception {
+    byte[] data = payload(2500);
+    ChunkedPayload.write(curator, "/slot/responses/rsp-1", data, 1000);
+
+    assertEquals(3, children("/slot/responses/rsp-1").size());
+    // the readers take any data for a complete payload, the znode holds the header only
+    assertEquals("zk-grid.chunks 3 2500",
+        new String(curator.getClient().getData().forPath("/slot/responses/rsp-1"), Charsets.UTF_8));
+    assertArrayEquals(data, ChunkedPayload.read(curator, "/slot/responses/rsp-1"));
+  }
+
+  @Test
+  public void rewrittenPayloadLeavesNoStaleChunks() throws Exception {
+    ChunkedPayload.write(curator, "/slot/responses/rsp-1", payload(2500), 1000);
+    byte[] data = payload(1500);
+    ChunkedPayload.write(curator, "/slot/responses/rsp-1", data, 1000);
+    assertEquals(2, children("/slot/responses/rsp-1").size());
+    assertArrayEquals(data, ChunkedPayload.read(curator, "/slot/responses/rsp-1"));
+
+    byte[] small = payload(10);
+    ChunkedPayload.write(curator, "/slot/responses/rsp-1", small, 1000);
+    assertTrue(children("/slot/responses/rsp-1").isEmpty());
+    assertArrayEquals(small, ChunkedPayload.read(curator, "/slot/responses/rsp-1"));
+  }
+
+  @Test
+  public void sequentialPayloadsKeepTheirOrder() throws Exception {
+    byte[] large = payload(2500);
+    byte[] small = payload(10);
+    String first = ChunkedPayload.createSequential(curator, "/slot/commands/cmd-", large, 1000);
+    String second = ChunkedPayload.createSequential(curator, "/slot/commands/cmd-", small, 1000);
+
+    assertTrue(first.compareTo(second) < 0);
+    assertArrayEquals(large, ChunkedPayload.read(curator, first));
+    assertArrayEquals(small, ChunkedPayload.read(curator, second));
+  }
+
+  @Test
+  public void compressedPayloadIsInflatedOnRead() throws Exception {
+    StringBuilder page = new StringBuilder();
+    while (page.length() < 50000) {
+      page.append("<li>item</li>");
+    }
+    byte[] data = page.toString().getBytes(Charsets.UTF_8);
+    byte[] compressed = PayloadCompression.compress(data, 1000);
+    assertTrue(PayloadCompression.isCompressed(compressed));
+
+    // chunked after the compression
+    ChunkedPayload.write(curator, "/slot/responses/rsp-1", compressed, compressed.length / 2);
+    assertArrayEquals(data, ChunkedPayload.read(curator, "/slot/responses/rsp-1"));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void incompletePayloadIsRejected() throws Exception {
+    ChunkedPayload.write(curator, "/slot/responses/rsp-1", payload(2500), 1000);
+    String chunk = children("/slot/responses/rsp-1").get(0);
+    curator.getClient().delete().forPath("/slot/responses/rsp-1/" + chunk);
+    ChunkedPayload.read(curator, "/slot/responses/rsp-1");
+  }
+}
@@ -0,0 +1,66 @@
+package ru.stqa.selenium.zkgrid.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class NodeSlotStatesTest {
+
+  @Test
+  public void statesSurviveEncoding() {
+    NodeSlotStates states = new NodeSlotStates();
+    // more slots than a bitmap byte holds
+    for (int i = 0; i < 20; i++) {
+      states.set("slot-" + i, i % 3 == 0, i * 7);
+    }
+
+    NodeSlotStates decoded = NodeSlotStates.fromBytes(states.toBytes());
+    assertEquals(states.getSlotIds(), decoded.getSlotIds());
+    for (int i = 0; i < 20; i++) {
+      assertEquals(i % 3 == 0, decoded.isBusy("slot-" + i));
+      assertEquals(i * 7, decoded.getVersion("slot-" + i));
+    }
+    assertEquals(states.toString(), decoded.toString());
+  }
+
+  @Test
+  public void emptyStatesSurviveEncoding() {
+    assertTrue(NodeSlotStates.fromBytes(new NodeSlotStates().toBytes()).getSlotIds().isEmpty());
+  }
+
+  @Test
+  public void olderVersionIsIgnored() {
+    NodeSlotStates states = new NodeSlotStates();
+    assertTrue(states.set("slot-1", true, 5));
+    assertFalse(states.set("slot-1", false, 4));
+    assertTrue(states.isBusy("slot-1"));
+    assertEquals(5, states.getVersion("slot-1"));
+
+    assertTrue(states.set("slot-1", false, 6));
+    assertFalse(states.isBusy("slot-1"));
+  }
+
+  @Test
+  public void unknownSlotIsFreeWithNoVersion() {
+    NodeSlotStates states = new NodeSlotStates();
+    assertFalse(states.isBusy("slot-1"));
+    assertEquals(-1, states.getVersion("slot-1"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownFormatIsRejected() {
+    byte[] data = new NodeSlotStates().toBytes();
+    data[0] = 9;
+    NodeSlotStates.fromBytes(data);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void truncatedStatesAreRejected() {
+    NodeSlotStates states = new NodeSlotStates();
+    states.set("slot-1", true, 1);
+    byte[] data = states.toBytes();
+    NodeSlotStates.fromBytes(Arrays.copyOf(data, data.length - 2));
+  }
+}
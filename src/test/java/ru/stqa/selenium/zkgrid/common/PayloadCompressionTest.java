@@ -0,0 +1,77 @@
+package ru.stqa.selenium.zkgrid.common;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+import org.openqa.selenium.remote.Response;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PayloadCompressionTest {
+
+  private static byte[] pageSource(int size) {
+    StringBuilder page = new StringBuilder();
+    while (page.length() < size) {
+      page.append("<div class=\"row\"><span>item ").append(page.length() % 100).append("</span></div>\n");
+    }
+    return page.substring(0, size).getBytes(Charsets.UTF_8);
+  }
+
+  @Test
+  public void smallPayloadIsWrittenAsIs() {
+    byte[] data = pageSource(1000);
+    assertSame(data, PayloadCompression.compress(data, 1000));
+  }
+
+  @Test
+  public void negativeThresholdDisablesCompression() {
+    byte[] data = pageSource(100000);
+    assertSame(data, PayloadCompression.compress(data, -1));
+  }
+
+  @Test
+  public void largePayloadIsCompressedAndRestored() {
+    byte[] data = pageSource(100000);
+    byte[] compressed = PayloadCompression.compress(data, 1000);
+
+    assertTrue(PayloadCompression.isCompressed(compressed));
+    assertTrue(compressed.length < data.length / 2);
+    assertArrayEquals(data, PayloadCompression.decompress(compressed));
+  }
+
+  @Test
+  public void incompressiblePayloadIsWrittenAsIs() {
+    byte[] data = new byte[100000];
+    new Random(1).nextBytes(data);
+    assertSame(data, PayloadCompression.compress(data, 1000));
+  }
+
+  @Test
+  public void uncompressedPayloadsAreReadAsIs() {
+    byte[] json = "{\"status\":0}".getBytes(Charsets.UTF_8);
+    assertSame(json, PayloadCompression.decompress(json));
+    byte[] binary = WireFormat.encode(new Response(), true);
+    assertSame(binary, PayloadCompression.decompress(binary));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void truncatedPayloadIsRejected() {
+    byte[] compressed = PayloadCompression.compress(pageSource(100000), 1000);
+    PayloadCompression.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+  }
+
+  @Test
+  public void metricsCountCompressedPayloads() {
+    PayloadCompressionMXBean metrics = PayloadCompression.getMetrics();
+    long payloads = metrics.getCompressedPayloads();
+    long decompressed = metrics.getDecompressedPayloads();
+
+    PayloadCompression.decompress(PayloadCompression.compress(pageSource(100000), 1000));
+
+    assertEquals(payloads + 1, metrics.getCompressedPayloads());
+    assertEquals(decompressed + 1, metrics.getDecompressedPayloads());
+    assertTrue(metrics.getCompressionRatio() < 1);
+  }
+}
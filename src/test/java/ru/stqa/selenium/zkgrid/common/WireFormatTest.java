@@ -0,0 +1,192 @@
+package ru.stqa.selenium.zkgrid.common;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.remote.BeanToJsonConverter;
+import org.openqa.selenium.remote.Command;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.openqa.selenium.remote.DriverCommand;
+import org.openqa.selenium.remote.Response;
+import org.openqa.selenium.remote.SessionId;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WireFormatTest {
+
+  private static Map<String, Object> parameters() {
+    Map<String, Object> parameters = Maps.newHashMap();
+    parameters.put("using", "css selector");
+    parameters.put("value", "#id > span.\u043a\u043b\u0430\u0441\u0441");
+    parameters.put("int", 3);
+    parameters.put("long", 1L << 40);
+    parameters.put("negative", -17);
+    parameters.put("double", 1.5);
+    parameters.put("float", 0.1f);
+    parameters.put("bigDecimal", new BigDecimal("3"));
+    parameters.put("flag", true);
+    parameters.put("list", Arrays.asList(1, "a", false));
+    parameters.put("map", ImmutableMap.of("x", 10, "y", 2.25));
+    parameters.put("enum", TimeUnit.SECONDS);
+    return parameters;
+  }
+
+  private static Command command() {
+    return new Command(new SessionId("session-1"), DriverCommand.FIND_ELEMENT, parameters());
+  }
+
+  @Test
+  public void binaryPayloadIsMarked() {
+    assertTrue(WireFormat.isBinary(WireFormat.encode(command(), true)));
+    assertFalse(WireFormat.isBinary(WireFormat.encode(command(), false)));
+    assertFalse(WireFormat.isBinary(new byte[0]));
+  }
+
+  @Test
+  public void commandDecodesToTheSameObjectsFromBothFormats() {
+    Command fromBinary = WireFormat.decodeCommand(WireFormat.encode(command(), true));
+    Command fromJson = WireFormat.decodeCommand(WireFormat.encode(command(), false));
+
+    assertEquals("session-1", fromBinary.getSessionId().toString());
+    assertEquals(DriverCommand.FIND_ELEMENT, fromBinary.getName());
+    assertEquals(fromJson.getSessionId().toString(), fromBinary.getSessionId().toString());
+    assertEquals(fromJson.getName(), fromBinary.getName());
+    assertEquals(fromJson.getParameters(), fromBinary.getParameters());
+  }
+
+  @Test
+  public void numbersAreReadBackAsTheJsonConverterReadsThem() {
+    Map<String, ?> parameters = WireFormat.decodeCommand(WireFormat.encode(command(), true)).getParameters();
+    assertEquals(3L, parameters.get("int"));
+    assertEquals(1L << 40, parameters.get("long"));
+    assertEquals(-17L, parameters.get("negative"));
+    assertEquals(1.5, parameters.get("double"));
+    assertEquals(0.1, parameters.get("float"));
+    assertEquals(3L, parameters.get("bigDecimal"));
+    assertEquals(Arrays.asList(1L, "a", false), parameters.get("list"));
+    assertEquals(ImmutableMap.of("x", 10L, "y", 2.25), parameters.get("map"));
+    assertEquals("SECONDS", parameters.get("enum"));
+  }
+
+  @Test
+  public void commandWithoutSessionAndParameterValues() {
+    Map<String, Object> parameters = Maps.newHashMap();
+    parameters.put("nothing", null);
+    Command decoded = WireFormat.decodeCommand(
+        WireFormat.encode(new Command(null, DriverCommand.NEW_SESSION, parameters), true));
+    assertNull(decoded.getSessionId());
+    assertTrue(decoded.getParameters().containsKey("nothing"));
+    assertNull(decoded.getParameters().get("nothing"));
+  }
+
+  @Test
+  public void responseDecodesToTheSameObjectsFromBothFormats() {
+    Response response = new Response();
+    response.setStatus(7);
+    response.setSessionId("session-1");
+    response.setState("no such element");
+    response.setValue(ImmutableMap.of("message", "not found", "line", 12, "ratio", 0.5));
+
+    Response fromBinary = WireFormat.decodeResponse(WireFormat.encode(response, true));
+    Response fromJson = WireFormat.decodeResponse(WireFormat.encode(response, false));
+
+    assertEquals(7, fromBinary.getStatus());
+    assertEquals("session-1", fromBinary.getSessionId());
+    assertEquals("no such element", fromBinary.getState());
+    assertEquals(fromJson.getStatus(), fromBinary.getStatus());
+    assertEquals(fromJson.getSessionId(), fromBinary.getSessionId());
+    assertEquals(fromJson.getValue(), fromBinary.getValue());
+  }
+
+  @Test
+  public void largeStringValueSurvives() {
+    StringBuilder screenshot = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      screenshot.append((char) ('A' + i % 26));
+    }
+    Response response = new Response();
+    response.setValue(screenshot.toString());
+    assertEquals(screenshot.toString(),
+        WireFormat.decodeResponse(WireFormat.encode(response, true)).getValue());
+  }
+
+  @Test
+  public void capabilitiesDecodeToTheSameMapFromBothFormats() {
+    DesiredCapabilities capabilities = new DesiredCapabilities();
+    capabilities.setCapability("browserName", "firefox");
+    capabilities.setCapability("version", "31");
+    capabilities.setCapability("zk-grid.clientId", "client-1");
+    capabilities.setCapability("zk-grid.deadline", 1400000000000L);
+    capabilities.setCapability("zk-grid.gang", Lists.newArrayList(ImmutableMap.of("browserName", "chrome")));
+
+    Capabilities fromBinary = WireFormat.decodeCapabilities(WireFormat.encode(capabilities));
+    Capabilities fromJson = WireFormat.decodeCapabilities(
+        new BeanToJsonConverter().convert(capabilities).getBytes(Charsets.UTF_8));
+
+    assertEquals("firefox", fromBinary.getBrowserName());
+    assertEquals(1400000000000L, fromBinary.getCapability("zk-grid.deadline"));
+    assertEquals(fromJson.asMap(), fromBinary.asMap());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void newerVersionIsRejected() {
+    byte[] data = WireFormat.encode(command(), true);
+    data[1] = 2;
+    WireFormat.decodeCommand(data);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void truncatedPayloadIsRejected() {
+    byte[] data = WireFormat.encode(command(), true);
+    WireFormat.decodeCommand(Arrays.copyOf(data, data.length / 2));
+  }
+
+  private static SlotInfo slot(String slotId) {
+    DesiredCapabilities capabilities = DesiredCapabilities.firefox();
+    capabilities.setCapability(WireFormat.BINARY_CAPABILITY, true);
+    return new SlotInfo("node-1", slotId, capabilities);
+  }
+
+  @Test
+  public void allocationResponseDecodesFromBothFormats() {
+    SlotAllocationResponse response = new SlotAllocationResponse(SlotAllocationResponse.Status.OK, slot("slot-1"));
+    byte[] json = new BeanToJsonConverter().convert(response).getBytes(Charsets.UTF_8);
+
+    for (byte[] data : Arrays.asList(WireFormat.encode(response), json)) {
+      SlotAllocationResponse decoded = WireFormat.decodeAllocationResponse(data);
+      assertEquals(SlotAllocationResponse.Status.OK, decoded.getStatus());
+      assertNull(decoded.getMessage());
+      assertEquals("node-1", decoded.getSlotInfo().getNodeId());
+      assertEquals("slot-1", decoded.getSlotInfo().getSlotId());
+      assertEquals("firefox", decoded.getSlotInfo().getCapabilities().getBrowserName());
+      assertTrue(WireFormat.supportsBinary(decoded.getSlotInfo()));
+      assertNull(decoded.getSlots());
+    }
+  }
+
+  @Test
+  public void gangAllocationResponseKeepsTheMembersWithoutSlots() {
+    SlotAllocationResponse response = new SlotAllocationResponse(SlotAllocationResponse.Status.OK, null, "partial");
+    response.setSlots(Arrays.asList(slot("slot-1"), null, slot("slot-2")));
+    byte[] json = new BeanToJsonConverter().convert(response).getBytes(Charsets.UTF_8);
+
+    for (byte[] data : Arrays.asList(WireFormat.encode(response), json)) {
+      SlotAllocationResponse decoded = WireFormat.decodeAllocationResponse(data);
+      assertEquals("partial", decoded.getMessage());
+      assertNull(decoded.getSlotInfo());
+      assertEquals(3, decoded.getSlots().size());
+      assertEquals("slot-1", decoded.getSlots().get(0).getSlotId());
+      assertNull(decoded.getSlots().get(1));
+      assertEquals("slot-2", decoded.getSlots().get(2).getSlotId());
+      assertEquals("firefox", decoded.getSlots().get(2).getCapabilities().getBrowserName());
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import org.junit.Test;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.Platform;
+import org.openqa.selenium.remote.CapabilityType;
+import org.openqa.selenium.remote.DesiredCapabilities;
+
+import static org.junit.Assert.*;
+
+public class DefaultCapabilityMatcherTest {
+
+  private final DefaultCapabilityMatcher matcher = new DefaultCapabilityMatcher();
+
+  private static DesiredCapabilities firefox(String version) {
+    DesiredCapabilities capabilities = DesiredCapabilities.firefox();
+    capabilities.setPlatform(Platform.LINUX);
+    capabilities.setVersion(version);
+    return capabilities;
+  }
+
+  private boolean predicateMatches(Capabilities slot, Capabilities required) {
+    return matcher.compile(required).matches(new SlotCapabilities(slot));
+  }
+
+  private void assertMatch(boolean expected, Capabilities slot, Capabilities required) {
+    assertEquals(expected, predicateMatches(slot, required));
+    assertEquals(expected, matcher.matches(slot, required));
+  }
+
+  @Test
+  public void emptyRequirementsMatchAnySlot() {
+    assertMatch(true, firefox("31"), new DesiredCapabilities());
+  }
+
+  @Test
+  public void nullRequirementsMatchNothing() {
+    assertFalse(matcher.compile(null).matches(new SlotCapabilities(firefox("31"))));
+    assertFalse(matcher.matches(firefox("31"), null));
+    assertFalse(matcher.matches(null, firefox("31")));
+  }
+
+  @Test
+  public void browserNameAndPlatformMustMatch() {
+    assertMatch(true, firefox("31"), DesiredCapabilities.firefox());
+    assertMatch(false, firefox("31"), DesiredCapabilities.chrome());
+
+    DesiredCapabilities windows = new DesiredCapabilities();
+    windows.setPlatform(Platform.WINDOWS);
+    assertMatch(false, firefox("31"), windows);
+  }
+
+  @Test
+  public void exactVersionMatchesNumerically() {
+    assertMatch(true, firefox("1.10.0"), firefox("1.10"));
+    assertMatch(true, firefox("1.10"), firefox("1.10.0"));
+    assertMatch(false, firefox("1.10.1"), firefox("1.10"));
+  }
+
+  @Test
+  public void versionRanges() {
+    assertMatch(true, firefox("53"), firefox("53+"));
+    assertMatch(true, firefox("60.1"), firefox("53+"));
+    assertMatch(false, firefox("52.9"), firefox("53+"));
+    assertMatch(true, firefox("60"), firefox("60-"));
+    assertMatch(false, firefox("60.0.1"), firefox("60-"));
+  }
+
+  @Test
+  public void unparsableVersionsDoNotMatch() {
+    assertMatch(false, firefox("31"), firefox("latest"));
+    assertMatch(false, firefox("nightly"), firefox("31"));
+    assertMatch(false, firefox("nightly"), firefox("31+"));
+  }
+
+  @Test
+  public void applicationNameMustMatch() {
+    DesiredCapabilities slot = firefox("31");
+    slot.setCapability(SlotIndex.APPLICATION_NAME, "app-a");
+    DesiredCapabilities required = new DesiredCapabilities();
+    required.setCapability(SlotIndex.APPLICATION_NAME, "app-a");
+    assertMatch(true, slot, required);
+    required.setCapability(SlotIndex.APPLICATION_NAME, "app-b");
+    assertMatch(false, slot, required);
+  }
+
+  @Test
+  public void matchesFollowsTheRequirements() {
+    DesiredCapabilities required = DesiredCapabilities.firefox();
+    assertTrue(matcher.matches(firefox("31"), required));
+    required.setCapability(CapabilityType.BROWSER_NAME, "chrome");
+    assertFalse(matcher.matches(firefox("31"), required));
+  }
+}
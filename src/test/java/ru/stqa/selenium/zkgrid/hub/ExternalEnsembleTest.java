@@ -0,0 +1,95 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import com.beust.jcommander.JCommander;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingCluster;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.slf4j.LoggerFactory;
+import ru.stqa.selenium.zkgrid.client.GangSlotAllocator;
+import ru.stqa.selenium.zkgrid.common.Curator;
+import ru.stqa.selenium.zkgrid.common.SlotInfo;
+import ru.stqa.selenium.zkgrid.node.Node;
+import ru.stqa.selenium.zkgrid.node.NodeParameters;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static ru.stqa.selenium.zkgrid.common.PathUtils.nodePath;
+
+public class ExternalEnsembleTest {
+
+  private TestingCluster cluster;
+  private CuratorFramework root;
+  private Hub hub;
+
+  @Before
+  public void startEnsemble() throws Exception {
+    cluster = new TestingCluster(3);
+    cluster.start();
+    root = CuratorFrameworkFactory.newClient(cluster.getConnectString(), new RetryOneTime(100));
+    root.start();
+    root.blockUntilConnected(10, TimeUnit.SECONDS);
+  }
+
+  @After
+  public void stopEnsemble() throws Exception {
+    if (hub != null) {
+      hub.stop();
+    }
+    root.close();
+    cluster.close();
+  }
+
+  @Test
+  public void namespaceIsTakenFromConnectionString() throws Exception {
+    Curator curator = new Curator(cluster.getConnectString() + "/grid1", LoggerFactory.getLogger(getClass()));
+    curator.start();
+    try {
+      curator.create("/nodes");
+      assertTrue(curator.checkExists("/nodes"));
+      assertNotNull(root.checkExists().forPath("/grid1/nodes"));
+      assertNull(root.checkExists().forPath("/nodes"));
+    } finally {
+      curator.getClient().close();
+    }
+  }
+
+  @Test
+  public void hubNodeAndClientShareNamespaceOfExternalEnsemble() throws Exception {
+    String grid = cluster.getConnectString() + "/grid1";
+
+    HubParameters hubParameters = new HubParameters();
+    new JCommander(hubParameters, "-zookeeper", grid);
+    hub = new Hub(hubParameters);
+    hub.start();
+
+    NodeParameters nodeParameters = new NodeParameters();
+    new JCommander(nodeParameters, "-hub", grid);
+    Node node = new Node(nodeParameters);
+    node.start();
+
+    GangSlotAllocator allocator = new GangSlotAllocator(grid);
+    try {
+      List<SlotInfo> slots = allocator.allocate(
+          Collections.<Capabilities>singletonList(DesiredCapabilities.firefox()), 30, TimeUnit.SECONDS);
+      assertEquals(1, slots.size());
+      SlotInfo slot = slots.get(0);
+      assertNotNull(slot);
+      assertNotNull(slot.getOwner());
+
+      assertNotNull(root.checkExists().forPath("/grid1" + nodePath(slot.getNodeId())));
+      assertNull(root.checkExists().forPath(nodePath(slot.getNodeId())));
+      assertNull(root.checkExists().forPath("/grid2"));
+    } finally {
+      allocator.close();
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.KillSession;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import ru.stqa.selenium.zkgrid.common.Curator;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static ru.stqa.selenium.zkgrid.common.PathUtils.*;
+
+public class NodeLivenessTest {
+
+  private static final String NODE_ID = "node-1";
+
+  private TestingServer server;
+  private Curator curator;
+  private NodeRegistry registry;
+  // plays the node: keeps the ephemeral alive znode while its session lasts
+  private CuratorFramework node;
+
+  @Before
+  public void startRegistry() throws Exception {
+    server = new TestingServer();
+    curator = new Curator(server.getConnectString(), LoggerFactory.getLogger(getClass()));
+    curator.start();
+    registry = new NodeRegistry.Builder(curator)
+        .withDeadTimeout(1, TimeUnit.SECONDS)
+        .withCapabilityMatcher(DefaultCapabilityMatcher.class.getName())
+        .create();
+
+    node = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(100));
+    node.start();
+    node.blockUntilConnected(10, TimeUnit.SECONDS);
+    node.create().creatingParentsIfNeeded().forPath(nodePath(NODE_ID));
+    announceAlive();
+    registry.registerNode(NODE_ID);
+    waitFor(new Condition() {
+      @Override
+      public boolean holds() {
+        return isRegistered();
+      }
+    }, 5000);
+  }
+
+  @After
+  public void stopRegistry() throws Exception {
+    node.close();
+    registry.stop();
+    curator.getClient().close();
+    server.close();
+  }
+
+  private void announceAlive() throws Exception {
+    node.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(nodeAlivePath(NODE_ID));
+  }
+
+  private boolean isRegistered() {
+    for (NodeInfo info : registry.getNodes()) {
+      if (NODE_ID.equals(info.getNodeId())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private interface Condition {
+    boolean holds();
+  }
+
+  private static boolean waitFor(Condition condition, long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (!condition.holds()) {
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      Thread.sleep(20);
+    }
+    return true;
+  }
+
+  @Test
+  public void liveNodeIsNotLost() throws Exception {
+    assertTrue(isRegistered());
+    Thread.sleep(1500);
+    assertFalse(registry.isLost(NODE_ID));
+    assertTrue(isRegistered());
+  }
+
+  @Test
+  public void nodeWithExpiredSessionIsLostAndThenUnregistered() throws Exception {
+    KillSession.kill(node.getZookeeperClient().getZooKeeper(), server.getConnectString());
+
+    assertTrue("node is not lost", waitFor(new Condition() {
+      @Override
+      public boolean holds() {
+        return registry.isLost(NODE_ID);
+      }
+    }, 5000));
+    assertTrue(isRegistered());
+
+    assertTrue("node is not unregistered", waitFor(new Condition() {
+      @Override
+      public boolean holds() {
+        return !isRegistered();
+      }
+    }, 5000));
+    assertFalse(registry.isLost(NODE_ID));
+    assertNull(curator.getClient().checkExists().forPath(nodePath(NODE_ID)));
+  }
+
+  @Test
+  public void nodeBackBeforeDeadTimeoutStaysRegistered() throws Exception {
+    KillSession.kill(node.getZookeeperClient().getZooKeeper(), server.getConnectString());
+    assertTrue("node is not lost", waitFor(new Condition() {
+      @Override
+      public boolean holds() {
+        return registry.isLost(NODE_ID);
+      }
+    }, 5000));
+
+    // a new session announces the node again
+    node.blockUntilConnected(10, TimeUnit.SECONDS);
+    announceAlive();
+
+    assertTrue("node is still lost", waitFor(new Condition() {
+      @Override
+      public boolean holds() {
+        return !registry.isLost(NODE_ID);
+      }
+    }, 5000));
+    Thread.sleep(1500);
+    assertTrue(isRegistered());
+  }
+}
@@ -0,0 +1,84 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import org.junit.Test;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import ru.stqa.selenium.zkgrid.common.SlotAllocationResponse;
+import ru.stqa.selenium.zkgrid.common.SlotInfo;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SlotIndexTest {
+
+  private final DefaultCapabilityMatcher matcher = new DefaultCapabilityMatcher();
+
+  // prefers the slots of the nodes with the lower ids
+  private static final Comparator<SlotInfo> BY_NODE = new Comparator<SlotInfo>() {
+    @Override
+    public int compare(SlotInfo slot1, SlotInfo slot2) {
+      return slot1.getNodeId().compareTo(slot2.getNodeId());
+    }
+  };
+
+  private static SlotIndex index(List<SlotInfo> slots) {
+    SlotIndex index = new SlotIndex().withSlots(slots);
+    index.offerFree(slots);
+    return index;
+  }
+
+  @Test
+  public void takesFreeSlotsInTheOrderOfPreference() {
+    SlotInfo firefox2 = new SlotInfo("node-2", "slot-1", DesiredCapabilities.firefox());
+    SlotInfo firefox1 = new SlotInfo("node-1", "slot-1", DesiredCapabilities.firefox());
+    SlotInfo chrome0 = new SlotInfo("node-0", "slot-1", DesiredCapabilities.chrome());
+    SlotIndex index = index(Arrays.asList(firefox2, firefox1, chrome0));
+    CapabilityPredicate firefox = matcher.compile(DesiredCapabilities.firefox());
+
+    assertSame(firefox1, index.findFreeMatchingSlot(firefox, BY_NODE).getSlotInfo());
+    assertTrue(firefox1.isBusy());
+    assertSame(firefox2, index.findFreeMatchingSlot(firefox, BY_NODE).getSlotInfo());
+    assertEquals(SlotAllocationResponse.Status.NO_FREE_SLOT, index.findFreeMatchingSlot(firefox, BY_NODE).getStatus());
+
+    assertTrue(index.release(firefox2));
+    assertSame(firefox2, index.findFreeMatchingSlot(firefox, BY_NODE).getSlotInfo());
+  }
+
+  @Test
+  public void skipsSlotsTakenOutsideTheIndex() {
+    SlotInfo firefox1 = new SlotInfo("node-1", "slot-1", DesiredCapabilities.firefox());
+    SlotInfo firefox2 = new SlotInfo("node-2", "slot-1", DesiredCapabilities.firefox());
+    SlotIndex index = index(Arrays.asList(firefox1, firefox2));
+    // e.g. the node has started a session on the slot itself
+    assertTrue(index.claim(firefox1));
+
+    assertSame(firefox2, index.findFreeMatchingSlot(matcher.compile(DesiredCapabilities.firefox()), BY_NODE)
+        .getSlotInfo());
+  }
+
+  @Test
+  public void reportsWhetherThereAreMatchingSlots() {
+    SlotIndex index = index(Arrays.asList(new SlotInfo("node-1", "slot-1", DesiredCapabilities.firefox())));
+    assertEquals(SlotAllocationResponse.Status.NO_MATCHING_SLOT,
+        index.findFreeMatchingSlot(matcher.compile(DesiredCapabilities.chrome()), BY_NODE).getStatus());
+    assertEquals(SlotAllocationResponse.Status.OK,
+        index.findFreeMatchingSlot(matcher.compile(DesiredCapabilities.firefox())).getStatus());
+    assertEquals(SlotAllocationResponse.Status.NO_FREE_SLOT,
+        index.findFreeMatchingSlot(matcher.compile(DesiredCapabilities.firefox())).getStatus());
+  }
+
+  public static class PlainMatcher implements CapabilityMatcher {
+    @Override
+    public boolean matches(Capabilities actualCapabilities, Capabilities requiredCapabilities) {
+      return true;
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void registryRejectsMatchersThatCanNotMatchBuckets() throws Exception {
+    new NodeRegistry.Builder(null).withCapabilityMatcher(PlainMatcher.class.getName());
+  }
+}
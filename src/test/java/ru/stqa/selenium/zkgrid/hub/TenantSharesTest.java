@@ -0,0 +1,102 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import org.junit.Test;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import ru.stqa.selenium.zkgrid.common.RequestCapabilities;
+import ru.stqa.selenium.zkgrid.common.SlotInfo;
+
+import static org.junit.Assert.*;
+
+public class TenantSharesTest {
+
+  private final TenantShares shares = new TenantShares();
+
+  private static SessionRequest request(String tenant) {
+    DesiredCapabilities capabilities = DesiredCapabilities.firefox();
+    capabilities.setCapability(RequestCapabilities.TENANT, tenant);
+    return new SessionRequest(capabilities, null);
+  }
+
+  private static SlotInfo slot(String slotId) {
+    return new SlotInfo("node-1", slotId, DesiredCapabilities.firefox());
+  }
+
+  @Test
+  public void cappedTenantGetsNoMoreSessions() {
+    shares.configure("team-a", 1, 2);
+    SessionRequest first = request("team-a");
+    SessionRequest second = request("team-a");
+    SessionRequest third = request("team-a");
+
+    assertTrue(shares.tryAcquire(first));
+    assertTrue(shares.tryAcquire(second));
+    assertFalse(shares.tryAcquire(third));
+    // a request counts once however many times it is checked
+    assertTrue(shares.tryAcquire(first));
+
+    SlotInfo slot = slot("slot-1");
+    shares.grant(first, slot);
+    assertFalse(shares.tryAcquire(third));
+    assertTrue(shares.slotReleased(slot));
+    assertFalse(shares.slotReleased(slot));
+    assertTrue(shares.tryAcquire(third));
+  }
+
+  @Test
+  public void releasedRequestFreesItsShare() {
+    shares.configure("team-a", 1, 1);
+    SessionRequest first = request("team-a");
+    SessionRequest second = request("team-a");
+
+    assertTrue(shares.tryAcquire(first));
+    assertFalse(shares.tryAcquire(second));
+    shares.release(first);
+    shares.release(first);
+    assertTrue(shares.tryAcquire(second));
+    assertFalse(shares.tryAcquire(first));
+  }
+
+  @Test
+  public void defaultTenantsAreUncappedByDefault() {
+    for (int i = 0; i < 100; i++) {
+      assertTrue(shares.tryAcquire(request(TenantShares.DEFAULT_TENANT)));
+    }
+  }
+
+  @Test
+  public void gangGetsBetweenTheMinimumAndTheWantedNumber() {
+    shares.configure("team-a", 1, 10);
+    assertEquals(6, shares.tryAcquire("team-a", 6, 2));
+    assertEquals(0, shares.tryAcquire("team-a", 6, 5));
+    assertEquals(4, shares.tryAcquire("team-a", 6, 2));
+    shares.release("team-a", 3);
+    assertEquals(3, shares.tryAcquire("team-a", 3, 3));
+  }
+
+  @Test
+  public void heavierTenantIsChargedLessVirtualTime() {
+    shares.configure("heavy", 3, 0);
+    shares.configure("light", 1, 0);
+    assertTrue(shares.tryAcquire(request("light")));
+    for (int i = 0; i < 3; i++) {
+      assertTrue(shares.tryAcquire(request("heavy")));
+    }
+    // three sessions of the heavy tenant cost as much as one of the light tenant
+    assertEquals(shares.startTag("heavy"), shares.startTag("light"), 1e-9);
+    assertTrue(shares.tryAcquire(request("heavy")));
+    assertTrue(shares.startTag("heavy") < shares.startTag("light") + 1);
+    assertTrue(shares.startTag("heavy") > shares.startTag("light"));
+  }
+
+  @Test
+  public void idleTenantGetsNoCredit() {
+    shares.configure("busy", 1, 0);
+    shares.configure("idle", 1, 0);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(shares.tryAcquire(request("busy")));
+    }
+    // the idle tenant starts at the current virtual time, not at zero
+    assertTrue(shares.startTag("idle") >= 4);
+    assertTrue(shares.startTag("idle") <= shares.startTag("busy"));
+  }
+}
@@ -0,0 +1,95 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+  private final List<String> expired = new CopyOnWriteArrayList<String>();
+
+  // 10 ms ticks, a revolution of the wheel is 80 ms
+  private final TimingWheel<String> wheel = new TimingWheel<String>(10, TimeUnit.MILLISECONDS, 8,
+      new TimingWheel.ExpirationListener<String>() {
+        @Override
+        public void expired(String key) {
+          expired.add(key);
+        }
+      });
+
+  @After
+  public void stopWheel() {
+    wheel.stop();
+  }
+
+  private void awaitExpired(String key, long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (!expired.contains(key) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  public void keyExpiresAfterItsDelay() throws Exception {
+    wheel.start();
+    long start = System.currentTimeMillis();
+    wheel.schedule("node-1", 50, TimeUnit.MILLISECONDS);
+    assertTrue(wheel.isScheduled("node-1"));
+
+    awaitExpired("node-1", 2000);
+    assertTrue(expired.contains("node-1"));
+    assertTrue(System.currentTimeMillis() - start >= 50);
+    assertFalse(wheel.isScheduled("node-1"));
+  }
+
+  @Test
+  public void cancelledKeyDoesNotExpire() throws Exception {
+    wheel.start();
+    wheel.schedule("node-1", 30, TimeUnit.MILLISECONDS);
+    wheel.schedule("node-2", 30, TimeUnit.MILLISECONDS);
+    assertTrue(wheel.cancel("node-1"));
+    assertFalse(wheel.cancel("node-1"));
+
+    awaitExpired("node-2", 2000);
+    Thread.sleep(50);
+    assertEquals(1, expired.size());
+    assertEquals("node-2", expired.get(0));
+  }
+
+  @Test
+  public void deadlineLongerThanRevolutionWaitsForItsRound() throws Exception {
+    wheel.start();
+    long start = System.currentTimeMillis();
+    wheel.schedule("node-1", 250, TimeUnit.MILLISECONDS);
+
+    awaitExpired("node-1", 3000);
+    assertTrue(expired.contains("node-1"));
+    assertTrue(System.currentTimeMillis() - start >= 250);
+  }
+
+  @Test
+  public void scheduleIfAbsentKeepsTheFirstDeadline() throws Exception {
+    assertTrue(wheel.scheduleIfAbsent("node-1", 30, TimeUnit.MILLISECONDS));
+    assertFalse(wheel.scheduleIfAbsent("node-1", 10, TimeUnit.SECONDS));
+    wheel.start();
+
+    awaitExpired("node-1", 2000);
+    assertTrue(expired.contains("node-1"));
+  }
+
+  @Test
+  public void rescheduleReplacesTheDeadline() throws Exception {
+    wheel.start();
+    wheel.schedule("node-1", 30, TimeUnit.MILLISECONDS);
+    wheel.schedule("node-1", 10, TimeUnit.SECONDS);
+
+    Thread.sleep(150);
+    assertTrue(expired.isEmpty());
+    assertTrue(wheel.isScheduled("node-1"));
+  }
+}
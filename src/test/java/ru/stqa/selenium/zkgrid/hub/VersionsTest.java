@@ -0,0 +1,44 @@
+package ru.stqa.selenium.zkgrid.hub;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VersionsTest {
+
+  @Test
+  public void parsesOrdinalNumbersSeparatedByDots() {
+    assertArrayEquals(new int[] { 53 }, Versions.parse("53"));
+    assertArrayEquals(new int[] { 1, 10, 0 }, Versions.parse("1.10.0"));
+  }
+
+  @Test
+  public void missingVersionIsZero() {
+    assertArrayEquals(new int[] { 0 }, Versions.parse(null));
+    assertArrayEquals(new int[] { 0 }, Versions.parse(""));
+  }
+
+  @Test
+  public void unparsableVersionIsNull() {
+    assertNull(Versions.parse("beta"));
+    assertNull(Versions.parse("31.0b"));
+    assertNull(Versions.parse("1..2"));
+    assertNull(Versions.parse(".1"));
+    assertNull(Versions.parse("1."));
+    assertNull(Versions.parse("-1"));
+    assertNull(Versions.parse("99999999999"));
+  }
+
+  @Test
+  public void comparesNumericallyNotLexicographically() {
+    assertTrue(Versions.compare(Versions.parse("1.10"), Versions.parse("1.6")) > 0);
+    assertTrue(Versions.compare(Versions.parse("9"), Versions.parse("10")) < 0);
+  }
+
+  @Test
+  public void missingTrailingPartsAreZeros() {
+    assertEquals(0, Versions.compare(Versions.parse("1.10"), Versions.parse("1.10.0")));
+    assertEquals(0, Versions.compare(Versions.parse("1.10.0.0"), Versions.parse("1.10")));
+    assertTrue(Versions.compare(Versions.parse("1.10"), Versions.parse("1.10.1")) < 0);
+  }
+}
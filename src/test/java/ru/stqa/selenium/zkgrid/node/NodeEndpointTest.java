@@ -0,0 +1,81 @@
+package ru.stqa.selenium.zkgrid.node;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.net.HostAndPort;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.stqa.selenium.zkgrid.common.Frames;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+import static org.junit.Assert.*;
+
+public class NodeEndpointTest {
+
+  private static final int MAX_FRAME_SIZE = 1024;
+
+  private NodeEndpoint endpoint;
+  private Socket socket;
+  private DataInputStream in;
+  private DataOutputStream out;
+
+  @Before
+  public void connect() throws Exception {
+    endpoint = new NodeEndpoint("localhost", 0, MAX_FRAME_SIZE, ImmutableMap.<String, NodeSlot>of());
+    endpoint.start();
+    HostAndPort address = HostAndPort.fromString(endpoint.getAddress());
+    socket = new Socket(address.getHostText(), address.getPort());
+    socket.setSoTimeout(5000);
+    in = new DataInputStream(socket.getInputStream());
+    out = new DataOutputStream(socket.getOutputStream());
+  }
+
+  @After
+  public void disconnect() throws Exception {
+    socket.close();
+    endpoint.stop();
+  }
+
+  private static String command(int size) {
+    StringBuilder command = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      command.append('x');
+    }
+    return command.toString();
+  }
+
+  @Test
+  public void commandOfAnUnknownSlotIsDroppedAndTheConnectionGoesOn() throws Exception {
+    // a refused command may be larger than the limit, it is never stored
+    Frames.write(out, "slot-1\nclient-1");
+    Frames.write(out, command(MAX_FRAME_SIZE * 4));
+    Frames.write(out, "slot-2\nclient-1");
+    Frames.write(out, command(10));
+    out.flush();
+
+    assertTrue(Frames.read(in, MAX_FRAME_SIZE).contains("Unknown slot slot-1"));
+    assertTrue(Frames.read(in, MAX_FRAME_SIZE).contains("Unknown slot slot-2"));
+  }
+
+  @Test
+  public void commandWithoutAClientIdIsRefused() throws Exception {
+    Frames.write(out, "slot-1");
+    Frames.write(out, command(10));
+    out.flush();
+
+    assertTrue(Frames.read(in, MAX_FRAME_SIZE).contains("client id are required"));
+  }
+
+  @Test(expected = IOException.class)
+  public void oversizedHeaderClosesTheConnection() throws Exception {
+    out.writeInt(Frames.MAX_HEADER_SIZE + 1);
+    out.flush();
+
+    // the node closes the connection instead of responding
+    in.readInt();
+  }
+}
@@ -0,0 +1,170 @@
+package ru.stqa.selenium.zkgrid.node;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openqa.selenium.remote.Command;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.openqa.selenium.remote.DriverCommand;
+import org.openqa.selenium.remote.ErrorCodes;
+import org.openqa.selenium.remote.Response;
+import org.openqa.selenium.remote.SessionId;
+import org.slf4j.LoggerFactory;
+import ru.stqa.selenium.zkgrid.common.Curator;
+import ru.stqa.selenium.zkgrid.common.SlotInfo;
+import ru.stqa.selenium.zkgrid.common.SlotState;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static ru.stqa.selenium.zkgrid.common.PathUtils.*;
+
+public class NodeSlotTest {
+
+  private static final String NODE_ID = "node-1";
+  private static final String CLIENT_ID = "client-1";
+  private static final String SESSION_ID = "session-1";
+
+  // the node frees the slot with a delay
+  private static final long FREE_TIMEOUT = 10000;
+
+  private TestingServer server;
+  private Curator curator;
+  private FakeCommandHandler commandHandler;
+  private SlotInfo slotInfo;
+  private NodeSlot slot;
+
+  /**
+   * Plays the browser: creates a session and counts the quits.
+   */
+  private static class FakeCommandHandler extends CommandHandler {
+    final AtomicInteger quits = new AtomicInteger();
+    volatile boolean browserDied;
+
+    FakeCommandHandler() {
+      super(null);
+    }
+
+    @Override
+    public Response handleCommand(Command command) {
+      Response res = new Response();
+      res.setStatus(ErrorCodes.SUCCESS);
+      if (DriverCommand.NEW_SESSION.equals(command.getName())) {
+        res.setSessionId(SESSION_ID);
+      } else if (DriverCommand.QUIT.equals(command.getName())) {
+        quits.incrementAndGet();
+      } else if (browserDied) {
+        res.setStatus(ErrorCodes.NO_SUCH_SESSION);
+      }
+      return res;
+    }
+  }
+
+  private static final NodeSlot.ResponseSender IGNORE = new NodeSlot.ResponseSender() {
+    @Override
+    public void send(Response res) {
+    }
+  };
+
+  @Before
+  public void registerSlot() throws Exception {
+    server = new TestingServer();
+    curator = new Curator(server.getConnectString(), LoggerFactory.getLogger(getClass()));
+    curator.start();
+    curator.getClient().create().creatingParentsIfNeeded().forPath(nodeSlotsPath(NODE_ID));
+
+    commandHandler = new FakeCommandHandler();
+    slotInfo = new SlotInfo(NODE_ID, "slot-1", DesiredCapabilities.firefox());
+    slot = new NodeSlot.Builder(curator, slotInfo, commandHandler)
+        .withCommandExecutionTimeout(5, TimeUnit.SECONDS)
+        .withClientInactivityTimeout(300, TimeUnit.MILLISECONDS)
+        .create();
+    slot.registerToTheHub();
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    curator.getClient().close();
+    server.close();
+  }
+
+  private SlotState slotState() throws Exception {
+    return SlotState.fromBytes(curator.getClient().getData().forPath(nodeSlotStatePath(slotInfo)));
+  }
+
+  private void startSession() throws Exception {
+    slot.executeCommand(new Command(null, DriverCommand.NEW_SESSION,
+        ImmutableMap.of("desiredCapabilities", DesiredCapabilities.firefox().asMap())), CLIENT_ID, IGNORE);
+    assertTrue("session is not started", waitFor(new Condition() {
+      @Override
+      public boolean holds() throws Exception {
+        return slot.hasSession() && slotState().isBusy();
+      }
+    }, 5000));
+    assertEquals(CLIENT_ID, slotState().getOwner());
+  }
+
+  private interface Condition {
+    boolean holds() throws Exception;
+  }
+
+  private static boolean waitFor(Condition condition, long timeout) throws Exception {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (!condition.holds()) {
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      Thread.sleep(20);
+    }
+    return true;
+  }
+
+  @Test
+  public void quitFreesTheSlot() throws Exception {
+    startSession();
+    slot.executeCommand(new Command(new SessionId(SESSION_ID), DriverCommand.QUIT), CLIENT_ID, IGNORE);
+
+    assertTrue("slot is not freed", waitFor(new Condition() {
+      @Override
+      public boolean holds() throws Exception {
+        return !slotState().isBusy();
+      }
+    }, FREE_TIMEOUT));
+    assertFalse(slot.hasSession());
+  }
+
+  @Test
+  public void abandonedSessionIsDestroyedAndTheSlotIsFreed() throws Exception {
+    startSession();
+
+    // the client goes quiet longer than the inactivity timeout
+    assertTrue("slot is not freed", waitFor(new Condition() {
+      @Override
+      public boolean holds() throws Exception {
+        return !slotState().isBusy();
+      }
+    }, FREE_TIMEOUT));
+    assertEquals(1, commandHandler.quits.get());
+    assertFalse(slot.hasSession());
+  }
+
+  @Test
+  public void deadBrowserFreesTheSlot() throws Exception {
+    startSession();
+    commandHandler.browserDied = true;
+    slot.executeCommand(new Command(new SessionId(SESSION_ID), DriverCommand.GET_TITLE), CLIENT_ID, IGNORE);
+
+    assertTrue("slot is not freed", waitFor(new Condition() {
+      @Override
+      public boolean holds() throws Exception {
+        return !slotState().isBusy();
+      }
+    }, FREE_TIMEOUT));
+    assertFalse(slot.hasSession());
+    // nothing is left to quit
+    assertEquals(0, commandHandler.quits.get());
+  }
+}